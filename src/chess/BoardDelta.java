@@ -0,0 +1,58 @@
+package chess;
+
+/**
+ * What changed on a {@link ChessBoard} since its observers last heard
+ * from it. Changes made in a burst are merged into one delta, so an
+ * observer only looks at the parts of the board named here.
+ *
+ * @author Andrei Tumbar
+ */
+public class BoardDelta {
+    /**
+     * Kinds of changes
+     */
+    public enum Kind {
+        /** Pieces were put on or taken off the squares in {@link #getSquares()} */
+        SQUARES,
+        /** Whose turn it is changed */
+        TURN,
+        /** The observer's king went into or out of check */
+        CHECK,
+        /** A pawn started or finished waiting for its promotion */
+        PROMOTION,
+        /** The game ended or failed */
+        RESULT
+    }
+
+    private final int kinds;
+    private final long squares;
+
+    BoardDelta(int kinds, long squares) {
+        this.kinds = kinds;
+        this.squares = squares;
+    }
+
+    /**
+     * @param kind kind of change
+     * @return true if the delta holds a change of that kind
+     */
+    public boolean has(Kind kind) {
+        return (this.kinds & (1 << kind.ordinal())) != 0;
+    }
+
+    /**
+     * @return squares that changed, bit row * 8 + col
+     */
+    public long getSquares() {
+        return this.squares;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("BoardDelta[");
+        for (Kind kind : Kind.values())
+            if (has(kind))
+                out.append(kind).append(' ');
+        return out.append(Long.toHexString(this.squares)).append(']').toString();
+    }
+}
@@ -1,14 +1,14 @@
 package chess;
 
 import chess.pieces.*;
-import gui.Observer;
-import javafx.application.Platform;
 import server.ChessException;
 import server.PawnInterrupt;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
 
 public class ChessBoard {
     public enum Status {
@@ -47,7 +47,11 @@ public class ChessBoard {
         KING
     }
 
+    /* Zobrist key of each piece letter, color and square, the same in every process */
+    private static final long[] KEYS = zobristKeys();
+
     private Place[][] board;
+    private long hash;
     private ArrayList<Piece> takenBlack;
     private ArrayList<Piece> takenWhite;
     private boolean myTurn;
@@ -58,7 +62,25 @@ public class ChessBoard {
 
     private ArrayList<Piece> white;
     private ArrayList<Piece> black;
-    private List<Observer<ChessBoard>> observers = new LinkedList<>();
+    private Piece[] kings;
+    private MoveHistory history;
+    private List<Observer<BoardDelta>> observers = new LinkedList<>();
+
+    /* Runs each delivery to the observers, a view hands in its UI thread's */
+    private Executor dispatcher = Runnable::run;
+
+    /* The observer's move shown before the server confirmed it, null if none */
+    private int[] pending;
+    private String pendingSnapshot;
+    private long[] pendingMoves;
+
+    /* Where each square's piece may go this turn, bit row * 8 + col, null until worked out */
+    private volatile long[] legalMoves;
+
+    /* Changes not delivered yet, guarded by this */
+    private int pendingKinds;
+    private long pendingSquares;
+    private boolean deliveryScheduled;
 
     public ChessBoard() {
         board = new Place[8][8];
@@ -66,6 +88,8 @@ public class ChessBoard {
         takenWhite = new ArrayList<>();
         white = new ArrayList<>();
         black = new ArrayList<>();
+        kings = new Piece[2];
+        history = new MoveHistory(this);
         myTurn = false;
         awaitingPromotion = null;
         observerColor = null;
@@ -77,12 +101,50 @@ public class ChessBoard {
         }
     }
 
+    private static long[] zobristKeys() {
+        long[] keys = new long[26 * 2 * 64];
+        Random random = new Random(0x5a0b21a7L);
+        for (int i = 0; i < keys.length; i++)
+            keys[i] = random.nextLong();
+        return keys;
+    }
+
+    private static long key(Piece p, int row, int col) {
+        if (p == null)
+            return 0;
+        return KEYS[((p.getSymbol() - 'A') * 2 + p.getColor().ordinal()) * 64 + row * 8 + col];
+    }
+
+    /**
+     * Put a piece on a square, keeping the hash up to date
+     * @param p piece to put there, null to empty the square
+     * @return the piece that was there
+     */
+    private Piece place(int row, int col, Piece p) {
+        Piece old = board[row][col].setPiece(p);
+        hash ^= key(old, row, col) ^ key(p, row, col);
+        return old;
+    }
+
+    /**
+     * Zobrist hash of which piece stands on each square, updated with a
+     * few XORs as pieces move. Boards that went through the same moves
+     * have the same hash.
+     * @return 64-bit hash of the position
+     */
+    public long hash() {
+        return hash;
+    }
+
     private void addPiece(Piece p) {
-        board[p.getRow()][p.getCol()].setPiece(p);
+        place(p.getRow(), p.getCol(), p);
         if (p.getColor() == ChessColor.BLACK)
             black.add(p);
         else
             white.add(p);
+
+        if (p instanceof King)
+            kings[p.getColor().ordinal()] = p;
     }
 
     private void initColor(ChessColor color) {
@@ -112,13 +174,125 @@ public class ChessBoard {
         initColor(ChessColor.BLACK);
         initColor(ChessColor.WHITE);
 
-        notifyObservers();
+        changed(BoardDelta.Kind.SQUARES, -1L);
     }
 
     public Piece pieceAt(int row, int col) {
         return board[row][col].getPiece();
     }
 
+    /**
+     * Compact text form of the position. The 64 squares row by row with
+     * one symbol each (upper case WHITE, lower case BLACK, '.' empty),
+     * a space, then a hex mask of the squares whose piece has moved.
+     *
+     * @return position that {@link #loadSnapshot(String)} can restore
+     */
+    public String snapshot() {
+        StringBuilder squares = new StringBuilder(64 + 17);
+        long moved = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                Piece p = pieceAt(row, col);
+                if (p == null) {
+                    squares.append('.');
+                    continue;
+                }
+
+                char symbol = p.getSymbol();
+                squares.append(p.getColor() == ChessColor.WHITE ? symbol : Character.toLowerCase(symbol));
+                if (p.getMoved())
+                    moved |= 1L << (row * 8 + col);
+            }
+        }
+
+        return squares.append(' ').append(Long.toHexString(moved)).toString();
+    }
+
+    /**
+     * Replace the whole position with a snapshot
+     * @param snapshot string from {@link #snapshot()}
+     * @throws ChessException if the snapshot cannot be parsed
+     */
+    public synchronized void loadSnapshot(String snapshot) throws ChessException {
+        /* The server's position replaces any move it has not confirmed */
+        pending = null;
+        pendingSnapshot = null;
+        pendingMoves = null;
+
+        setPosition(snapshot);
+        /* The plies that led here are not known */
+        history.restart();
+        updateLegalMoves();
+    }
+
+    private void setPosition(String snapshot) throws ChessException {
+        String[] fields = snapshot.trim().split(" ");
+        if (fields.length != 2 || fields[0].length() != 64)
+            throw new ChessException("Malformed snapshot");
+
+        long moved;
+        try {
+            moved = Long.parseUnsignedLong(fields[1], 16);
+        } catch (NumberFormatException e) {
+            throw new ChessException("Malformed snapshot", e);
+        }
+
+        for (int row = 0; row < 8; row++)
+            for (int col = 0; col < 8; col++)
+                place(row, col, null);
+        black.clear();
+        white.clear();
+        takenBlack.clear();
+        takenWhite.clear();
+        kings = new Piece[2];
+        awaitingPromotion = null;
+
+        for (int i = 0; i < 64; i++) {
+            char symbol = fields[0].charAt(i);
+            if (symbol == '.')
+                continue;
+
+            ChessColor color = Character.isUpperCase(symbol) ? ChessColor.WHITE : ChessColor.BLACK;
+            Piece p = Piece.fromSymbol(this, color, Character.toUpperCase(symbol), i / 8, i % 8);
+            if (p == null)
+                throw new ChessException("Unknown piece in snapshot: " + symbol);
+            if ((moved & (1L << i)) != 0)
+                p.markMoved();
+
+            addPiece(p);
+        }
+
+        if (kings[0] == null || kings[1] == null)
+            throw new ChessException("Snapshot without both kings");
+
+        legalMoves = null;
+        changed(BoardDelta.Kind.SQUARES, -1L);
+        changed(BoardDelta.Kind.PROMOTION, 0);
+        updateCheck();
+    }
+
+    /**
+     * @return every ply played on this board since it was set up
+     */
+    public MoveHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Play a move and add it to the history
+     * @throws ChessException if there is no piece on the start square
+     * @throws PawnInterrupt if the observer's pawn has to be promoted
+     */
+    public void applyMove(int startRow, int startCol, int row, int col) throws ChessException, PawnInterrupt {
+        Piece p = pieceAt(startRow, startCol);
+        if (p == null)
+            throw new ChessException(String.format("Piece at %d,%d", startRow, startCol));
+
+        history.move(startRow, startCol, row, col);
+        movePiece(p, row, col);
+    }
+
     private void takePiece(Piece p) {
         if (p.getColor() == ChessColor.WHITE)
             takenWhite.add(p);
@@ -129,30 +303,33 @@ public class ChessBoard {
     }
 
     public void movePiece(Piece p, int row, int col) throws ChessException, PawnInterrupt {
-        Piece toMove = board[p.getRow()][p.getCol()].setPiece(null);
+        Piece toMove = place(p.getRow(), p.getCol(), null);
         if (p != toMove)
             throw new ChessException("State of Piece not updated correctly");
 
-        Piece taken = board[row][col].setPiece(toMove);
+        Piece taken = place(row, col, toMove);
         if (taken != null) {
             takePiece(taken);
         }
+        legalMoves = null;
+        changed(BoardDelta.Kind.SQUARES, square(p.getRow(), p.getCol()) | square(row, col));
 
         toMove.move(row, col);
     }
 
-    private Piece getPiece(ChessColor color, PieceSet piece) {
-        if (color == ChessColor.BLACK)
-            return black.get(piece.ordinal());
-        return white.get(piece.ordinal());
+    private Piece king(ChessColor color) {
+        return kings[color.ordinal()];
     }
 
     public boolean check(ChessColor c) {
-        Piece king = getPiece(c, PieceSet.KING);
+        Piece king = king(c);
         ArrayList<Piece> otherTeam = c == ChessColor.BLACK ? white : black;
         for (Piece opponent : otherTeam) {
             if (opponent instanceof King)
                 continue;
+            /* Promoted pawns and pieces taken in a trial move are off the board */
+            if (pieceAt(opponent.getRow(), opponent.getCol()) != opponent)
+                continue;
             if (!opponent.dead() && opponent.checkMove(king.getRow(), king.getCol()))
                 return true;
         }
@@ -160,47 +337,320 @@ public class ChessBoard {
         return false;
     }
 
+    /**
+     * Is a move legal for a player, including not leaving its own king in check
+     * @param color color of the player making the move
+     * @return true if the move can be made
+     */
+    public boolean isLegalMove(ChessColor color, int startRow, int startCol, int row, int col) {
+        if (!onBoard(startRow, startCol) || !onBoard(row, col))
+            return false;
+
+        Piece p = pieceAt(startRow, startCol);
+        if (p == null || p.getColor() != color || !p.checkMove(row, col))
+            return false;
+
+        /* Try the move out and put everything back */
+        Place from = board[startRow][startCol];
+        Place to = board[row][col];
+        Piece taken = to.setPiece(p);
+        from.setPiece(null);
+        p.relocate(row, col);
+
+        boolean safe = !check(color);
+
+        p.relocate(startRow, startCol);
+        from.setPiece(p);
+        to.setPiece(taken);
+
+        return safe;
+    }
+
+    /**
+     * Work out every legal move of a player on a copy of the position,
+     * so a view reading this board never sees a move being tried out
+     * @param color color of the player
+     * @return for each square row * 8 + col, the squares its piece may move to
+     */
+    public long[] computeLegalMoves(ChessColor color) {
+        ChessBoard copy = new ChessBoard();
+        try {
+            copy.loadSnapshot(snapshot());
+        } catch (ChessException e) {
+            /* Only a board without both kings, nothing can move */
+            return new long[64];
+        }
+
+        long[] moves = new long[64];
+        for (int from = 0; from < 64; from++) {
+            Piece p = copy.pieceAt(from / 8, from % 8);
+            if (p == null || p.getColor() != color)
+                continue;
+
+            for (int to = 0; to < 64; to++)
+                if (copy.isLegalMove(color, from / 8, from % 8, to / 8, to % 8))
+                    moves[from] |= 1L << to;
+        }
+
+        return moves;
+    }
+
+    /**
+     * Take the observer's moves for the coming turn from the server
+     * instead of working them out here
+     * @param moves for each square row * 8 + col, the squares its piece may move to
+     */
+    public void setLegalMoves(long[] moves) {
+        legalMoves = moves;
+    }
+
+    /**
+     * Where the observer's piece on a square may go, from the moves worked
+     * out when its turn started. Never works them out itself, the view
+     * calls this on its UI thread.
+     * @return bit row * 8 + col for each square, 0 if there is no such piece
+     *         or the moves are not known yet
+     */
+    public long getLegalMoves(int row, int col) {
+        long[] moves = legalMoves;
+        return moves == null ? 0 : moves[row * 8 + col];
+    }
+
+    /**
+     * Work out the observer's moves if they were cleared, called on the
+     * network thread before the view hears of the change
+     */
+    public void updateLegalMoves() {
+        if (!observers.isEmpty() && legalMoves == null)
+            legalMoves = computeLegalMoves(observerColor);
+    }
+
+    /**
+     * Can a player make any move at all
+     * @param color color of the player
+     * @return false on checkmate or stalemate
+     */
+    public boolean hasLegalMove(ChessColor color) {
+        ArrayList<Piece> team = new ArrayList<>(color == ChessColor.BLACK ? black : white);
+        for (Piece p : team) {
+            if (p.dead() || pieceAt(p.getRow(), p.getCol()) != p)
+                continue;
+
+            for (int row = 0; row < 8; row++)
+                for (int col = 0; col < 8; col++)
+                    if (isLegalMove(color, p.getRow(), p.getCol(), row, col))
+                        return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Can a player promote the piece on a square
+     * @param color color of the player
+     * @return true if a pawn of that color sits on its last row there
+     */
+    public boolean canPromote(ChessColor color, int row, int col) {
+        if (!onBoard(row, col))
+            return false;
+
+        Piece p = pieceAt(row, col);
+        return p instanceof Pawn && p.getColor() == color && ((Pawn) p).reachedEnd();
+    }
+
+    /**
+     * Works without an observer, unlike {@link #awaitingPromotion()}
+     * @param color color of a player
+     * @return true if one of its pawns stands on its last row waiting for a CHOSE
+     */
+    public boolean promotionDue(ChessColor color) {
+        for (Piece p : color == ChessColor.BLACK ? black : white)
+            if (p instanceof Pawn && ((Pawn) p).reachedEnd() && pieceAt(p.getRow(), p.getCol()) == p)
+                return true;
+        return false;
+    }
+
+    private static boolean onBoard(int row, int col) {
+        return row >= 0 && row < 8 && col >= 0 && col < 8;
+    }
+
     public boolean gameOver() {
-        return getPiece(ChessColor.BLACK, PieceSet.KING).dead() || getPiece(ChessColor.WHITE, PieceSet.KING).dead();
+        return king(ChessColor.BLACK).dead() || king(ChessColor.WHITE).dead();
     }
 
     public ChessColor getWinner() {
-        if (getPiece(ChessColor.BLACK, PieceSet.KING).dead())
+        if (king(ChessColor.BLACK).dead())
             return ChessColor.WHITE;
-        else if (getPiece(ChessColor.WHITE, PieceSet.KING).dead())
+        else if (king(ChessColor.WHITE).dead())
             return ChessColor.BLACK;
         return ChessColor.NONE;
     }
 
+    /**
+     * Choose the thread observers hear about changes on. By default they
+     * hear on the thread that made the change, a JavaFX view passes
+     * Platform::runLater so every delivery lands on the FX thread.
+     * @param dispatcher runs each delivery
+     */
+    public void setDispatcher(Executor dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
     /* View to Model */
-    public void addObserver(Observer<ChessBoard> observer){
+    public void addObserver(Observer<BoardDelta> observer){
         observers.add(observer);
         observerColor = observer.getColor();
     }
 
+    /**
+     * @return true if the observer's king is in check, updated whenever pieces move
+     */
+    public boolean isInCheck() {
+        return inCheck;
+    }
+
     public ChessColor getObserverColor() {
         return observerColor;
     }
 
-    private void notifyObservers(){
-        for (Observer<ChessBoard> observer: observers) {
-            Platform.runLater(() -> observer.update( this ));
+    private static long square(int row, int col) {
+        return 1L << (row * 8 + col);
+    }
+
+    /**
+     * Record a change for the observers. The first change after a
+     * delivery schedules the next one, later changes join it until the
+     * dispatcher runs it, so a burst reaches the observers as one delta.
+     * @param kind kind of change
+     * @param squares squares that changed, bit row * 8 + col
+     */
+    private void changed(BoardDelta.Kind kind, long squares) {
+        if (observers.isEmpty())
+            return;
+
+        synchronized (this) {
+            pendingKinds |= 1 << kind.ordinal();
+            pendingSquares |= squares;
+            if (deliveryScheduled)
+                return;
+            deliveryScheduled = true;
+        }
+
+        dispatcher.execute(this::deliver);
+    }
+
+    private void deliver() {
+        BoardDelta delta;
+        synchronized (this) {
+            delta = new BoardDelta(pendingKinds, pendingSquares);
+            pendingKinds = 0;
+            pendingSquares = 0;
+            deliveryScheduled = false;
+        }
+
+        for (Observer<BoardDelta> observer : observers)
+            observer.update(delta);
+    }
+
+    /**
+     * Work out check once per position instead of once per redraw
+     */
+    private void updateCheck() {
+        if (observerColor == null || observerColor == ChessColor.NONE || king(observerColor) == null)
+            return;
+
+        boolean now = check(observerColor);
+        if (now != inCheck) {
+            inCheck = now;
+            changed(BoardDelta.Kind.CHECK, 0);
         }
     }
 
-    public void moveMade(int startRow, int startCol, int row, int col) throws ChessException, PawnInterrupt {
+    /**
+     * Show a move of the observer straight away, before the server echoes
+     * it. {@link #moveMade} confirms it and anything else takes it back.
+     * A pawn reaching its last row is not shown early because it still
+     * has to be promoted.
+     * @return false if the move was not applied
+     */
+    public synchronized boolean moveOptimistic(int startRow, int startCol, int row, int col) {
         Piece p = pieceAt(startRow, startCol);
-        if (p == null)
-            throw new ChessException(String.format("Piece at %d,%d", startRow, startCol));
+        if (p == null || pending != null)
+            return false;
+        if (p instanceof Pawn && (p.getColor() == ChessColor.WHITE ? col == 0 : col == 7))
+            return false;
+
+        pendingSnapshot = snapshot();
+        pendingMoves = legalMoves;
+        try {
+            history.move(startRow, startCol, row, col);
+            movePiece(p, row, col);
+        } catch (ChessException | PawnInterrupt e) {
+            rollback();
+            return false;
+        }
 
-        movePiece(p, row, col);
+        pending = new int[]{startRow, startCol, row, col};
+        myTurn = false;
+        changed(BoardDelta.Kind.TURN, 0);
+        updateCheck();
+        return true;
+    }
+
+    /**
+     * @return true while a move shown by {@link #moveOptimistic} waits for the server
+     */
+    public synchronized boolean hasPendingMove() {
+        return pending != null;
+    }
+
+    /**
+     * Take back the unconfirmed move, it becomes the observer's turn again
+     */
+    private void rollback() {
+        String saved = pendingSnapshot;
+        long[] moves = pendingMoves;
+        pending = null;
+        pendingSnapshot = null;
+        pendingMoves = null;
+        if (saved == null)
+            return;
+
+        try {
+            setPosition(saved);
+        } catch (ChessException ignored) {
+            /* It was taken from this board */
+        }
+        /* Back where the moves were worked out, this may run on the UI thread */
+        legalMoves = moves;
+        history.undo();
+        myTurn = true;
+        changed(BoardDelta.Kind.TURN, 0);
+    }
+
+    public synchronized void moveMade(int startRow, int startCol, int row, int col) throws ChessException, PawnInterrupt {
+        if (pending != null) {
+            if (pending[0] == startRow && pending[1] == startCol && pending[2] == row && pending[3] == col) {
+                /* Already on the board */
+                pending = null;
+                pendingSnapshot = null;
+                return;
+            }
+
+            rollback();
+        }
+
+        applyMove(startRow, startCol, row, col);
         myTurn = !myTurn;
-        notifyObservers();
+        changed(BoardDelta.Kind.TURN, 0);
+        updateCheck();
     }
 
-    public void makeMove() {
+    public synchronized void makeMove() {
         myTurn = true;
-        notifyObservers();
+        /* On the network thread, before the view hears it is its turn */
+        updateLegalMoves();
+        changed(BoardDelta.Kind.TURN, 0);
     }
 
     public Piece awaiting() {
@@ -208,20 +658,32 @@ public class ChessBoard {
     }
 
     public void chosePiece(Piece p) {
+        history.chose(p);
         if (awaitingPromotion != null) {
             try {
                 p.move(awaitingPromotion.getRow(), awaitingPromotion.getCol());
             } catch (PawnInterrupt ignored) {}
         }
 
-        board[p.getRow()][p.getCol()].setPiece(p);
+        place(p.getRow(), p.getCol(), p);
+        if (p.getColor() == ChessColor.BLACK)
+            black.add(p);
+        else
+            white.add(p);
+        legalMoves = null;
+
         if (awaitingPromotion != null) {
             awaitingPromotion = null;
             myTurn = false;
         }
-        else
+        else {
             myTurn = true;
-        notifyObservers();
+            updateLegalMoves();
+        }
+        changed(BoardDelta.Kind.SQUARES, square(p.getRow(), p.getCol()));
+        changed(BoardDelta.Kind.TURN, 0);
+        changed(BoardDelta.Kind.PROMOTION, 0);
+        updateCheck();
     }
 
     public boolean awaitingPromotion() {
@@ -230,7 +692,7 @@ public class ChessBoard {
 
     public void choosePiece(Piece pawn) {
         awaitingPromotion = pawn;
-        notifyObservers();
+        changed(BoardDelta.Kind.PROMOTION, 0);
     }
 
     /**
@@ -244,25 +706,31 @@ public class ChessBoard {
     /**
      * Called when the game has been won by this player.
      */
-    public void gameWon() {
+    public synchronized void gameWon() {
+        /* A move still in flight did not count */
+        rollback();
         this.status = Status.I_WON;
-        notifyObservers();
+        changed(BoardDelta.Kind.RESULT, 0);
     }
 
     /**
      * Called when the game has been won by the other player.
      */
-    public void gameLost() {
+    public synchronized void gameLost() {
+        /* A move still in flight did not count */
+        rollback();
         this.status = Status.I_LOST;
-        notifyObservers();
+        changed(BoardDelta.Kind.RESULT, 0);
     }
 
     /**
      * Called when the game has been tied.
      */
-    public void gameTied() {
+    public synchronized void gameTied() {
+        /* A move still in flight did not count */
+        rollback();
         this.status = Status.TIE;
-        notifyObservers();
+        changed(BoardDelta.Kind.RESULT, 0);
     }
 
     /**
@@ -270,10 +738,12 @@ public class ChessBoard {
      *
      * @param arguments The error message sent from the server.
      */
-    public void error( String arguments ) {
+    public synchronized void error( String arguments ) {
+        /* The server would not take the move shown early */
+        rollback();
         this.status = Status.ERROR;
         this.status.setMessage( arguments );
-        notifyObservers();
+        changed(BoardDelta.Kind.RESULT, 0);
     }
 
     /**
@@ -282,7 +752,7 @@ public class ChessBoard {
     public void close() {
         // Tell user s/he may close at any time?
         // Currently it will say win/lose/tie/error.
-        notifyObservers();
+        changed(BoardDelta.Kind.RESULT, 0);
     }
 
     public Place get(int row, int col) {
@@ -295,6 +765,6 @@ public class ChessBoard {
 
     public void start() {
         this.myTurn = false;
-        notifyObservers();
+        changed(BoardDelta.Kind.TURN, 0);
     }
 }
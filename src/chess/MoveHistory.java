@@ -0,0 +1,149 @@
+package chess;
+
+import chess.pieces.Piece;
+import server.ChessException;
+import server.PawnInterrupt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every ply played on a {@link ChessBoard}, each packed in an int, with a
+ * {@link ChessBoard#snapshot()} of the position every {@link #INTERVAL}
+ * plies. Going to any ply restores the nearest snapshot before it and
+ * plays at most {@link #INTERVAL} - 1 plies on top, however long the
+ * game is.
+ *
+ * A ply is recorded just before it is played, so the board still shows
+ * the position a snapshot is due for.
+ *
+ * @author Andrei Tumbar
+ */
+public class MoveHistory {
+    /**
+     * Plies between two snapshots
+     */
+    public static final int INTERVAL = 16;
+
+    /* Ply bits: start row, start col, row, col, promotion, color, chose */
+    private static final int CHOSE = 1 << 17;
+
+    private ChessBoard board;
+    private int[] plies;
+    private int size;
+
+    /* Position after i * INTERVAL plies */
+    private List<String> snapshots;
+
+    MoveHistory(ChessBoard board) {
+        this.board = board;
+        this.plies = new int[64];
+        this.snapshots = new ArrayList<>();
+    }
+
+    /**
+     * @return number of plies played
+     */
+    public synchronized int size() {
+        return this.size;
+    }
+
+    /**
+     * Forget every ply, the board's position is where the history starts
+     */
+    synchronized void restart() {
+        this.size = 0;
+        this.snapshots.clear();
+    }
+
+    synchronized void move(int startRow, int startCol, int row, int col) {
+        add(startRow | startCol << 3 | row << 6 | col << 9);
+    }
+
+    synchronized void chose(Piece p) {
+        int promotion = Arrays.asList(Piece.PROMOTIONS).indexOf(p.getName());
+        add(p.getRow() << 6 | p.getCol() << 9 | promotion << 12 | p.getColor().ordinal() << 15 | CHOSE);
+    }
+
+    private void add(int ply) {
+        if (this.size % INTERVAL == 0 && this.snapshots.size() == this.size / INTERVAL)
+            this.snapshots.add(this.board.snapshot());
+
+        if (this.size == this.plies.length)
+            this.plies = Arrays.copyOf(this.plies, this.size * 2);
+        this.plies[this.size++] = ply;
+    }
+
+    /**
+     * Take back the last ply, it was never confirmed
+     */
+    synchronized void undo() {
+        if (this.size == 0)
+            return;
+
+        this.size--;
+        if (this.size % INTERVAL == 0 && this.snapshots.size() > this.size / INTERVAL)
+            this.snapshots.remove(this.snapshots.size() - 1);
+    }
+
+    /**
+     * Describe a ply the way the protocol sends it
+     * @param ply index of the ply, from 0
+     * @return MOVE_MADE or CHOSE line without the newline
+     */
+    public synchronized String describe(int ply) {
+        int p = this.plies[ply];
+        if ((p & CHOSE) == 0)
+            return String.format("MOVE_MADE %d %d %d %d", p & 7, p >> 3 & 7, p >> 6 & 7, p >> 9 & 7);
+
+        return String.format("CHOSE %s %s %d %d", Piece.PROMOTIONS[p >> 12 & 3],
+                ChessColor.values()[p >> 15 & 1], p >> 6 & 7, p >> 9 & 7);
+    }
+
+    /**
+     * Rebuild the position after some plies on a new board
+     * @param ply number of plies to play, from 0 to {@link #size()}
+     * @return board that nothing observes
+     * @throws ChessException if the history does not replay
+     */
+    public ChessBoard positionAt(int ply) throws ChessException {
+        String base;
+        int[] replay;
+        synchronized (this) {
+            if (ply < 0 || ply > this.size)
+                throw new ChessException("No ply " + ply);
+
+            if (this.snapshots.isEmpty())
+                return copy(this.board.snapshot());
+
+            int nearest = Math.min(ply / INTERVAL, this.snapshots.size() - 1);
+            base = this.snapshots.get(nearest);
+            replay = Arrays.copyOfRange(this.plies, nearest * INTERVAL, ply);
+        }
+
+        ChessBoard position = copy(base);
+        for (int p : replay) {
+            if ((p & CHOSE) == 0) {
+                try {
+                    position.movePiece(position.pieceAt(p & 7, p >> 3 & 7), p >> 6 & 7, p >> 9 & 7);
+                } catch (PawnInterrupt ignored) {
+                    /* Nobody observes the copy, it does not wait for promotions */
+                } catch (NullPointerException e) {
+                    throw new ChessException("History does not replay", e);
+                }
+            }
+            else
+                position.chosePiece(Piece.createPiece(position, ChessColor.values()[p >> 15 & 1],
+                        Piece.PROMOTIONS[p >> 12 & 3], p >> 6 & 7, p >> 9 & 7));
+        }
+
+        return position;
+    }
+
+    private static ChessBoard copy(String snapshot) throws ChessException {
+        ChessBoard position = new ChessBoard();
+        position.loadSnapshot(snapshot);
+        return position;
+    }
+}
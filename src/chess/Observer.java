@@ -1,6 +1,4 @@
-package gui;
-
-import chess.ChessColor;
+package chess;
 
 /**
  * An interface representing any class whose objects get notified when
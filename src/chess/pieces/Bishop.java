@@ -8,6 +8,11 @@ public class Bishop extends Piece {
         super(parent, color, startRow, startCol);
     }
 
+    @Override
+    public char getSymbol() {
+        return 'B';
+    }
+
     @Override
     public boolean checkMove(int newRow, int newCol) {
         if (!super.checkMove(newRow, newCol))
@@ -8,6 +8,11 @@ public class Castle extends Piece {
         super(parent, color, startRow, startCol);
     }
 
+    @Override
+    public char getSymbol() {
+        return 'R';
+    }
+
     @Override
     public boolean checkMove(int newRow, int newCol) {
         if (!super.checkMove(newRow, newCol))
@@ -11,6 +11,11 @@ public class King extends Piece {
         super(parent, color, startRow, startCol);
     }
 
+    @Override
+    public char getSymbol() {
+        return 'K';
+    }
+
     @Override
     public boolean checkMove(int newRow, int newCol) {
         if (!super.checkMove(newRow, newCol))
@@ -24,7 +29,7 @@ public class King extends Piece {
             if (newRow == 6) {
                 /* King side castling */
                 Piece target_castle = getParent().pieceAt( 7, getCol());
-                if (target_castle.getMoved())
+                if (!(target_castle instanceof Castle) || target_castle.getMoved())
                     return false;
 
                 return getParent().pieceAt(5, getCol()) == null
@@ -33,7 +38,7 @@ public class King extends Piece {
             else if (newRow == 2) {
                 /* Queen-side castling */
                 Piece target_castle = getParent().pieceAt( 0, getCol());
-                if (target_castle.getMoved())
+                if (!(target_castle instanceof Castle) || target_castle.getMoved())
                     return false;
 
                 return getParent().pieceAt(1, getCol()) == null
@@ -8,6 +8,11 @@ public class Knight extends Piece {
         super(parent, color, startRow, startCol);
     }
 
+    @Override
+    public char getSymbol() {
+        return 'N';
+    }
+
     @Override
     public boolean checkMove(int newRow, int newCol) {
         if (!super.checkMove(newRow, newCol))
@@ -9,7 +9,13 @@ public class Pawn extends Piece {
 
     public Pawn(ChessBoard parent, ChessColor color, int startRow, int startCol) {
         super(parent, color, startRow, startCol);
-        this.startCol = startCol;
+        /* Pawns always start on their second row, even when restored from a snapshot */
+        this.startCol = color == ChessColor.BLACK ? 1 : 6;
+    }
+
+    @Override
+    public char getSymbol() {
+        return 'P';
     }
 
     @Override
@@ -42,7 +48,7 @@ public class Pawn extends Piece {
             throw new PawnInterrupt(this);
     }
 
-    private boolean reachedEnd() {
+    public boolean reachedEnd() {
         return getColor() == ChessColor.WHITE ? getCol() == 0 : getCol() == 7;
     }
 }
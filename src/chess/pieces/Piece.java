@@ -2,11 +2,14 @@ package chess.pieces;
 
 import chess.ChessBoard;
 import chess.ChessColor;
-import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import server.PawnInterrupt;
 
 public abstract class Piece {
+    /**
+     * Names of the pieces a pawn can be promoted to
+     */
+    public static final String[] PROMOTIONS = {"QUEEN", "BISHOP", "KNIGHT", "CASTLE"};
+
     /* Package private */
     private ChessBoard parent;
 
@@ -15,7 +18,6 @@ public abstract class Piece {
     private int col;
     private ChessColor color;
     private boolean isDead;
-    private ImageView image;
     private boolean moved;
 
     public Piece(ChessBoard parent, ChessColor color, int startRow, int startCol) {
@@ -25,15 +27,6 @@ public abstract class Piece {
         this.col = startCol;
         this.isDead = false;
         this.moved = false;
-
-        String imageName = String.format("%s_%s.png",
-                getClass().getSimpleName().toLowerCase(),
-                color.toString().toLowerCase());
-        this.image = new ImageView(new Image(getClass().getResourceAsStream(imageName)));
-    }
-
-    public ImageView getImage() {
-        return this.image;
     }
 
     public void die() {
@@ -120,10 +113,31 @@ public abstract class Piece {
         this.moved = true;
     }
 
-    boolean getMoved() {
+    /**
+     * Put the piece on a square without it counting as a move,
+     * used by the board to try a move out
+     */
+    public void relocate(int row, int col) {
+        this.row = row;
+        this.col = col;
+    }
+
+    public boolean getMoved() {
         return this.moved;
     }
 
+    /**
+     * Count the piece as having moved, used when restoring a position
+     */
+    public void markMoved() {
+        this.moved = true;
+    }
+
+    /**
+     * @return upper case letter naming this kind of piece in snapshots
+     */
+    public abstract char getSymbol();
+
     ChessBoard getParent() {
         return this.parent;
     }
@@ -132,6 +146,30 @@ public abstract class Piece {
         return getClass().getSimpleName().toUpperCase();
     }
 
+    /**
+     * Create a piece from its snapshot letter
+     * @param symbol upper case letter from {@link #getSymbol()}
+     * @return the piece, null for an unknown letter
+     */
+    public static Piece fromSymbol(ChessBoard parent, ChessColor color, char symbol, int row, int col) {
+        switch (symbol) {
+            case 'P':
+                return new Pawn(parent, color, row, col);
+            case 'R':
+                return new Castle(parent, color, row, col);
+            case 'N':
+                return new Knight(parent, color, row, col);
+            case 'B':
+                return new Bishop(parent, color, row, col);
+            case 'Q':
+                return new Queen(parent, color, row, col);
+            case 'K':
+                return new King(parent, color, row, col);
+            default:
+                return null;
+        }
+    }
+
     public static Piece createPiece(ChessBoard parent, ChessColor color, String name, int row, int col) {
         Piece p = null;
         switch (name) {
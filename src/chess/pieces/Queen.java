@@ -8,6 +8,11 @@ public class Queen extends Piece {
         super(parent, color, startRow, startCol);
     }
 
+    @Override
+    public char getSymbol() {
+        return 'Q';
+    }
+
     @Override
     public boolean checkMove(int newRow, int newCol) {
         if (!super.checkMove(newRow, newCol))
@@ -0,0 +1,250 @@
+package gui;
+
+import chess.ChessBoard;
+import chess.ChessColor;
+import chess.pieces.Piece;
+import javafx.animation.AnimationTimer;
+import javafx.scene.canvas.Canvas;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.paint.Color;
+
+/**
+ * Draws the whole board on one canvas from the {@link SpriteAtlas}
+ * instead of a control per square. Squares are laid out like the button
+ * grid, row along x and column along y. Changes only mark squares dirty,
+ * the dirty ones are repainted on the next pulse and a piece that moved
+ * slides to its new square.
+ *
+ * Only touch it from the FX thread.
+ *
+ * @author Andrei Tumbar
+ */
+class BoardCanvas extends Canvas {
+    /**
+     * Called with the square the user clicked
+     */
+    interface SquareHandler {
+        void clicked(int row, int col);
+    }
+
+    /**
+     * How long a move slides for
+     */
+    private static final long SLIDE_NANOS = 150_000_000L;
+
+    private static final Color DARK = Color.GRAY;
+    private static final Color LIGHT = Color.WHITE;
+    private static final Color MOVE = Color.LIGHTGREEN;
+    private static final Color PREMOVE = Color.GOLD;
+
+    private ChessBoard model;
+    private SpriteAtlas atlas;
+    private double size;
+
+    /* What each square shows now, bit row * 8 + col */
+    private Piece[] drawn;
+    private Piece[] latest;
+    private long highlighted;
+    private long marked;
+    private long dirty;
+
+    /* The sliding piece, null when nothing moves */
+    private Piece sliding;
+    private int slideFrom;
+    private int slideTo;
+    private long slideStart;
+    private double slideX;
+    private double slideY;
+
+    private AnimationTimer timer;
+    private boolean running;
+
+    /**
+     * @param model board to draw
+     * @param size width and height of a square
+     */
+    BoardCanvas(ChessBoard model, double size) {
+        super(size * 8, size * 8);
+        this.model = model;
+        this.atlas = SpriteAtlas.get();
+        this.size = size;
+        this.drawn = new Piece[64];
+        this.latest = new Piece[64];
+        this.dirty = -1L;
+        this.timer = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                paint(now);
+            }
+        };
+        schedule();
+    }
+
+    /**
+     * Send clicks to a handler, a click outside the squares is ignored
+     * @param handler gets the square under the mouse
+     */
+    void setOnSquareClicked(SquareHandler handler) {
+        setOnMouseClicked(e -> {
+            int row = (int) (e.getX() / this.size);
+            int col = (int) (e.getY() / this.size);
+            if (row >= 0 && row < 8 && col >= 0 && col < 8)
+                handler.clicked(row, col);
+        });
+    }
+
+    /**
+     * Compare the model with what is on screen, mark the squares that
+     * differ and slide a piece that moved
+     */
+    void refresh() {
+        refresh(-1L);
+    }
+
+    /**
+     * Like {@link #refresh()} but only looks at some squares
+     * @param squares bit row * 8 + col for each square that may have changed
+     */
+    void refresh(long squares) {
+        for (int i = 0; i < 64; i++)
+            this.latest[i] = (squares & (1L << i)) != 0 ? this.model.pieceAt(i / 8, i % 8) : this.drawn[i];
+
+        /* A piece that is on a new square and gone from its old one slid there */
+        for (int i = 0; i < 64 && this.sliding == null; i++) {
+            Piece p = this.latest[i];
+            if (p == null || p == this.drawn[i])
+                continue;
+
+            int from = indexOf(p);
+            if (from >= 0 && this.latest[from] == null)
+                slide(p, from, i);
+        }
+
+        for (int i = 0; i < 64; i++) {
+            if (this.latest[i] != this.drawn[i]) {
+                this.drawn[i] = this.latest[i];
+                this.dirty |= 1L << i;
+            }
+        }
+
+        schedule();
+    }
+
+    /**
+     * Draw another board, only the squares that look different are repainted
+     * @param model board to draw from now on
+     */
+    void setModel(ChessBoard model) {
+        this.model = model;
+        /* The last frame of a slide left the sprite over these squares */
+        if (this.sliding != null) {
+            markUnder(this.slideX, this.slideY);
+            this.sliding = null;
+        }
+        refresh();
+    }
+
+    /**
+     * Shade the squares a selected piece can move to
+     * @param squares bit row * 8 + col for each square, 0 for none
+     */
+    void highlight(long squares) {
+        this.dirty |= this.highlighted ^ squares;
+        this.highlighted = squares;
+        schedule();
+    }
+
+    /**
+     * Mark the squares of queued premoves
+     * @param squares bit row * 8 + col for each square, 0 for none
+     */
+    void mark(long squares) {
+        this.dirty |= this.marked ^ squares;
+        this.marked = squares;
+        schedule();
+    }
+
+    private int indexOf(Piece p) {
+        for (int i = 0; i < 64; i++)
+            if (this.drawn[i] == p)
+                return i;
+        return -1;
+    }
+
+    private void slide(Piece p, int from, int to) {
+        this.sliding = p;
+        this.slideFrom = from;
+        this.slideTo = to;
+        this.slideStart = -1;
+        this.slideX = (from / 8) * this.size;
+        this.slideY = (from % 8) * this.size;
+    }
+
+    private void schedule() {
+        if (!this.running && (this.dirty != 0 || this.sliding != null)) {
+            this.running = true;
+            this.timer.start();
+        }
+    }
+
+    /**
+     * Repaint the dirty squares and move the sliding piece along
+     * @param now time of the pulse in nanoseconds
+     */
+    private void paint(long now) {
+        GraphicsContext g = getGraphicsContext2D();
+
+        if (this.sliding != null) {
+            /* Whatever the sprite covered last frame is repainted under it */
+            markUnder(this.slideX, this.slideY);
+            if (this.slideStart < 0)
+                this.slideStart = now;
+
+            double t = Math.min(1.0, (double) (now - this.slideStart) / SLIDE_NANOS);
+            this.slideX = ((this.slideFrom / 8) + ((this.slideTo / 8) - (this.slideFrom / 8)) * t) * this.size;
+            this.slideY = ((this.slideFrom % 8) + ((this.slideTo % 8) - (this.slideFrom % 8)) * t) * this.size;
+            if (t >= 1.0) {
+                this.dirty |= 1L << this.slideTo;
+                this.sliding = null;
+            }
+        }
+
+        for (long d = this.dirty; d != 0; d &= d - 1)
+            paintSquare(g, Long.numberOfTrailingZeros(d));
+        this.dirty = 0;
+
+        if (this.sliding != null)
+            this.atlas.draw(g, this.sliding, this.slideX, this.slideY, this.size);
+        else {
+            this.running = false;
+            this.timer.stop();
+        }
+    }
+
+    private void paintSquare(GraphicsContext g, int i) {
+        int row = i / 8, col = i % 8;
+        double x = row * this.size, y = col * this.size;
+
+        if ((this.highlighted & (1L << i)) != 0)
+            g.setFill(MOVE);
+        else if ((this.marked & (1L << i)) != 0)
+            g.setFill(PREMOVE);
+        else
+            g.setFill(this.model.get(row, col).getColor() == ChessColor.BLACK ? DARK : LIGHT);
+        g.fillRect(x, y, this.size, this.size);
+
+        Piece p = this.drawn[i];
+        if (p != null && p != this.sliding)
+            this.atlas.draw(g, p, x, y, this.size);
+    }
+
+    /**
+     * Mark the squares a sprite at this position covers
+     */
+    private void markUnder(double x, double y) {
+        int row = (int) (x / this.size), col = (int) (y / this.size);
+        for (int r = row; r <= Math.min(row + 1, 7); r++)
+            for (int c = col; c <= Math.min(col + 1, 7); c++)
+                this.dirty |= 1L << (r * 8 + c);
+    }
+}
@@ -6,15 +6,18 @@ import chess.ChessColor;
 import chess.pieces.*;
 import server.ChessException;
 import server.ChessProtocol;
+import server.FrameDecoder;
+import server.OpcodeTable;
 import server.PawnInterrupt;
+import server.SocketTransport;
+import server.Transport;
 
 import java.io.IOException;
-import java.io.PrintStream;
-import java.net.Socket;
-import java.util.NoSuchElementException;
-import java.util.Scanner;
-
-import static java.lang.Integer.parseInt;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * The client side network interface to a Reversi game server.
@@ -23,19 +26,80 @@ import static java.lang.Integer.parseInt;
  * triumvirate, in that part of its purpose is to forward user actions
  * to the remote server.
  *
+ * A client has no thread of its own. Its transport is driven by events,
+ * every socket in the process shares one selector thread, and messages
+ * are decoded in place and handed out through a table keyed by opcode.
+ *
  * @author Robert St Jacques @ RIT SE
  * @author Sean Strout @ RIT CS
  * @author James Heliotis @ RIT CS
  */
-public class ChessClient implements Runnable, ChessProtocol {
+public class ChessClient implements Transport.Handler, FrameDecoder.Handler, ChessProtocol {
 
     /**
      * Turn on if standard output debug messages are desired.
      */
     private static final boolean DEBUG = false;
 
+    /**
+     * How long to keep trying to resume a lost session
+     */
+    private static final long RECONNECT_MILLIS = 60000;
+
+    /**
+     * Longest message the server sends
+     */
+    private static final int MAX_FRAME_BYTES = 4096;
+
+    /**
+     * What to do with each message from the server, shared by every client.
+     */
+    private static final OpcodeTable<ChessClient> HANDLERS = new OpcodeTable<ChessClient>()
+            .on( CONNECT, ChessClient::connect )
+            .on( LEGAL_MOVES, ChessClient::legalMoves )
+            .on( MAKE_MOVE, ( client, frame ) -> client.makeMove() )
+            .on( CHOOSE, ChessClient::choose )
+            .on( STARTGAME, ( client, frame ) -> client.startGame() )
+            .on( CHOSE, ChessClient::chose )
+            .on( MOVE_MADE, ChessClient::moveMade )
+            .on( SNAPSHOT, ChessClient::snapshot )
+            .on( CLOCK, ChessClient::clock )
+            // GAME_WON or GAME_LOST follows.
+            .on( FLAG_FALL, ( client, frame ) -> dPrint( frame.getRest( 1 ) + " ran out of time" ) )
+            .on( GAME_WON, ( client, frame ) -> client.gameWon() )
+            .on( GAME_LOST, ( client, frame ) -> client.gameLost() )
+            .on( GAME_TIED, ( client, frame ) -> client.gameTied() )
+            .on( ERROR, ( client, frame ) -> client.error( frame.getRest( 1 ) ) );
+
     private ChessColor playerColor;
 
+    /**
+     * Where the server lives and how to resume the session with it.
+     * The token is 0 if the server does not support resuming.
+     */
+    private String hostname;
+    private long token;
+    private int resumePort;
+
+    /**
+     * Number of STARTGAME, MOVE_MADE and CHOSE messages received so far
+     */
+    private int seen;
+
+    /**
+     * Set once the board stopped matching the hash the server sent, until
+     * the snapshot that replaces it arrives. Nothing is played on it
+     * meanwhile.
+     */
+    private volatile boolean resyncing;
+
+    /**
+     * Time left on the BLACK and WHITE clocks at the start of the turn,
+     * -1 in untimed games
+     */
+    private long blackMillis = -1;
+    private long whiteMillis = -1;
+
     /**
      * Print method that does something only if DEBUG is true
      *
@@ -48,19 +112,39 @@ public class ChessClient implements Runnable, ChessProtocol {
     }
 
     /**
-     * The {@link Socket} used to communicate with the reversi server.
+     * The {@link Transport} used to communicate with the reversi server.
+     */
+    private Transport transport;
+
+    /**
+     * Splits what the transport reads into requests from the server.
      */
-    private Socket sock;
+    private FrameDecoder networkIn;
 
     /**
-     * The {@link Scanner} used to read requests from the reversi server.
+     * Responses the transport has not taken yet, written when it has room.
      */
-    private Scanner networkIn;
+    private ArrayDeque<ByteBuffer> networkOut = new ArrayDeque<>();
 
     /**
-     * The {@link PrintStream} used to write responses to the reversi server.
+     * Requests after CONNECT wait until the UI starts listening.
      */
-    private PrintStream networkOut;
+    private boolean listening;
+
+    /**
+     * The connection ended before the UI started listening.
+     */
+    private boolean lostEarly;
+
+    /**
+     * Set once the connection and the game are closed.
+     */
+    private boolean closed;
+
+    /**
+     * Moves the user picked during the opponent's turn, oldest first.
+     */
+    private Queue<int[]> premoves = new ConcurrentLinkedQueue<>();
 
     /**
      * The {@link ChessBoard} used to keep track of the state of the game.
@@ -93,8 +177,7 @@ public class ChessClient implements Runnable, ChessProtocol {
      * two players to connect. Because of the nature of the server
      * protocol, this constructor actually blocks waiting for the first
      * message from the server that tells it how big the board will be.
-     * Afterwards a thread that listens for server messages and forwards
-     * them to the game object is started.
+     * Later messages are held until {@link #startListener()}.
      *
      * @param hostname the name of the host running the server program
      * @param port     the port of the server socket on which the server is
@@ -105,32 +188,65 @@ public class ChessClient implements Runnable, ChessProtocol {
      */
     ChessClient( String hostname, int port, ChessBoard model )
             throws ChessException {
+        this( open( hostname, port ), hostname, model );
+    }
+
+    /**
+     * Play over a transport that is already connected to a server, for
+     * example one end of a {@link server.Loopback} pair.
+     *
+     * @param transport connection to the server, not started yet
+     * @param hostname  where to resume a lost session, null to not resume
+     * @param model     the local object holding the state of the game
+     * @throws ChessException If there is a problem using the connection
+     */
+    ChessClient( Transport transport, String hostname, ChessBoard model )
+            throws ChessException {
+        this.hostname = hostname;
+        this.transport = transport;
+        this.networkIn = new FrameDecoder( MAX_FRAME_BYTES );
+        this.game = model;
+        this.go = true;
+        transport.start( this );
+
+        // Block waiting for the CONNECT message from the server.
+        synchronized ( this ) {
+            try {
+                while ( this.playerColor == null && this.goodToGo() )
+                    this.wait();
+            }
+            catch ( InterruptedException e ) {
+                transport.close();
+                throw new ChessException( e );
+            }
+        }
+
+        if ( this.playerColor == null ) {
+            transport.close();
+            throw new ChessException( "No CONNECT from server " + transport );
+        }
+        ChessClient.dPrint( "Connected to server " + this.transport );
+    }
+
+    private static Transport open( String hostname, int port )
+            throws ChessException {
         try {
-            this.sock = new Socket( hostname, port );
-            this.networkIn = new Scanner( sock.getInputStream() );
-            this.networkOut = new PrintStream( sock.getOutputStream() );
-            this.game = model;
-            this.go = true;
-
-            // Block waiting for the CONNECT message from the server.
-            String request = this.networkIn.next();
-            String arguments = this.networkIn.nextLine();
-            assert request.equals( ChessProtocol.CONNECT ) :
-                    "CONNECT not 1st";
-            ChessClient.dPrint( "Connected to server " + this.sock );
-            this.connect( arguments );
+            return SocketTransport.connect( hostname, port );
         }
         catch( IOException e ) {
             throw new ChessException( e );
         }
     }
 
-    void startListener() {
-        // Run rest of client in separate thread.
-        // This threads stops on its own at the end of the game and
-        // does not need to rendezvous with other software components.
-        Thread netThread = new Thread( this );
-        netThread.start();
+    /**
+     * Start handing the requests after CONNECT to the game, the ones that
+     * arrived in the meantime first.
+     */
+    synchronized void startListener() {
+        this.listening = true;
+        this.decode();
+        if ( this.lostEarly )
+            this.lost();
     }
 
     ChessColor getPlayerColor() {
@@ -139,18 +255,57 @@ public class ChessClient implements Runnable, ChessProtocol {
 
 
     /**
-     * Called by the constructor to set up the game board for this player now
-     * that the server has sent the board dimensions with the
+     * Called while the constructor waits to set up the game board for this
+     * player now that the server has sent the board dimensions with the
      * {@link ChessProtocol#CONNECT} request.
      *
-     * @param arguments string from the server's message that
-     *                  contains the square dimension of the board
+     * @param frame the server's message, the color of this player then
+     *              the resume token and port if the server has them
      */
-    private void connect( String arguments ) {
-        playerColor = arguments.trim().equals("WHITE") ? ChessColor.WHITE : ChessColor.BLACK;
+    private void connect( FrameDecoder frame ) {
+        // This should not happen because it is the first message.
+        assert this.playerColor == null : "CONNECT already happened?";
+        if ( frame.size() == 4 ) {
+            this.token = frame.getHex( 2 );
+            this.resumePort = frame.getInt( 3 );
+        }
 
         // Get the board state set up.
         this.game.initBoard(); // may throw exception
+        playerColor = frame.getString( 1 ).equals("WHITE") ? ChessColor.WHITE : ChessColor.BLACK;
+
+        // Let the server work out our moves each turn, it has to anyway.
+        this.send( LEGAL_MOVES + '\n' );
+    }
+
+    /**
+     * The server paired this player with an opponent.
+     */
+    private void startGame() {
+        this.game.start();
+        this.seen++;
+    }
+
+    /**
+     * The server sent this player's moves for the turn it is about to
+     * ask for, so the board does not have to work them out.
+     *
+     * @param frame a mask of the squares that can move, then the squares
+     *              each of them can move to
+     */
+    private void legalMoves( FrameDecoder frame ) {
+        // Without a whole list the board works the moves out itself.
+        long from = frame.size() > 1 ? frame.getHex( 1 ) : 0;
+        if ( frame.size() != 2 + Long.bitCount( from ) ) {
+            dPrint( "Malformed move list: " + frame );
+            return;
+        }
+
+        long[] moves = new long[ 64 ];
+        int field = 2;
+        for ( ; from != 0; from &= from - 1 )
+            moves[ Long.numberOfTrailingZeros( from ) ] = frame.getHex( field++ );
+        this.game.setLegalMoves( moves );
     }
 
     /**
@@ -158,24 +313,76 @@ public class ChessClient implements Runnable, ChessProtocol {
      * the user is up to the View (UI).
      */
     private void makeMove() {
+        // The server asks again once it sent the position.
+        if ( this.resyncing )
+            return;
+
+        // Play the first premove straight away if it is still legal.
+        int[] premove = this.premoves.poll();
+        if ( premove != null ) {
+            this.game.updateLegalMoves();
+            boolean legal = ( this.game.getLegalMoves( premove[ 0 ], premove[ 1 ] )
+                    & ( 1L << ( premove[ 2 ] * 8 + premove[ 3 ] ) ) ) != 0;
+            if ( legal && this.game.moveOptimistic( premove[ 0 ], premove[ 1 ], premove[ 2 ], premove[ 3 ] ) ) {
+                this.sendMove( premove[ 0 ], premove[ 1 ], premove[ 2 ], premove[ 3 ] );
+                return;
+            }
+
+            // The position changed under the premoves, drop them all.
+            this.premoves.clear();
+        }
+
         this.game.makeMove();
     }
 
+    /**
+     * Queue a move to be played as soon as the server asks for one.
+     *
+     * @param startRow row of the piece
+     * @param startCol column of the piece
+     * @param row      row to move to
+     * @param col      column to move to
+     */
+    void queuePremove( int startRow, int startCol, int row, int col ) {
+        this.premoves.add( new int[]{ startRow, startCol, row, col } );
+    }
+
+    /**
+     * Forget every queued premove.
+     */
+    void clearPremoves() {
+        this.premoves.clear();
+    }
+
+    /**
+     * @return the squares of every queued premove, bit row * 8 + col
+     */
+    long getPremoveSquares() {
+        long squares = 0;
+        for ( int[] premove : this.premoves )
+            squares |= ( 1L << ( premove[ 0 ] * 8 + premove[ 1 ] ) ) | ( 1L << ( premove[ 2 ] * 8 + premove[ 3 ] ) );
+        return squares;
+    }
+
     /**
      * A move has been made by one of the players
      *
-     * @param arguments string from the server's message that
-     *                  contains the row, then column where the
-     *                  player made the move
+     * @param frame the server's message with the row, then column
+     *              the piece left and the row, then column it went to
      */
-    private void moveMade( String arguments ) {
-        ChessClient.dPrint( '!' + MOVE_MADE + ',' + arguments );
+    private void moveMade( FrameDecoder frame ) {
+        ChessClient.dPrint( '!' + frame.toString() );
+
+        int startRow = frame.getInt( 1 );
+        int startCol = frame.getInt( 2 );
+        int row = frame.getInt( 3 );
+        int column = frame.getInt( 4 );
+        this.seen++;
+        if ( this.resyncing )
+            return;
 
-        String[] fields = arguments.trim().split( " " );
-        int startRow = parseInt( fields[ 0 ] );
-        int startCol = parseInt( fields[ 1 ] );
-        int row = parseInt( fields[ 2 ] );
-        int column = parseInt( fields[ 3 ] );
+        // The server hashes its position after the move, older servers do not.
+        boolean hashed = frame.size() > 5;
 
         // Update the board model.
         try {
@@ -186,9 +393,28 @@ public class ChessClient implements Runnable, ChessProtocol {
                 this.game.choosePiece(this.game.pieceAt(row, column));
         }
         catch (ChessException e) {
+            if ( hashed ) {
+                this.resync();
+                return;
+            }
             e.printStackTrace();
             error("Chess Exception");
+            return;
         }
+
+        if ( hashed && frame.getHex( 5 ) != this.game.hash() )
+            this.resync();
+    }
+
+    /**
+     * The board no longer matches the server's. Stop playing on it and
+     * ask for the position, the server sends it when it is our turn.
+     */
+    private void resync() {
+        dPrint( "Board out of step with the server, asking for a snapshot" );
+        this.resyncing = true;
+        this.premoves.clear();
+        this.send( RESYNC + '\n' );
     }
 
     /**
@@ -225,28 +451,125 @@ public class ChessClient implements Runnable, ChessProtocol {
         this.stop();
     }
 
-    private void choose(String arguments) {
-        String[] args = arguments.split(" ");
-        this.game.choosePiece(game.pieceAt(parseInt(args[0]), parseInt(args[1])));
+    private void choose(FrameDecoder frame) {
+        this.game.choosePiece(game.pieceAt(frame.getInt(1), frame.getInt(2)));
     }
 
     void sendChose(Piece p) {
-        System.out.printf("%s %s %s %d %d\n", CHOSE, p.getName(), p.getColor().name(), p.getRow(), p.getCol());
-        this.networkOut.printf("%s %s %s %d %d\n", CHOSE, p.getName(), p.getColor().name(), p.getRow(), p.getCol());
+        String line = CHOSE + ' ' + p.getName() + ' ' + p.getColor().name() + ' ' + p.getRow() + ' ' + p.getCol() + '\n';
+        System.out.print(line);
+        this.send(line);
     }
 
-    private void chose(String arguments) {
-        String[] args = arguments.split(" ");
+    private void chose(FrameDecoder frame) {
+        this.seen++;
+        if ( this.resyncing )
+            return;
+
         Piece p = Piece.createPiece(
                 game,
-                ChessColor.valueOf(args[2]),
-                args[1],
-                parseInt(args[3]),
-                parseInt(args[4]));
+                ChessColor.valueOf(frame.getString(2)),
+                frame.getString(1),
+                frame.getInt(3),
+                frame.getInt(4));
 
         this.game.chosePiece(p);
     }
 
+    /**
+     * The server replaced the messages we missed while disconnected
+     * with the current position.
+     *
+     * @param frame number of messages replaced and the snapshot
+     */
+    private void snapshot( FrameDecoder frame ) {
+        this.premoves.clear();
+        try {
+            this.game.loadSnapshot( frame.getRest( 2 ) );
+            this.seen = frame.getInt( 1 );
+            this.resyncing = false;
+        }
+        catch ( ChessException | IllegalArgumentException e ) {
+            error( "Bad snapshot from server" );
+        }
+    }
+
+    /**
+     * The server sent the time left on both clocks for this turn.
+     *
+     * @param frame milliseconds left for BLACK then WHITE
+     */
+    private void clock( FrameDecoder frame ) {
+        this.blackMillis = frame.getLong( 1 );
+        this.whiteMillis = frame.getLong( 2 );
+        ChessClient.dPrint( '!' + frame.toString() );
+    }
+
+    /**
+     * @return milliseconds left for this player as of the start of the turn, -1 if untimed
+     */
+    long getTimeLeft() {
+        return this.playerColor == ChessColor.BLACK ? this.blackMillis : this.whiteMillis;
+    }
+
+    /**
+     * The connection dropped, try to resume on a thread of its own so
+     * the other clients sharing the selector carry on meanwhile.
+     */
+    private void lost() {
+        if ( this.token == 0 || this.hostname == null ) {
+            this.error( "Lost connection to server." );
+            this.close();
+            return;
+        }
+
+        Thread resumer = new Thread( () -> {
+            if ( !this.resume() ) {
+                synchronized ( this ) {
+                    this.error( "Lost connection to server." );
+                    this.close();
+                }
+            }
+        }, "ChessClient-resume" );
+        resumer.start();
+    }
+
+    /**
+     * Try to get back into the game after the connection dropped.
+     *
+     * @return true if a new connection was made and RESUME sent
+     */
+    private boolean resume() {
+        long deadline = System.currentTimeMillis() + RECONNECT_MILLIS;
+        while ( System.currentTimeMillis() < deadline ) {
+            try {
+                Transport resumed = SocketTransport.connect( this.hostname, this.resumePort );
+                synchronized ( this ) {
+                    this.transport.close();
+                    this.transport = resumed;
+                    this.networkIn.clear();
+                    this.networkOut.clear();
+                    resumed.start( this );
+                    // A board out of step asks for the position instead of what it missed.
+                    this.send( RESUME + ' ' + Long.toHexString( this.token ) + ' '
+                            + ( this.resyncing ? -1 : this.seen ) + '\n' );
+                }
+                ChessClient.dPrint( "Resumed session on " + resumed );
+                return true;
+            }
+            catch ( IOException e ) {
+                try {
+                    Thread.sleep( 1000 );
+                }
+                catch ( InterruptedException ie ) {
+                    return false;
+                }
+            }
+        }
+
+        return false;
+    }
+
     /**
      * Called when the server sends a message saying that
      * gameplay is damaged. Ends the game.
@@ -264,13 +587,12 @@ public class ChessClient implements Runnable, ChessProtocol {
      * This method should be called at the end of the game to
      * close the client connection.
      */
-    private void close() {
-        try {
-            this.sock.close();
-        }
-        catch( IOException ioe ) {
-            // squash
-        }
+    private synchronized void close() {
+        if ( this.closed )
+            return;
+
+        this.closed = true;
+        this.transport.close();
         this.game.close();
     }
 
@@ -281,74 +603,119 @@ public class ChessClient implements Runnable, ChessProtocol {
      * @param col the column
      */
     void sendMove( int startRow, int startCol, int row, int col ) {
-        this.networkOut.printf("%s %d %d %d %d\n", MOVE, startRow, startCol, row, col);
+        // The snapshot on its way takes the move back off the board.
+        if ( this.resyncing )
+            return;
+        this.send( MOVE + ' ' + startRow + ' ' + startCol + ' ' + row + ' ' + col + '\n' );
     }
 
     /**
-     * Run the main client loop. Intended to be started as a separate
-     * thread internally. This method is made private so that no one
-     * outside will call it or try to start a thread on it.
+     * Write a response, whatever the transport does not take now is
+     * written when it has room.
+     *
+     * @param line the response with its newline
      */
-    public void run() {
-        String startgame = this.networkIn.nextLine();
-        if (startgame.equals(STARTGAME))
-            game.start();
+    private synchronized void send( String line ) {
+        this.networkOut.add( ByteBuffer.wrap( line.getBytes( StandardCharsets.US_ASCII ) ) );
+        if ( this.networkOut.size() == 1 && !this.onWritable() )
+            this.transport.wantWrite();
+    }
 
-        while ( this.goodToGo() ) {
-            try {
-                String request = this.networkIn.next();
-                String arguments = this.networkIn.nextLine().trim();
-                ChessClient.dPrint( "Net message in = \"" + request + '"' );
-
-                switch ( request ) {
-                    case CONNECT:
-                        // This should not happen because ChessClient
-                        // waits for the CONNECT message in the constructor.
-                        assert false : "CONNECT already happened?";
-                        connect( arguments );
-                        break;
-                    case MAKE_MOVE:
-                        makeMove();
-                        break;
-                    case CHOOSE:
-                        choose(arguments);
-                        break;
-                    case CHOSE:
-                        chose(arguments);
-                        break;
-                    case MOVE_MADE:
-                        moveMade( arguments );
-                        break;
-                    case GAME_WON:
-                        gameWon();
-                        break;
-                    case GAME_LOST:
-                        gameLost();
-                        break;
-                    case GAME_TIED:
-                        gameTied();
-                        break;
-                    case ERROR:
-                        error( arguments );
-                        break;
-                    default:
-                        System.err
-                                .println( "Unrecognized request: " + request );
-                        this.stop();
-                        break;
-                }
-            }
-            catch( NoSuchElementException nse ) {
-                // Looks like the connection shut down.
-                this.error( "Lost connection to server." );
+    /**
+     * Called when the transport takes bytes again.
+     *
+     * @return true once every response is written
+     */
+    @Override
+    public synchronized boolean onWritable() {
+        try {
+            this.transport.write( this.networkOut.toArray( new ByteBuffer[ 0 ] ) );
+        }
+        catch ( IOException e ) {
+            // The read side notices the connection is gone and resumes.
+            this.networkOut.clear();
+            return true;
+        }
+
+        while ( !this.networkOut.isEmpty() && !this.networkOut.peek().hasRemaining() )
+            this.networkOut.poll();
+        return this.networkOut.isEmpty();
+    }
+
+    /**
+     * Called when the transport has bytes from the server.
+     */
+    @Override
+    public synchronized void onReadable() {
+        if ( this.closed )
+            return;
+
+        int n;
+        try {
+            n = this.networkIn.read( this.transport );
+        }
+        catch ( IOException e ) {
+            n = -1;
+        }
+
+        if ( n < 0 ) {
+            if ( this.playerColor == null ) {
+                // The constructor gives up.
                 this.stop();
+                this.notifyAll();
             }
-            catch( Exception e ) {
+            else if ( !this.listening )
+                this.lostEarly = true;
+            else if ( this.goodToGo() )
+                this.lost();
+            return;
+        }
+
+        this.decode();
+    }
+
+    /**
+     * Hand every complete request to its handler, then close the
+     * connection if one of them ended the game.
+     */
+    private void decode() {
+        if ( !this.networkIn.decode( this ) )
+            this.error( "Message from server too long" );
+        if ( !this.goodToGo() )
+            this.close();
+    }
+
+    /**
+     * Handle one request from the server.
+     *
+     * @param frame the request, its fields decoded in place
+     * @return false to hold this request and the ones after it
+     */
+    @Override
+    public boolean frame( FrameDecoder frame ) {
+        // Wake the constructor after CONNECT, hold the rest for the UI.
+        if ( this.playerColor != null && !this.listening )
+            return false;
+
+        OpcodeTable.Action<ChessClient> handler = HANDLERS.get( frame );
+        ChessClient.dPrint( "Net message in = \"" + frame + '"' );
+        if ( handler == null ) {
+            System.err.println( "Unrecognized request: " + frame );
+            this.stop();
+        }
+        else {
+            try {
+                handler.run( this, frame );
+            }
+            catch( RuntimeException e ) {
                 this.error( e.getMessage() + '?' );
-                this.stop();
             }
         }
-        this.close();
+
+        // The constructor waits for CONNECT or the end.
+        if ( !this.listening )
+            this.notifyAll();
+        return this.goodToGo();
     }
 
-}
\ No newline at end of file
+}
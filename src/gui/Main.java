@@ -1,7 +1,9 @@
 package gui;
 
+import chess.BoardDelta;
 import chess.ChessBoard;
 import chess.ChessColor;
+import chess.Observer;
 import chess.Place;
 import chess.pieces.*;
 import javafx.application.Application;
@@ -14,6 +16,7 @@ import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.Slider;
 import javafx.scene.layout.*;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
@@ -26,7 +29,7 @@ import server.ChessException;
  *
  * @author Andrei Tumbar
  */
-public class Main extends Application implements Observer<ChessBoard> {
+public class Main extends Application implements Observer<BoardDelta> {
 
     /**
      * Connection to network interface to server
@@ -36,16 +39,29 @@ public class Main extends Application implements Observer<ChessBoard> {
 
     private Label turnLabel;
     private Label checkLabel;
+    private Label plyLabel;
+    private Slider scrubber;
     private Stage mainStage;
     private Popup choosePieceWindow;
 
     private Background black = new Background(new BackgroundFill(Color.GRAY, CornerRadii.EMPTY, Insets.EMPTY));
     private Background white = new Background(new BackgroundFill(Color.WHITE, CornerRadii.EMPTY, Insets.EMPTY));
     private Background green = new Background(new BackgroundFill(Color.LIGHTGREEN, CornerRadii.EMPTY, Insets.EMPTY));
+    private Background gold = new Background(new BackgroundFill(Color.GOLD, CornerRadii.EMPTY, Insets.EMPTY));
 
+    private boolean useCanvas;
     private ChessButton[][] chessButtons;
+    private BoardCanvas boardCanvas;
     private Piece currentSelect;
 
+    /* Earlier position being looked at, null while the live game is shown */
+    private ChessBoard viewing;
+
+    /* Squares the selected piece may move to, bit row * 8 + col */
+    private long moves;
+    private long premoves;
+    private boolean locked;
+
     /**
      * Create the board model, create the network connection based on
      * command line parameters, and use the first message received to
@@ -58,8 +74,10 @@ public class Main extends Application implements Observer<ChessBoard> {
         // get host info and username from command line
         String host = args.get(0);
         int port = Integer.parseInt(args.get(1));
+        useCanvas = args.contains("--canvas");
 
         model = new ChessBoard();
+        model.setDispatcher(Platform::runLater);
 
         try {
             serverConn = new ChessClient(host, port, model);
@@ -73,25 +91,35 @@ public class Main extends Application implements Observer<ChessBoard> {
     public void start( Stage __mainStage ) {
         VBox topBox = new VBox();
         HBox labelBox = new HBox();
-        GridPane chessGrid = new GridPane();
 
         this.mainStage = __mainStage;
         choosePieceWindow = null;
 
-        chessButtons = new ChessButton[8][8];
         model.initBoard();
 
-        for (int row = 0; row < 8; row++) {
-            for (int col = 0; col < 8; col++) {
-                ChessButton but = new ChessButton(row, col);
-                but.setOnAction(this::handleButton);
-                but.setMinSize(70, 70);
-                but.setMaxSize(70, 70);
-                chessGrid.add(but, row, col);
-                chessButtons[row][col] = but;
-
-                setGraphic(model, but);
+        if (useCanvas) {
+            /* One node and one texture for the whole board */
+            boardCanvas = new BoardCanvas(model, 70);
+            boardCanvas.setOnSquareClicked(this::handleSquare);
+            boardCanvas.refresh();
+            topBox.getChildren().add(boardCanvas);
+        }
+        else {
+            GridPane chessGrid = new GridPane();
+            chessButtons = new ChessButton[8][8];
+            for (int row = 0; row < 8; row++) {
+                for (int col = 0; col < 8; col++) {
+                    ChessButton but = new ChessButton(row, col);
+                    but.setOnAction(this::handleButton);
+                    but.setMinSize(70, 70);
+                    but.setMaxSize(70, 70);
+                    chessGrid.add(but, row, col);
+                    chessButtons[row][col] = but;
+
+                    setGraphic(model, but);
+                }
             }
+            topBox.getChildren().add(chessGrid);
         }
 
         turnLabel = new Label("Waiting for player connection");
@@ -104,8 +132,21 @@ public class Main extends Application implements Observer<ChessBoard> {
 
         labelBox.setSpacing(25);
 
-        topBox.getChildren().add(chessGrid);
+        /* Drag back through the game, the far right is the live position */
+        HBox historyBox = new HBox();
+        scrubber = new Slider(0, 0, 0);
+        scrubber.setBlockIncrement(1);
+        scrubber.setMajorTickUnit(1);
+        scrubber.setMinorTickCount(0);
+        scrubber.setSnapToTicks(true);
+        scrubber.setPrefWidth(440);
+        scrubber.valueProperty().addListener((obs, old, value) -> seek((int) Math.round(value.doubleValue())));
+        plyLabel = new Label("Ply 0 of 0");
+        historyBox.getChildren().addAll(scrubber, plyLabel);
+        historyBox.setSpacing(25);
+
         topBox.getChildren().add(labelBox);
+        topBox.getChildren().add(historyBox);
         Scene mainScene = new Scene(topBox);
         mainStage.setScene(mainScene);
 
@@ -126,31 +167,70 @@ public class Main extends Application implements Observer<ChessBoard> {
         return serverConn.getPlayerColor();
     }
     
-    private synchronized void handleButton(ActionEvent e) {
+    private void handleButton(ActionEvent e) {
         ChessButton parentButton = (ChessButton)e.getSource();
+        handleSquare(parentButton.getRow(), parentButton.getCol());
+    }
+
+    private synchronized void handleSquare(int row, int col) {
+        /* Buttons are disabled instead, the canvas takes every click */
+        if (!clickable(row, col))
+            return;
+
         if (currentSelect != null
-                && parentButton.getCol() == currentSelect.getCol()
-                && parentButton.getRow() == currentSelect.getRow()) {
+                && col == currentSelect.getCol()
+                && row == currentSelect.getRow()) {
             // Disable this move (make a different one)
-            for (int row = 0; row < 8; row++)
-                for (int col = 0; col < 8; col++)
-                    setGraphic(this.model, chessButtons[row][col]);
-            currentSelect = null;
+            redraw();
         }
         else if (currentSelect != null) {
-            // No longer your turn (you made a move)
-            disableBoard();
-            this.serverConn.sendMove(
-                    currentSelect.getRow(), currentSelect.getCol(), // Piece to move
-                    parentButton.getRow(), parentButton.getCol());
-            currentSelect = null;
+            int startRow = currentSelect.getRow(), startCol = currentSelect.getCol();
+            if (model.isMyTurn()) {
+                // Show the move now, the server's echo confirms it
+                if (!model.moveOptimistic(startRow, startCol, row, col))
+                    disableBoard();
+                this.serverConn.sendMove(startRow, startCol, row, col);
+                currentSelect = null;
+            }
+            else {
+                // Played as soon as the server asks for a move
+                this.serverConn.queuePremove(startRow, startCol, row, col);
+                redraw();
+            }
+        }
+        else if ((premoves & (1L << (row * 8 + col))) != 0) {
+            // Clicking a premove takes all of them back
+            this.serverConn.clearPremoves();
+            redraw();
         }
         else {
-            currentSelect = model.pieceAt(parentButton.getRow(), parentButton.getCol());
+            currentSelect = model.pieceAt(row, col);
             showMoves();
         }
     }
 
+    /**
+     * Can the user click a square, the same squares the buttons leave enabled
+     */
+    private boolean clickable(int row, int col) {
+        if (locked || viewing != null)
+            return false;
+        if (currentSelect != null)
+            return (moves & (1L << (row * 8 + col))) != 0
+                    || (row == currentSelect.getRow() && col == currentSelect.getCol());
+
+        Piece p = model.pieceAt(row, col);
+        return p != null && p.getColor() == getColor() && (model.isMyTurn() || premoving());
+    }
+
+    /**
+     * Moves picked now are queued until the server asks for one
+     */
+    private boolean premoving() {
+        return !model.isMyTurn() && model.getStatus() == null && !model.awaitingPromotion()
+                && !model.hasPendingMove();
+    }
+
     ChessBoard getModel() {
         return model;
     }
@@ -162,12 +242,12 @@ public class Main extends Application implements Observer<ChessBoard> {
     /**
      * Launch the JavaFX GUI.
      *
-     * @param args not used, here, but named arguments are passed to the GUI.
-     *             <code>--host=<i>hostname</i> --port=<i>portnum</i></code>
+     * @param args host and port of the server, then <code>--canvas</code>
+     *             to draw the board on a single canvas instead of buttons
      */
     public static void main( String[] args ) {
-        if (args.length != 2) {
-            System.out.println("Usage: java GUI_Client2 host port");
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java GUI_Client2 host port [--canvas]");
             System.exit(0);
         } else {
             Application.launch(args);
@@ -175,19 +255,125 @@ public class Main extends Application implements Observer<ChessBoard> {
     }
 
     private void disableBoard() {
+        locked = true;
+        if (chessButtons == null)
+            return;
+
         for (int row = 0; row < 8; row++)
             for (int col = 0; col < 8; col++)
                 chessButtons[row][col].setDisable(true);
     }
 
+    /**
+     * Show the model with nothing selected
+     */
+    private void redraw() {
+        if (viewing != null)
+            return;
+
+        currentSelect = null;
+        locked = false;
+        moves = 0;
+        premoves = serverConn.getPremoveSquares();
+        if (boardCanvas != null) {
+            boardCanvas.highlight(0);
+            boardCanvas.mark(premoves);
+            boardCanvas.refresh();
+            return;
+        }
+
+        for (int row = 0; row < 8; row++)
+            for (int col = 0; col < 8; col++)
+                setGraphic(this.model, chessButtons[row][col]);
+    }
+
+    /**
+     * Show the pieces on some squares, the selection stays
+     * @param squares bit row * 8 + col for each square to show
+     */
+    private void redraw(long squares) {
+        if (viewing != null)
+            return;
+
+        if (boardCanvas != null) {
+            boardCanvas.refresh(squares);
+            return;
+        }
+
+        for (long s = squares; s != 0; s &= s - 1) {
+            int i = Long.numberOfTrailingZeros(s);
+            ChessButton b = chessButtons[i / 8][i % 8];
+            setGraphic(this.model, b);
+            if (locked)
+                b.setDisable(true);
+        }
+    }
+
+    /**
+     * Show the position after some plies, or the live game for the last one
+     * @param ply number of plies played in the position to show
+     */
+    private void seek(int ply) {
+        int size = model.getHistory().size();
+        plyLabel.setText("Ply " + Math.min(ply, size) + " of " + size);
+        if (ply >= size) {
+            if (viewing != null) {
+                viewing = null;
+                if (boardCanvas != null)
+                    boardCanvas.setModel(model);
+                redraw();
+            }
+            return;
+        }
+
+        try {
+            viewing = model.getHistory().positionAt(ply);
+        } catch (ChessException e) {
+            return;
+        }
+
+        currentSelect = null;
+        moves = 0;
+        if (boardCanvas != null) {
+            boardCanvas.highlight(0);
+            boardCanvas.setModel(viewing);
+            return;
+        }
+
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                setGraphic(viewing, chessButtons[row][col]);
+                chessButtons[row][col].setDisable(true);
+            }
+        }
+    }
+
+    /**
+     * Stretch the scrubber over new plies, following the game unless the user went back
+     */
+    private void updateScrubber() {
+        int size = model.getHistory().size();
+        if (size == (int) scrubber.getMax())
+            return;
+
+        boolean live = viewing == null;
+        scrubber.setMax(size);
+        if (live)
+            scrubber.setValue(size);
+        plyLabel.setText("Ply " + (int) Math.round(scrubber.getValue()) + " of " + size);
+    }
+
     private void setGraphic(ChessBoard model, ChessButton b) {
         Place m = model.get(b.getRow(), b.getCol());
 
-        b.setBackground(m.getColor() == ChessColor.BLACK ? black : white);
+        if ((premoves & (1L << (b.getRow() * 8 + b.getCol()))) != 0)
+            b.setBackground(gold);
+        else
+            b.setBackground(m.getColor() == ChessColor.BLACK ? black : white);
         Piece p = m.getPiece();
         if (p != null) {
-            b.setGraphic(p.getImage());
-            if (p.getColor() == getColor() && model.isMyTurn())
+            b.setGraphic(SpriteAtlas.get().view(p));
+            if (p.getColor() == getColor() && (model.isMyTurn() || premoving()))
                 b.setDisable(false);
             else
                 b.setDisable(true);
@@ -202,9 +388,26 @@ public class Main extends Application implements Observer<ChessBoard> {
         Piece p = this.model.pieceAt(currentSelect.getRow(), currentSelect.getCol());
         if (p == null)
             return;
+
+        moves = 0;
+        if (model.isMyTurn())
+            moves = model.getLegalMoves(p.getRow(), p.getCol());
+        else {
+            /* The position the premove will be played in is not known yet */
+            for (int row = 0; row < 8; row++)
+                for (int col = 0; col < 8; col++)
+                    if (p.checkMove(row, col))
+                        moves |= 1L << (row * 8 + col);
+        }
+
+        if (boardCanvas != null) {
+            boardCanvas.highlight(moves);
+            return;
+        }
+
         for (int row = 0; row < 8; row++) {
             for (int col = 0; col < 8; col++) {
-                if (p.checkMove(row, col)) {
+                if ((moves & (1L << (row * 8 + col))) != 0) {
                     chessButtons[row][col].setDisable(false);
                     chessButtons[row][col].setBackground(green);
                 }
@@ -242,36 +445,44 @@ public class Main extends Application implements Observer<ChessBoard> {
     }
 
     @Override
-    public synchronized void update(ChessBoard board) {
-        if (model.isMyTurn())
-            this.turnLabel.setText("Your turn");
-        else
-            this.turnLabel.setText("Opponents turn");
-
-        if (model.getStatus() == ChessBoard.Status.I_WON)
-            this.turnLabel.setText("You won, Yay!");
-        else if (model.getStatus() == ChessBoard.Status.TIE)
-            this.turnLabel.setText("You tied, Meh.");
-        else if (model.getStatus() == ChessBoard.Status.I_LOST)
-            this.turnLabel.setText("You lost, Boo!");
-        else if (model.getStatus() == ChessBoard.Status.ERROR)
-            this.turnLabel.setText("Opponent disconnected, they suck");
-
-        if (model.check(getColor()))
-            this.checkLabel.setText("Check!!");
-        else
-            this.checkLabel.setText("");
+    public synchronized void update(BoardDelta delta) {
+        if (delta.has(BoardDelta.Kind.TURN) || delta.has(BoardDelta.Kind.RESULT)) {
+            if (model.isMyTurn())
+                this.turnLabel.setText("Your turn");
+            else
+                this.turnLabel.setText("Opponents turn");
+
+            if (model.getStatus() == ChessBoard.Status.I_WON)
+                this.turnLabel.setText("You won, Yay!");
+            else if (model.getStatus() == ChessBoard.Status.TIE)
+                this.turnLabel.setText("You tied, Meh.");
+            else if (model.getStatus() == ChessBoard.Status.I_LOST)
+                this.turnLabel.setText("You lost, Boo!");
+            else if (model.getStatus() == ChessBoard.Status.ERROR)
+                this.turnLabel.setText("Opponent disconnected, they suck");
+        }
+
+        if (delta.has(BoardDelta.Kind.CHECK))
+            this.checkLabel.setText(model.isInCheck() ? "Check!!" : "");
 
-        if (this.model.awaitingPromotion())
-            choosePieceWindow = choosePiece(model.awaiting().getRow(), model.awaiting().getRow());
-        else if (choosePieceWindow != null) {
-            choosePieceWindow.hide();
-            choosePieceWindow = null;
+        if (delta.has(BoardDelta.Kind.PROMOTION)) {
+            if (this.model.awaitingPromotion()) {
+                if (choosePieceWindow == null)
+                    choosePieceWindow = choosePiece(model.awaiting().getRow(), model.awaiting().getCol());
+            }
+            else if (choosePieceWindow != null) {
+                choosePieceWindow.hide();
+                choosePieceWindow = null;
+            }
         }
 
-        for (int row = 0; row < 8; row++)
-            for (int col = 0; col < 8; col++)
-                setGraphic(this.model, chessButtons[row][col]);
+        updateScrubber();
+
+        /* Which squares can be clicked depends on the turn, the rest only on their pieces */
+        if (delta.has(BoardDelta.Kind.TURN) || delta.has(BoardDelta.Kind.RESULT))
+            redraw();
+        else if (delta.has(BoardDelta.Kind.SQUARES))
+            redraw(delta.getSquares());
     }
 
 }
\ No newline at end of file
@@ -13,7 +13,7 @@ class PromotionButton extends Button {
         targetPiece = piece;
         this.main = main;
 
-        setGraphic(targetPiece.getImage());
+        setGraphic(SpriteAtlas.get().view(targetPiece));
         setMinSize(70, 70);
         setMaxSize(70, 70);
         setOnAction(PromotionButton::handle);
@@ -0,0 +1,87 @@
+package gui;
+
+import chess.ChessColor;
+import chess.pieces.Piece;
+import javafx.geometry.Rectangle2D;
+import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+/**
+ * Every piece image decoded once into a single texture, shared by all
+ * boards. Kinds run along the x axis in {@link #KINDS} order, BLACK on
+ * the top row and WHITE below it. The rules in {@link Piece} know
+ * nothing about images, this is the only place they are loaded.
+ *
+ * @author Andrei Tumbar
+ */
+class SpriteAtlas {
+    /**
+     * Size of one sprite in pixels, the size of the piece images
+     */
+    static final int SPRITE_SIZE = 60;
+
+    /**
+     * Snapshot symbols of the kinds of pieces, in atlas order
+     */
+    private static final String KINDS = "PRNBQK";
+    private static final String[] FILES = {"pawn", "castle", "knight", "bishop", "queen", "king"};
+
+    private static SpriteAtlas shared;
+
+    private Image atlas;
+
+    private SpriteAtlas() {
+        WritableImage image = new WritableImage(SPRITE_SIZE * KINDS.length(), SPRITE_SIZE * 2);
+        PixelWriter writer = image.getPixelWriter();
+        for (int kind = 0; kind < KINDS.length(); kind++) {
+            for (ChessColor color : new ChessColor[]{ChessColor.BLACK, ChessColor.WHITE}) {
+                String name = String.format("%s_%s.png", FILES[kind], color.toString().toLowerCase());
+                Image sprite = new Image(SpriteAtlas.class.getResourceAsStream(name));
+                writer.setPixels(kind * SPRITE_SIZE, color.ordinal() * SPRITE_SIZE, SPRITE_SIZE, SPRITE_SIZE,
+                        sprite.getPixelReader(), 0, 0);
+            }
+        }
+
+        this.atlas = image;
+    }
+
+    /**
+     * @return the atlas, decoded the first time it is asked for
+     */
+    static synchronized SpriteAtlas get() {
+        if (shared == null)
+            shared = new SpriteAtlas();
+        return shared;
+    }
+
+    /**
+     * Draw the sprite of a piece
+     * @param g where to draw
+     * @param p piece to draw
+     * @param x left edge
+     * @param y top edge
+     * @param size width and height to draw at
+     */
+    void draw(GraphicsContext g, Piece p, double x, double y, double size) {
+        int kind = KINDS.indexOf(p.getSymbol());
+        g.drawImage(this.atlas, kind * SPRITE_SIZE, p.getColor().ordinal() * SPRITE_SIZE, SPRITE_SIZE, SPRITE_SIZE,
+                x, y, size, size);
+    }
+
+    /**
+     * A node showing the sprite of a piece, for controls that take a
+     * graphic. A node has one parent, so each call makes a new one.
+     * @param p piece to show
+     * @return view of the piece's part of the atlas
+     */
+    ImageView view(Piece p) {
+        int kind = KINDS.indexOf(p.getSymbol());
+        ImageView view = new ImageView(this.atlas);
+        view.setViewport(new Rectangle2D(kind * SPRITE_SIZE, p.getColor().ordinal() * SPRITE_SIZE,
+                SPRITE_SIZE, SPRITE_SIZE));
+        return view;
+    }
+}
@@ -0,0 +1,230 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Headless client that puts load on a ChessServer. Opens many connections
+ * speaking the normal protocol and plays random legal games, or a script
+ * of moves, while reporting connect latency, move round trips, games per
+ * second and errors once a second.
+ *
+ * @author Andrei Tumbar
+ */
+public class LoadGenerator {
+    /**
+     * Run a load test
+     *
+     * @param args host and port of the server, followed by any of
+     *             <code>--players=<i>n</i> --threads=<i>n</i> --ramp=<i>seconds</i>
+     *             --duration=<i>seconds</i> --think=<i>millis</i> --jitter=<i>millis</i>
+     *             --max-plies=<i>n</i> --script=<i>file</i> --seed=<i>n</i></code>
+     * @throws IOException if a script can't be read or a selector can't be opened
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: java LoadGenerator host port [--players=n] [--threads=n] [--ramp=seconds]"
+                    + " [--duration=seconds] [--think=millis] [--jitter=millis] [--max-plies=n]"
+                    + " [--script=file] [--seed=n]");
+            System.exit(1);
+        }
+
+        LoadGenerator generator = new LoadGenerator(new InetSocketAddress(args[0], Integer.parseInt(args[1])));
+        int players = 1000;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double ramp = 10;
+        double duration = 60;
+        long seed = System.nanoTime();
+        for (int i = 2; i < args.length; i++) {
+            String[] option = args[i].split("=", 2);
+            if (option.length != 2) {
+                System.out.printf("Unknown option %s\n", args[i]);
+                System.exit(1);
+            }
+
+            switch (option[0]) {
+                case "--players":
+                    players = Integer.parseInt(option[1]);
+                    break;
+                case "--threads":
+                    threads = Integer.parseInt(option[1]);
+                    break;
+                case "--ramp":
+                    ramp = Double.parseDouble(option[1]);
+                    break;
+                case "--duration":
+                    duration = Double.parseDouble(option[1]);
+                    break;
+                case "--think":
+                    generator.thinkNanos = (long) (Double.parseDouble(option[1]) * 1e6);
+                    break;
+                case "--jitter":
+                    generator.jitterNanos = (long) (Double.parseDouble(option[1]) * 1e6);
+                    break;
+                case "--max-plies":
+                    generator.maxPlies = Integer.parseInt(option[1]);
+                    break;
+                case "--script":
+                    generator.script = readScript(option[1]);
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(option[1]);
+                    break;
+                default:
+                    System.out.printf("Unknown option %s\n", args[i]);
+                    System.exit(1);
+            }
+        }
+
+        generator.run(players, threads, ramp, duration, seed);
+    }
+
+    /**
+     * A script is one move per line, <code>startRow startCol row col</code>,
+     * both players' moves in the order they are played. Blank lines and
+     * lines starting with # are skipped.
+     */
+    private static List<int[]> readScript(String file) throws IOException {
+        List<int[]> moves = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(file))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[] fields = line.split("\\s+");
+            int[] move = new int[4];
+            for (int i = 0; i < 4; i++)
+                move[i] = Integer.parseInt(fields[i]);
+            moves.add(move);
+        }
+
+        return moves;
+    }
+
+    private InetSocketAddress address;
+    private LoadStats stats;
+    private long thinkNanos;
+    private long jitterNanos;
+    private int maxPlies;
+    private List<int[]> script;
+
+    /**
+     * Create a load generator with the default pace: 100ms think time
+     * with 50ms jitter and games abandoned after 400 plies
+     * @param address server to load
+     */
+    public LoadGenerator(InetSocketAddress address) {
+        this.address = address;
+        this.stats = new LoadStats();
+        this.thinkNanos = 100_000_000L;
+        this.jitterNanos = 50_000_000L;
+        this.maxPlies = 400;
+    }
+
+    /**
+     * Run the players and print a report every second
+     * @param players number of simulated players, two per game
+     * @param threads selector threads to spread them over
+     * @param rampSeconds first connects are spread evenly over this long
+     * @param durationSeconds how long to run including the ramp
+     * @param seed seed of the players' random moves
+     * @throws IOException if a selector can't be opened
+     */
+    public void run(int players, int threads, double rampSeconds, double durationSeconds, long seed)
+            throws IOException {
+        LoadWorker[] workers = new LoadWorker[Math.max(1, Math.min(threads, players))];
+        for (int i = 0; i < workers.length; i++)
+            workers[i] = new LoadWorker(this, i);
+
+        long start = System.nanoTime();
+        long rampNanos = (long) (rampSeconds * 1e9);
+        for (int i = 0; i < players; i++) {
+            LoadWorker w = workers[i % workers.length];
+            w.addPlayer(new SimPlayer(w, this.stats, seed + i), start + rampNanos * i / Math.max(1, players));
+        }
+
+        System.out.printf("Running %d players on %d threads against %s\n", players, workers.length, this.address);
+        for (LoadWorker w : workers)
+            w.start();
+
+        long end = start + (long) (durationSeconds * 1e9);
+        long lastGames = 0, lastMoves = 0, lastNanos = start;
+        while (System.nanoTime() < end) {
+            try {
+                Thread.sleep(Math.max(1, Math.min(1000, (end - System.nanoTime()) / 1_000_000)));
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            long now = System.nanoTime();
+            long games = this.stats.gamesFinished.sum();
+            long moves = this.stats.moves.sum();
+            double seconds = (now - lastNanos) / 1e9;
+            System.out.printf("%6.1fs online %d games/s %.1f moves/s %.0f rtt p50 %s p99 %s"
+                            + " connect p99 %s errors %d\n",
+                    (now - start) / 1e9, this.stats.online.sum(),
+                    (games - lastGames) / seconds, (moves - lastMoves) / seconds,
+                    millis(this.stats.moveRoundTrip.getPercentile(50)),
+                    millis(this.stats.moveRoundTrip.getPercentile(99)),
+                    millis(this.stats.connectLatency.getPercentile(99)),
+                    this.stats.errors.sum());
+            lastGames = games;
+            lastMoves = moves;
+            lastNanos = now;
+        }
+
+        for (LoadWorker w : workers)
+            w.shutdown();
+        for (LoadWorker w : workers) {
+            try {w.join();}
+            catch (InterruptedException ignored) {}
+        }
+
+        report((System.nanoTime() - start) / 1e9);
+    }
+
+    private void report(double seconds) {
+        LoadStats s = this.stats;
+        System.out.printf("\nConnections   %d\n", s.connected.sum());
+        System.out.printf("Games         %d started, %d finished (%.1f/s), %d abandoned\n",
+                s.gamesStarted.sum(), s.gamesFinished.sum(), s.gamesFinished.sum() / seconds,
+                s.gamesAbandoned.sum());
+        System.out.printf("Moves         %d (%.0f/s)\n", s.moves.sum(), s.moves.sum() / seconds);
+        System.out.printf("Errors        %d\n", s.errors.sum());
+        System.out.printf("Connect       p50 %s p90 %s p99 %s max %s\n",
+                millis(s.connectLatency.getPercentile(50)), millis(s.connectLatency.getPercentile(90)),
+                millis(s.connectLatency.getPercentile(99)), millis(s.connectLatency.getMax()));
+        System.out.printf("Move rtt      p50 %s p90 %s p99 %s p99.9 %s max %s\n",
+                millis(s.moveRoundTrip.getPercentile(50)), millis(s.moveRoundTrip.getPercentile(90)),
+                millis(s.moveRoundTrip.getPercentile(99)), millis(s.moveRoundTrip.getPercentile(99.9)),
+                millis(s.moveRoundTrip.getMax()));
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2fms", nanos / 1e6);
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    long getThinkNanos() {
+        return thinkNanos;
+    }
+
+    long getJitterNanos() {
+        return jitterNanos;
+    }
+
+    int getMaxPlies() {
+        return maxPlies;
+    }
+
+    List<int[]> getScript() {
+        return script;
+    }
+}
@@ -0,0 +1,27 @@
+package loadgen;
+
+import server.Histogram;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the simulated players measured, shared by all {@link LoadWorker}s
+ *
+ * @author Andrei Tumbar
+ */
+class LoadStats {
+    final LongAdder connected = new LongAdder();
+    final LongAdder gamesStarted = new LongAdder();
+    final LongAdder gamesFinished = new LongAdder();
+    final LongAdder gamesAbandoned = new LongAdder();
+    final LongAdder moves = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    /* connect() until CONNECT arrives, nanoseconds */
+    final Histogram connectLatency = new Histogram();
+    /* MOVE written until its MOVE_MADE arrives, nanoseconds */
+    final Histogram moveRoundTrip = new Histogram();
+
+    /* Players with an open connection */
+    final LongAdder online = new LongAdder();
+}
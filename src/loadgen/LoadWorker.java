@@ -0,0 +1,149 @@
+package loadgen;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Selector thread driving a share of the simulated players.
+ * Connects and think times are kept in a queue ordered by wake time,
+ * so one thread can run thousands of players.
+ *
+ * @author Andrei Tumbar
+ */
+class LoadWorker extends Thread {
+    /* Wait before reconnecting after a failure so a dead server isn't hammered */
+    private static final long RETRY_NANOS = 100_000_000L;
+
+    private LoadGenerator generator;
+    private Selector selector;
+    private List<SimPlayer> players;
+    private PriorityQueue<SimPlayer> timers;
+    private volatile boolean running;
+
+    LoadWorker(LoadGenerator generator, int index) throws IOException {
+        super("LoadWorker-" + index);
+        this.generator = generator;
+        this.selector = Selector.open();
+        this.players = new ArrayList<>();
+        this.timers = new PriorityQueue<>((a, b) -> Long.compare(a.wakeAt, b.wakeAt));
+        this.running = true;
+    }
+
+    /**
+     * Add a player before the thread is started
+     * @param startAt System.nanoTime() of its first connect, for the ramp
+     */
+    void addPlayer(SimPlayer player, long startAt) {
+        this.players.add(player);
+        player.wakeAt = startAt;
+        this.timers.add(player);
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            long now = System.nanoTime();
+            while (!this.timers.isEmpty() && this.timers.peek().wakeAt <= now) {
+                SimPlayer p = this.timers.poll();
+                p.wakeAt = 0;
+                p.wake(this.selector);
+            }
+
+            long timeout = 100;
+            if (!this.timers.isEmpty())
+                timeout = Math.max(1, Math.min(timeout, (this.timers.peek().wakeAt - now) / 1_000_000));
+
+            try {
+                this.selector.select(timeout);
+            } catch (IOException e) {
+                System.err.println("Selector failed: " + e.getMessage());
+                break;
+            }
+
+            Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                SimPlayer p = (SimPlayer) key.attachment();
+                if (!key.isValid())
+                    continue;
+                if (key.isConnectable())
+                    p.finishConnect();
+                else {
+                    if (key.isWritable())
+                        p.write();
+                    if (key.isValid() && key.isReadable())
+                        p.read();
+                }
+            }
+        }
+
+        for (SimPlayer p : this.players)
+            p.close();
+
+        try {
+            this.selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Call a player back after a delay
+     * @param player player to wake
+     * @param delayNanos how long from now
+     */
+    void schedule(SimPlayer player, long delayNanos) {
+        if (player.wakeAt != 0)
+            this.timers.remove(player);
+
+        player.wakeAt = System.nanoTime() + delayNanos;
+        this.timers.add(player);
+    }
+
+    /**
+     * A player lost or ended its connection, start another game unless the run is over
+     * @param failed the connection ended with an error
+     */
+    void disconnected(SimPlayer player, boolean failed) {
+        if (this.running)
+            schedule(player, failed ? RETRY_NANOS : 0);
+    }
+
+    /**
+     * @return think time before a move, uniformly spread by the jitter
+     */
+    long thinkTime(Random random) {
+        long think = this.generator.getThinkNanos();
+        long jitter = this.generator.getJitterNanos();
+        if (jitter > 0)
+            think += (long) ((random.nextDouble() * 2 - 1) * jitter);
+        return Math.max(0, think);
+    }
+
+    InetSocketAddress getAddress() {
+        return this.generator.getAddress();
+    }
+
+    int getMaxPlies() {
+        return this.generator.getMaxPlies();
+    }
+
+    List<int[]> getScript() {
+        return this.generator.getScript();
+    }
+
+    /**
+     * Stop playing and close every connection
+     */
+    void shutdown() {
+        this.running = false;
+        this.selector.wakeup();
+    }
+}
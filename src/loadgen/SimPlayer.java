@@ -0,0 +1,357 @@
+package loadgen;
+
+import chess.ChessBoard;
+import chess.ChessColor;
+import chess.pieces.Piece;
+import server.ChessException;
+import server.ChessProtocol;
+import server.PawnInterrupt;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+
+import static java.lang.Integer.parseInt;
+
+/**
+ * One simulated player. Keeps its own board so it only ever sends
+ * legal moves, and plays game after game over a new connection each time.
+ * Only touched by the {@link LoadWorker} thread that owns it.
+ *
+ * @author Andrei Tumbar
+ */
+class SimPlayer implements ChessProtocol {
+    private static final int MAX_LINE = 1024;
+
+    private LoadWorker worker;
+    private LoadStats stats;
+    private Random random;
+
+    private SocketChannel channel;
+    private SelectionKey key;
+    private ByteBuffer in;
+    private ByteBuffer pending;
+
+    private ChessColor color;
+    private ChessBoard board;
+    private int ply;
+    private boolean finished;
+
+    /* Set when a MAKE_MOVE is waiting for its think time */
+    private boolean moveDue;
+    private long connectStart;
+    private long moveSent;
+
+    /* When the worker should call wake(), 0 if not scheduled */
+    long wakeAt;
+
+    SimPlayer(LoadWorker worker, LoadStats stats, long seed) {
+        this.worker = worker;
+        this.stats = stats;
+        this.random = new Random(seed);
+        this.in = ByteBuffer.allocate(MAX_LINE);
+    }
+
+    /**
+     * Scheduled time reached, either connect or send the pending move
+     */
+    void wake(Selector selector) {
+        if (this.channel == null)
+            connect(selector);
+        else if (this.moveDue) {
+            this.moveDue = false;
+            sendMove();
+        }
+    }
+
+    private void connect(Selector selector) {
+        this.connectStart = System.nanoTime();
+        this.in.clear();
+        this.pending = null;
+        this.color = null;
+        this.board = null;
+        this.ply = 0;
+        this.finished = false;
+        this.moveDue = false;
+
+        try {
+            this.channel = SocketChannel.open();
+            this.stats.online.increment();
+            this.channel.configureBlocking(false);
+            this.channel.socket().setTcpNoDelay(true);
+            InetSocketAddress address = this.worker.getAddress();
+            if (this.channel.connect(address))
+                this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+            else
+                this.key = this.channel.register(selector, SelectionKey.OP_CONNECT, this);
+        } catch (IOException e) {
+            failed();
+        }
+    }
+
+    void finishConnect() {
+        try {
+            if (this.channel.finishConnect())
+                this.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException e) {
+            failed();
+        }
+    }
+
+    void read() {
+        int n;
+        try {
+            n = this.channel.read(this.in);
+        } catch (IOException e) {
+            n = -1;
+        }
+
+        if (n < 0) {
+            /* The server closes the connection once the result is out */
+            if (!this.finished)
+                failed();
+            else
+                disconnect();
+            return;
+        }
+
+        this.in.flip();
+        int start = this.in.position();
+        for (int i = start; i < this.in.limit(); i++) {
+            if (this.in.get(i) != '\n')
+                continue;
+
+            String line = new String(this.in.array(), start, i - start, StandardCharsets.US_ASCII).trim();
+            start = i + 1;
+            if (!handle(line) || this.channel == null)
+                return;
+        }
+
+        this.in.position(start);
+        this.in.compact();
+        if (!this.in.hasRemaining()) {
+            System.err.println("Line from server too long");
+            failed();
+        }
+    }
+
+    /**
+     * @param line one message from the server
+     * @return false if the connection was closed
+     */
+    private boolean handle(String line) {
+        String[] fields = line.split(" ");
+        switch (fields[0]) {
+            case CONNECT:
+                this.stats.connectLatency.record(System.nanoTime() - this.connectStart);
+                this.stats.connected.increment();
+                this.color = ChessColor.valueOf(fields[1]);
+                this.board = new ChessBoard();
+                this.board.initBoard();
+                return true;
+            case STARTGAME:
+                if (this.color == ChessColor.BLACK)
+                    this.stats.gamesStarted.increment();
+                return true;
+            case MAKE_MOVE:
+                this.moveDue = true;
+                this.worker.schedule(this, this.worker.thinkTime(this.random));
+                return true;
+            case MOVE_MADE:
+                return moveMade(fields);
+            case CHOSE:
+                try {
+                    this.board.chosePiece(Piece.createPiece(this.board, ChessColor.valueOf(fields[2]),
+                            fields[1], parseInt(fields[3]), parseInt(fields[4])));
+                } catch (RuntimeException e) {
+                    return protocolError(line);
+                }
+                return true;
+            case CHOOSE:
+                /* Promotions are never offered, the pawn stays a pawn */
+                return true;
+            case CLOCK:
+            case FLAG_FALL:
+                /* The result follows a flag fall */
+                return true;
+            case GAME_WON:
+            case GAME_LOST:
+            case GAME_TIED:
+                if (this.color == ChessColor.BLACK)
+                    this.stats.gamesFinished.increment();
+                this.finished = true;
+                return true;
+            case ERROR:
+                this.stats.errors.increment();
+                System.err.printf("Server error: %s\n", line);
+                this.finished = true;
+                return true;
+            default:
+                return protocolError(line);
+        }
+    }
+
+    private boolean moveMade(String[] fields) {
+        try {
+            int startRow = parseInt(fields[1]);
+            int startCol = parseInt(fields[2]);
+            Piece p = this.board.pieceAt(startRow, startCol);
+            if (p == null)
+                throw new ChessException("No piece at " + startRow + "," + startCol);
+
+            if (p.getColor() == this.color) {
+                this.stats.moveRoundTrip.record(System.nanoTime() - this.moveSent);
+                this.stats.moves.increment();
+            }
+
+            this.board.movePiece(p, parseInt(fields[3]), parseInt(fields[4]));
+        } catch (PawnInterrupt ignored) {
+            /* Boards without an observer never ask for a promotion */
+        } catch (ChessException | RuntimeException e) {
+            return protocolError(String.join(" ", fields));
+        }
+
+        /* Our board went a different way than the server's */
+        if (fields.length > 5 && Long.parseUnsignedLong(fields[5], 16) != this.board.hash())
+            return protocolError(String.join(" ", fields));
+
+        this.ply++;
+        if (this.worker.getMaxPlies() > 0 && this.ply >= this.worker.getMaxPlies()) {
+            /* There is no resign message, both players walk away at the same ply */
+            if (this.color == ChessColor.BLACK)
+                this.stats.gamesAbandoned.increment();
+            disconnect();
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean protocolError(String line) {
+        System.err.printf("Unexpected message: %s\n", line);
+        failed();
+        return false;
+    }
+
+    private void sendMove() {
+        /* The server takes no move while one of our pawns waits on its last row */
+        for (int s = 0; s < 64; s++) {
+            if (this.board.canPromote(this.color, s / 8, s % 8)) {
+                send(String.format("%s %s %s %d %d\n", CHOSE, Piece.PROMOTIONS[0], this.color.name(), s / 8, s % 8));
+                return;
+            }
+        }
+
+        int[] m = pickMove();
+        if (m == null) {
+            /* The server ends the game before a player is left without moves */
+            protocolError("MAKE_MOVE without a legal move");
+            return;
+        }
+
+        this.moveSent = System.nanoTime();
+        send(String.format("%s %d %d %d %d\n", MOVE, m[0], m[1], m[2], m[3]));
+    }
+
+    /**
+     * Next scripted move if it is legal here, otherwise a random legal move
+     * @return start row, start col, row, col or null if there is none
+     */
+    private int[] pickMove() {
+        List<int[]> script = this.worker.getScript();
+        if (script != null && this.ply < script.size()) {
+            int[] m = script.get(this.ply);
+            if (this.board.isLegalMove(this.color, m[0], m[1], m[2], m[3]))
+                return m;
+        }
+
+        /* Random start squares so the same pieces don't always move first */
+        int from = this.random.nextInt(64);
+        int to = this.random.nextInt(64);
+        for (int i = 0; i < 64; i++) {
+            int s = (from + i) & 63;
+            Piece p = this.board.pieceAt(s / 8, s % 8);
+            if (p == null || p.getColor() != this.color)
+                continue;
+
+            for (int j = 0; j < 64; j++) {
+                int t = (to + j) & 63;
+                if (this.board.isLegalMove(this.color, s / 8, s % 8, t / 8, t % 8))
+                    return new int[]{s / 8, s % 8, t / 8, t % 8};
+            }
+        }
+
+        return null;
+    }
+
+    private void send(String line) {
+        ByteBuffer out = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+        if (this.pending != null) {
+            ByteBuffer both = ByteBuffer.allocate(this.pending.remaining() + out.remaining());
+            both.put(this.pending).put(out).flip();
+            out = both;
+        }
+
+        this.pending = out;
+        write();
+    }
+
+    /**
+     * Write what is pending, waiting for OP_WRITE if the socket buffer is full
+     */
+    void write() {
+        try {
+            this.channel.write(this.pending);
+        } catch (IOException e) {
+            failed();
+            return;
+        }
+
+        if (this.pending.hasRemaining())
+            this.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        else {
+            this.pending = null;
+            this.key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void failed() {
+        this.stats.errors.increment();
+        close();
+        this.worker.disconnected(this, true);
+    }
+
+    /**
+     * Drop the connection and play again if the run is not over
+     */
+    private void disconnect() {
+        close();
+        this.worker.disconnected(this, false);
+    }
+
+    /**
+     * Close the connection without playing again
+     */
+    void close() {
+        if (this.channel == null)
+            return;
+
+        try {
+            this.channel.close();
+        } catch (IOException ignored) {}
+
+        this.stats.online.decrement();
+        this.channel = null;
+        this.key = null;
+    }
+
+    boolean isConnected() {
+        return this.channel != null;
+    }
+}
@@ -1,7 +1,12 @@
 module ChessJava {
-    requires transitive javafx.controls;
+    // Only gui uses JavaFX, the server and bots run without it.
+    // Launch the gui with --add-modules javafx.controls.
+    requires static javafx.controls;
+    requires java.management;
+    requires jdk.httpserver;
     exports chess.pieces;
     exports chess;
     exports gui;
+    exports loadgen;
     exports server;
 }
\ No newline at end of file
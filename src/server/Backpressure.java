@@ -0,0 +1,21 @@
+package server;
+
+/**
+ * What a {@link ChessConnection} does when a client reads slower than
+ * the server writes and its outbound queue reaches the byte limit
+ *
+ * @author Andrei Tumbar
+ */
+public enum Backpressure {
+    /**
+     * Close the connection straight away. The player can resume and
+     * catch up from a snapshot, the game thread never waits.
+     */
+    DISCONNECT,
+
+    /**
+     * Let the game thread wait for the queue to drain, up to the write
+     * timeout, then close the connection
+     */
+    BLOCK
+}
@@ -1,52 +1,131 @@
 package server;
 
 import chess.ChessColor;
-import chess.pieces.Piece;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Wraps the Socket in a reader and writer.
  * Can send and parse ChessProtocol
  *
+ * Outgoing commands are not written straight away. They are queued
+ * as frames and sent together by {@link #flush()} with a single
+ * gathering write, so everything produced while handling one event
+ * leaves in as few packets as possible.
+ *
+ * The {@link Transport} is non-blocking, a socket is driven by a
+ * {@link ConnectionReactor} and a {@link Loopback} end by its loop. On
+ * their events what the client sent is split into lines for the game to
+ * take, and writes that did not complete straight away are finished. A
+ * flush never waits on a slow client unless the {@link Backpressure}
+ * policy says so, and then only up to the write timeout.
+ *
+ * Inbound lines are checked on the raw bytes before any string is made.
+ * A line that is too long or comes faster than the connection's
+ * {@link TokenBucket} allows closes the connection. A line that is not a
+ * command a player may send is handed to the game as a bare
+ * {@link ChessProtocol#ERROR}, which ends the game, and everything after
+ * it is discarded unread.
+ *
  * @author Andrei Tumbar
  */
-public class ChessConnection implements ChessProtocol {
-    private Socket clientSocket;
-    private PrintWriter clientOut;
-    private BufferedReader clientIn;
-    private Runnable runOnError;
+public class ChessConnection implements ChessProtocol, Transport.Handler {
+    /**
+     * Takes the first line of a connection that nothing pairs until it arrives
+     */
+    interface FirstLine {
+        /**
+         * Called once, on whatever thread saw the line or gave up on it
+         * @param conn the connection
+         * @param command the line split by spaces, null if the connection
+         *                ended or no line came in time
+         */
+        void line(ChessConnection conn, String[] command);
+    }
+
+    /**
+     * Lines read ahead of the game before the client counts as flooding
+     */
+    private static final int MAX_INBOUND_LINES = 64;
+
+    /* Put in the inbound queue to wake a waiting game, compared by identity */
+    private static final String WAKE = new String("");
+
+    /* Put in the inbound queue in place of a line that was rejected */
+    private static final String REJECTED = new String(ERROR);
+
+    /* Commands a client may send, checked before a line becomes a string */
+    private static final byte[][] ACCEPTED = {
+            MOVE.getBytes(StandardCharsets.US_ASCII),
+            CHOSE.getBytes(StandardCharsets.US_ASCII),
+            LEGAL_MOVES.getBytes(StandardCharsets.US_ASCII),
+            RESYNC.getBytes(StandardCharsets.US_ASCII),
+            ROUTE.getBytes(StandardCharsets.US_ASCII)
+    };
+
+    private int id;
+    private Transport transport;
+    private ConnectionReactor reactor;
+    private EventLog events;
     private ChessColor color;
+    private volatile boolean interrupted;
+    private volatile boolean legalMovesWanted;
+    private AtomicReference<FirstLine> firstLine;
+
+    /* Inbound, the buffer is only touched by the transport's events */
+    private ByteBuffer readBuffer;
+    private BlockingQueue<String> lines;
+    private TokenBucket rateLimit;
+    private boolean rejected;
+
+    /* Frames staged by the game thread until the next flush */
+    private ByteBuffer[] outbound;
+    private int pending;
+
+    /* Frames the socket did not take yet, guarded by this */
+    private ArrayDeque<ByteBuffer> queue;
+    private long queuedBytes;
+    private long lastProgress;
+    private boolean writeRequested;
 
     /**
-     * Create a new connection, wrap socket for reading and writing
-     * @param clientSocket socket to wrap
+     * Create a new connection, use {@link ConnectionReactor#register(Transport)}
+     * @param id id the event log knows this connection by
+     * @param transport transport to wrap, not started yet
+     * @param reactor reactor whose settings and timers the connection uses
      */
-    ChessConnection(Socket clientSocket) {
-        this.clientSocket = clientSocket;
-        this.runOnError = null;
+    ChessConnection(int id, Transport transport, ConnectionReactor reactor) {
+        this.id = id;
+        this.transport = transport;
+        this.reactor = reactor;
+        this.events = reactor.getEvents();
+        this.readBuffer = ByteBuffer.allocate(reactor.getMaxLineBytes());
+        this.rateLimit = reactor.newRateLimit();
+        this.lines = new LinkedBlockingQueue<>(MAX_INBOUND_LINES);
+        this.outbound = new ByteBuffer[8];
+        this.pending = 0;
+        this.queue = new ArrayDeque<>();
+        this.firstLine = new AtomicReference<>();
         color = null;
-
-        try {
-            clientIn = new BufferedReader(
-                    new InputStreamReader(clientSocket.getInputStream()));
-            clientOut =
-                    new PrintWriter(clientSocket.getOutputStream(), true);
-        } catch (IOException e) {
-            handle_error(e, "Failed to wrap client stream");
-        }
     }
 
     /**
-     * Tell handle error what to call to close the other connection
-     * @param error function to run
+     * Encode a command once so that it can be sent to several connections
+     * @param fmt string format
+     * @param args string format arguments
+     * @return read-only buffer holding the command line
      */
-    void setError(Runnable error) {
-        this.runOnError = error;
+    static ByteBuffer frame(String fmt, Object ... args) {
+        byte[] line = (String.format(fmt, args) + "\n").getBytes(StandardCharsets.US_ASCII);
+        return ByteBuffer.wrap(line).asReadOnlyBuffer();
     }
 
     ChessColor getColor() {
@@ -54,48 +133,311 @@ public class ChessConnection implements ChessProtocol {
     }
 
     /**
-     * Read a command from the client socket
-     * @return entire command line as a string
+     * @return false once the socket failed or was closed
+     */
+    boolean isOpen() {
+        return this.transport.isOpen();
+    }
+
+    int getId() {
+        return id;
+    }
+
+    /**
+     * Wait for the next command from the client
+     * @param timeoutMillis how long to wait
+     * @return entire command line as a string, null if the connection was
+     *         lost, the read timed out or the wait was interrupted
      */
-    private String readCommand() {
+    private String readCommand(long timeoutMillis) {
+        String readCommand;
         try {
-            String readCommand = this.clientIn.readLine();
-            System.out.println(readCommand);
+            readCommand = this.lines.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            return null;
+        }
+
+        if (readCommand == null) {
+            this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Read timed out");
+            this.close();
+            return null;
+        }
+
+        if (readCommand == WAKE) {
+            /* Let the next reader wake too */
+            this.lines.offer(WAKE);
+            return null;
+        }
+
+        if (readCommand == REJECTED) {
+            this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Rejected a line that is not a command");
             return readCommand;
+        }
+
+        this.events.publish(EventLog.Type.COMMAND, 0, this.id, 0, readCommand);
+        return readCommand;
+    }
+
+    /**
+     * Called when the transport has bytes, queues every complete line
+     */
+    @Override
+    public void onReadable() {
+        int n;
+        try {
+            n = this.transport.read(this.readBuffer);
         } catch (IOException e) {
-            handle_error(e, "Failed to read from client");
+            n = -1;
         }
 
-        return "";
+        if (n < 0) {
+            /* The client hung up, whether or not a game is reading */
+            this.close();
+            return;
+        }
+
+        if (this.rejected) {
+            /* The game is ending, nothing else the client sends matters */
+            this.readBuffer.clear();
+            return;
+        }
+
+        this.readBuffer.flip();
+        int start = 0;
+        long now = System.nanoTime();
+        for (int i = 0; i < this.readBuffer.limit(); i++) {
+            if (this.readBuffer.get(i) != '\n')
+                continue;
+
+            int end = i > start && this.readBuffer.get(i - 1) == '\r' ? i - 1 : i;
+            if (this.rateLimit != null && !this.rateLimit.take(now)) {
+                this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Client exceeded its rate limit");
+                this.close();
+                return;
+            }
+
+            String line;
+            if (accepted(this.readBuffer.array(), start, end))
+                line = new String(this.readBuffer.array(), start, end - start, StandardCharsets.US_ASCII);
+            else {
+                line = REJECTED;
+                this.rejected = true;
+            }
+
+            start = i + 1;
+            if (line.equals(LEGAL_MOVES)) {
+                /* A setting of the connection, the game never sees it */
+                this.legalMovesWanted = true;
+                continue;
+            }
+
+            if (this.firstLine.get() != null && firstLine(line))
+                continue;
+
+            if (!this.lines.offer(line)) {
+                this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Client sends faster than it is read");
+                this.close();
+                return;
+            }
+
+            if (this.rejected) {
+                this.readBuffer.clear();
+                return;
+            }
+        }
+
+        this.readBuffer.position(start);
+        this.readBuffer.compact();
+        if (!this.readBuffer.hasRemaining()) {
+            this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Line too long");
+            this.close();
+        }
     }
 
     /**
-     * Write a command to the socket
+     * Check a line without decoding it: printable ASCII that starts with a
+     * command a client may send, followed by a space or the end of the line
+     * @param line bytes read from the client
+     * @param start first byte of the line
+     * @param end end of the line, exclusive
+     * @return false if the line can only be an error
+     */
+    private static boolean accepted(byte[] line, int start, int end) {
+        for (int i = start; i < end; i++)
+            if (line[i] < 0x20 || line[i] > 0x7e)
+                return false;
+
+        for (byte[] command : ACCEPTED) {
+            int after = start + command.length;
+            if (after > end || (after < end && line[after] != ' '))
+                continue;
+            if (Arrays.equals(line, start, after, command, 0, command.length))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Queue a command to be written on the next flush
      * @param fmt string format
      * @param args string format arguments
      */
     private void writeCommand(String fmt, Object ... args) {
-        this.clientOut.println(String.format(fmt, args));
+        send(frame(fmt, args));
     }
 
-    void chose(Piece p) {
-        writeCommand("%s %s %s %d %d", CHOSE, p.getName(), p.getColor().name(), p.getRow(), p.getCol());
+    /**
+     * Queue a pre-encoded frame, the frame itself is not modified
+     * @param frame frame created by {@link #frame(String, Object...)}
+     */
+    void send(ByteBuffer frame) {
+        if (pending == outbound.length)
+            outbound = Arrays.copyOf(outbound, pending * 2);
+
+        outbound[pending++] = frame.duplicate();
     }
 
     /**
-     * Close this socket
+     * Write every staged frame to the socket in one gathering write.
+     * Whatever the socket does not take is left to the reactor, past
+     * the byte limit the {@link Backpressure} policy decides.
      */
-    void close() {
+    void flush() {
+        if (pending == 0)
+            return;
+
+        if (!this.transport.isOpen()) {
+            Arrays.fill(outbound, 0, pending, null);
+            pending = 0;
+            return;
+        }
+
+        synchronized (this) {
+            if (this.queue.isEmpty())
+                this.lastProgress = System.nanoTime();
+            for (int i = 0; i < pending; i++) {
+                this.queue.add(outbound[i]);
+                this.queuedBytes += outbound[i].remaining();
+            }
+            Arrays.fill(outbound, 0, pending, null);
+            pending = 0;
+
+            writeQueued();
+            if (this.queuedBytes == 0 || !this.transport.isOpen())
+                return;
+
+            if (!this.writeRequested) {
+                this.writeRequested = true;
+                this.transport.wantWrite();
+                scheduleWriteCheck(this.reactor.getWriteTimeoutMillis());
+            }
+
+            if (this.queuedBytes > this.reactor.getMaxQueuedBytes())
+                backpressure();
+        }
+    }
+
+    /**
+     * Write as much of the queue as the socket takes without blocking, holding this
+     */
+    private void writeQueued() {
         try {
-            this.clientSocket.close();
+            long written = this.transport.write(this.queue.toArray(new ByteBuffer[0]));
+            if (written > 0) {
+                this.queuedBytes -= written;
+                this.lastProgress = System.nanoTime();
+            }
         } catch (IOException e) {
-            System.err.println("Close client message");
-            e.getMessage();
+            handle_error(e, "Failed to write to client");
+            this.queue.clear();
+            this.queuedBytes = 0;
+            return;
         }
+
+        while (!this.queue.isEmpty() && !this.queue.peek().hasRemaining())
+            this.queue.poll();
     }
 
     /**
-     * Handle IOException, print the error and exit
+     * The outbound queue is over the byte limit, holding this
+     */
+    private void backpressure() {
+        if (this.reactor.getBackpressure() == Backpressure.BLOCK) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(this.reactor.getWriteTimeoutMillis());
+            while (this.queuedBytes > this.reactor.getMaxQueuedBytes() && this.transport.isOpen()) {
+                long left = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (left <= 0)
+                    break;
+
+                try {
+                    wait(left);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            if (this.queuedBytes <= this.reactor.getMaxQueuedBytes() || !this.transport.isOpen())
+                return;
+        }
+
+        this.events.publish(EventLog.Type.ERROR, 0, this.id, this.queuedBytes, "Client is not reading, bytes queued");
+        this.close();
+    }
+
+    /**
+     * Close the connection if queued bytes make no progress for the write timeout
+     * @param delayMillis when to check
+     */
+    private void scheduleWriteCheck(long delayMillis) {
+        this.reactor.getTimers().schedule(() -> {
+            synchronized (this) {
+                if (!this.writeRequested || !this.transport.isOpen())
+                    return;
+
+                long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.lastProgress);
+                long timeout = this.reactor.getWriteTimeoutMillis();
+                if (idle < timeout) {
+                    scheduleWriteCheck(timeout - idle);
+                    return;
+                }
+            }
+
+            this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Client stopped reading");
+            this.close();
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called when the transport takes bytes again
+     * @return true once the queue is empty
+     */
+    @Override
+    public synchronized boolean onWritable() {
+        writeQueued();
+        notifyAll();
+        if (this.queuedBytes > 0 && this.transport.isOpen())
+            return false;
+
+        this.writeRequested = false;
+        return true;
+    }
+
+    /**
+     * Close this socket, wakes a game waiting to read or write on it
+     */
+    void close() {
+        this.transport.close();
+
+        firstLine(null);
+        this.lines.offer(WAKE);
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Handle IOException, print the error and close the socket.
+     * The game notices the closed connection the next time it reads.
      * @param e Exception that occurred
      * @param message message to print out
      */
@@ -103,17 +445,81 @@ public class ChessConnection implements ChessProtocol {
         this.close();
         System.err.println(message);
         e.printStackTrace();
-
-        if (runOnError != null)
-            runOnError.run();
     }
 
     /**
      * Parse a command by splitting it by spaces
-     * @return list of space delimited tokens
+     * @return list of space delimited tokens, null if the connection was lost
      */
     String[] parseCommand() {
-        return this.readCommand().replace("\n", "").split(" ");
+        return parseCommand(this.reactor.getReadTimeoutMillis());
+    }
+
+    /**
+     * Hand the next line to a callback instead of a game, so nothing has
+     * to wait on this connection for it. The line is read on the
+     * transport's events.
+     * @param callback gets the line once
+     * @param timeoutMillis how long the client has to send it
+     */
+    void onFirstLine(FirstLine callback, long timeoutMillis) {
+        this.firstLine.set(callback);
+
+        /* The line may have been queued before there was a callback */
+        String queued = this.lines.poll();
+        if (queued != null)
+            firstLine(queued);
+        else if (!this.transport.isOpen())
+            firstLine(null);
+
+        this.reactor.getTimers().schedule(() -> {
+            if (firstLine(null))
+                this.events.publish(EventLog.Type.ERROR, 0, this.id, 0, "Read timed out");
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Give a line to the first line callback if it is still waiting
+     * @param line the line, null or {@link #WAKE} if there is none
+     * @return false if there was no callback waiting
+     */
+    private boolean firstLine(String line) {
+        FirstLine callback = this.firstLine.getAndSet(null);
+        if (callback == null)
+            return false;
+
+        String[] command = null;
+        if (line != null && line != WAKE) {
+            this.events.publish(EventLog.Type.COMMAND, 0, this.id, 0, line);
+            command = line.split(" ");
+        }
+        callback.line(this, command);
+        return true;
+    }
+
+    /**
+     * Parse a command, waiting at most the given time for it
+     * @param timeoutMillis how long to wait
+     * @return list of space delimited tokens, null if the connection was lost
+     */
+    String[] parseCommand(long timeoutMillis) {
+        String command = this.readCommand(timeoutMillis);
+        if (command == null) {
+            if (!this.interrupted)
+                this.close();
+            return null;
+        }
+
+        return command.replace("\n", "").split(" ");
+    }
+
+    /**
+     * Make a waiting {@link #parseCommand()} return null without closing the
+     * connection, so results can still be written. Called from another thread.
+     */
+    void interrupt() {
+        this.interrupted = true;
+        this.lines.offer(WAKE);
     }
 
     void choose(int row, int col) {
@@ -124,10 +530,43 @@ public class ChessConnection implements ChessProtocol {
 
     /**
      * Send the color info to the client
+     * @param color color the client plays
+     * @param token session token for RESUME, 0 if sessions can't be resumed
+     * @param resumePort port that accepts RESUME
      */
-    void connect(ChessColor color) {
+    void connect(ChessColor color, long token, int resumePort) {
         this.color = color;
-        this.writeCommand("%s %s", CONNECT, color.name());
+        if (token == 0)
+            this.writeCommand("%s %s", CONNECT, color.name());
+        else
+            this.writeCommand("%s %s %s %d", CONNECT, color.name(), Long.toHexString(token), resumePort);
+    }
+
+    /**
+     * Take over the color and settings of a player whose session this connection resumed
+     * @param color color of the resumed player
+     * @param lost connection the player had before, null if there was none
+     */
+    void resumed(ChessColor color, ChessConnection lost) {
+        this.color = color;
+        if (lost != null && lost.legalMovesWanted)
+            this.legalMovesWanted = true;
+    }
+
+    /**
+     * @return true if the client asked for {@link #LEGAL_MOVES} before each turn
+     */
+    boolean wantsLegalMoves() {
+        return legalMovesWanted;
+    }
+
+    /**
+     * Tell the client how much time both players have left
+     * @param blackMillis time left on the BLACK clock
+     * @param whiteMillis time left on the WHITE clock
+     */
+    void clock(long blackMillis, long whiteMillis) {
+        this.writeCommand("%s %d %d", CLOCK, blackMillis, whiteMillis);
     }
 
     /**
@@ -138,19 +577,26 @@ public class ChessConnection implements ChessProtocol {
     }
 
     /**
-     * Tell the client to make a move
+     * Tell the client where its pieces can move this turn
+     * @param moves for each square row * 8 + col, the squares its piece may move to
      */
-    void make_move() {
-        this.writeCommand(MAKE_MOVE);
+    void legal_moves(long[] moves) {
+        long from = 0;
+        for (int i = 0; i < 64; i++)
+            if (moves[i] != 0)
+                from |= 1L << i;
+
+        StringBuilder line = new StringBuilder(LEGAL_MOVES).append(' ').append(Long.toHexString(from));
+        for (long f = from; f != 0; f &= f - 1)
+            line.append(' ').append(Long.toHexString(moves[Long.numberOfTrailingZeros(f)]));
+        this.writeCommand("%s", line);
     }
 
     /**
-     * Tell the client the move that was made
-     * @param row row that move was made
-     * @param col col that move was made
+     * Tell the client to make a move
      */
-    void move_made(int startRow, int startCol, int row, int col) {
-        this.writeCommand("%s %d %d %d %d", MOVE_MADE, startRow, startCol, row, col);
+    void make_move() {
+        this.writeCommand(MAKE_MOVE);
     }
 
     /**
@@ -184,11 +630,11 @@ public class ChessConnection implements ChessProtocol {
     }
 
     /**
-     * Print the sockets toString
-     * @return sockets toString
+     * Print the transport's toString
+     * @return transport's toString
      */
     @Override
     public String toString() {
-        return this.clientSocket.toString();
+        return this.transport.toString();
     }
 }
\ No newline at end of file
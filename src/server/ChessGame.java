@@ -2,8 +2,12 @@ package server;
 
 import chess.ChessBoard;
 import chess.ChessColor;
+import chess.MoveHistory;
 import chess.pieces.*;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
 import static java.lang.Integer.parseInt;
 
 /**
@@ -13,19 +17,74 @@ import static java.lang.Integer.parseInt;
  * @author Andrei Tumbar
  */
 public class ChessGame extends Thread {
+    /**
+     * How long a game waits for a lost player to resume
+     */
+    static final long RECONNECT_MILLIS = 60000;
+
+    /**
+     * Missed messages replayed to a resuming player, past this it gets a snapshot
+     */
+    static final int MAX_REPLAY = 4;
+
+    private int id;
+    private ChessServer server;
     private ChessConnection[] clients;
     private ChessBoard board;
     private boolean error;
+    private boolean finished;
+    private int firstMove;
+    private FrameLog frames;
+    private SpectatorHub spectators;
+    private MoveLog journal;
+    private int journalSeq;
+    private int moves;
+    private ChessColor winner;
+    private ServerMetrics metrics;
+    private EventLog events;
+
+    /* Time control, null if the game is untimed */
+    private GameClock clock;
+    /* Guarded by this, turns whose clock was stopped and the slot that ran out of time */
+    private int clockTurn;
+    private int flagged;
+
+    /* When the last MOVE was read, 0 once its MOVE_MADE was flushed */
+    private long moveReceived;
+
+    /* Sessions, guarded by this */
+    private long[] tokens;
+    private ChessConnection[] resumed;
+    private int[] resumedSeen;
 
     /**
      * Create a new Game given two connections and board dimensions
      *
+     * @param id id spectators and the journal know this game by
      * @param player_one first player
      * @param player_two second player
+     * @param tokens session tokens sent to player one and two, 0 if not resumable
+     * @param server server whose spectator hub and journal this game uses
      */
-    ChessGame(ChessConnection player_one, ChessConnection player_two) {
+    ChessGame(int id, ChessConnection player_one, ChessConnection player_two, long[] tokens, ChessServer server) {
+        this.id = id;
+        this.server = server;
         this.clients = new ChessConnection[2];
         this.error = false;
+        this.finished = false;
+        this.firstMove = 0;
+        this.frames = new FrameLog();
+        this.spectators = server.getSpectators();
+        this.journal = server.getJournal();
+        this.journalSeq = 0;
+        this.metrics = server.getMetrics();
+        this.events = server.getEvents();
+        this.flagged = -1;
+        if (server.getTimeControl() != null)
+            this.clock = new GameClock(server.getTimeControl(), server.getTimers());
+        this.tokens = tokens;
+        this.resumed = new ChessConnection[2];
+        this.resumedSeen = new int[2];
 
         this.clients[0] = player_one;
         this.clients[1] = player_two;
@@ -33,38 +92,118 @@ public class ChessGame extends Thread {
         this.board.initBoard();
     }
 
+    /**
+     * Continue a game rebuilt from the journal, both players have to resume it
+     *
+     * @param recovered game returned by {@link MoveJournal#recover(java.nio.file.Path)}
+     * @param server server whose spectator hub and journal this game uses
+     */
+    ChessGame(RecoveredGame recovered, ChessServer server) {
+        this(recovered.getId(), null, null, recovered.getTokens(), server);
+        this.board = recovered.getBoard();
+        this.frames = recovered.getFrames();
+        this.firstMove = recovered.getMoves() % 2;
+        this.moves = recovered.getMoves();
+        this.journalSeq = recovered.getNextSeq() - 1;
+    }
+
+    /**
+     * @return id spectators, the journal and the registry know this game by
+     */
+    int getGameId() {
+        return id;
+    }
+
+    long[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return every ply of the game, to replay it or look at any position
+     */
+    public MoveHistory getHistory() {
+        return board.getHistory();
+    }
+
     /**
      * Run the reversi game
      */
     public void run() {
-        System.out.println("Starting game!");
-        this.clients[0].startgame();
-        this.clients[1].startgame();
+        boolean fresh = this.frames.size() == 0;
+        this.events.publish(EventLog.Type.GAME_START, this.id, fresh ? "Starting" : "Resuming");
+        long startMillis = System.currentTimeMillis();
+        this.metrics.gameStarted();
+        if (this.spectators != null)
+            this.spectators.publish(this.id, this.frames);
+
+        if (fresh) {
+            if (this.journal != null) {
+                this.journal.start(this.id);
+                for (int slot = 0; slot < 2; slot++)
+                    if (this.tokens[slot] != 0)
+                        this.journal.session(this.id, ++journalSeq, slot, this.tokens[slot]);
+            }
 
-        this.clients[0].setError(this::error);
-        this.clients[1].setError(this::error);
+            broadcast(ChessConnection.frame(ChessConnection.STARTGAME));
+        }
 
-        for (int moveNum = 0; !this.board.gameOver(); moveNum = (moveNum + 1) % 2) {
+        for (int moveNum = firstMove; !this.board.gameOver(); moveNum = (moveNum + 1) % 2) {
+            adoptResumed();
             ChessConnection player = this.clients[moveNum];
+            if (this.clock != null && !this.clock.isRunning())
+                startClock(moveNum);
 
-            player.make_move();
-
-            String[] move;
-            try {
+            String[] move = null;
+            if (player != null && player.isOpen()) {
+                if (this.clock != null)
+                    sendClock();
+                /* While its pawn waits for a promotion the player answers CHOSE, not a move */
+                if (player.wantsLegalMoves() && !this.board.promotionDue(slotColor(moveNum)))
+                    player.legal_moves(this.board.computeLegalMoves(slotColor(moveNum)));
+                player.make_move();
+                flush();
                 move = player.parseCommand();
             }
-            catch (NullPointerException e) {
-                System.err.println("Could not read response from client");
-                error();
+            long received = System.nanoTime();
+            if (isFlagged())
                 break;
+
+            if (move == null) {
+                /* Park until the player resumes instead of ending the game */
+                this.events.publish(EventLog.Type.LOST, this.id, player == null ? 0 : player.getId(), moveNum + 1, "Lost player");
+                if (!awaitResume(moveNum)) {
+                    if (isFlagged())
+                        break;
+                    error("Opponent disconnected");
+                    break;
+                }
+
+                /* Same player again */
+                moveNum++;
+                continue;
             }
 
             if (!move[0].equals(ChessConnection.MOVE)) {
+                if (move[0].equals(ChessConnection.RESYNC)) {
+                    /* Same player again once its board is back in step */
+                    player.send(ChessConnection.frame("%s %d %s",
+                            ChessConnection.SNAPSHOT, this.frames.size(), this.board.snapshot()));
+                    moveNum++;
+                    continue;
+                }
+
                 if (move[0].equals(ChessConnection.CHOSE)) {
+                    if (!validPromotion(slotColor(moveNum), move)) {
+                        error("Illegal promotion");
+                        break;
+                    }
+
                     Piece p = Piece.createPiece(this.board, ChessColor.valueOf(move[2]), move[1], parseInt(move[3]), parseInt(move[4]));
                     this.board.chosePiece(p);
-                    this.clients[0].chose(p);
-                    this.clients[1].chose(p);
+                    if (this.journal != null)
+                        this.journal.chose(this.id, ++journalSeq, p.getName(), p.getColor(), p.getRow(), p.getCol());
+                    broadcast(ChessConnection.frame("%s %s %s %d %d",
+                            ChessConnection.CHOSE, p.getName(), p.getColor().name(), p.getRow(), p.getCol()));
                     moveNum++;
                     continue;
                 }
@@ -72,23 +211,49 @@ public class ChessGame extends Thread {
                 if (error)
                     break;
 
-                System.err.printf("Invalid Command from client: %s\n", move[0]);
+                this.events.publish(EventLog.Type.ERROR, this.id, player.getId(), 0, "Invalid command");
                 error();
                 break;
             }
 
-            int startRow = Integer.parseInt(move[1]);
-            int startCol = Integer.parseInt(move[2]);
-            int row = Integer.parseInt(move[3]);
-            int col = Integer.parseInt(move[4]);
+            /* A move that arrives after the flag fell does not count */
+            if (this.clock != null && !stopClock(moveNum))
+                break;
+
+            int startRow, startCol, row, col;
+            try {
+                startRow = parseInt(move[1]);
+                startCol = parseInt(move[2]);
+                row = parseInt(move[3]);
+                col = parseInt(move[4]);
+            }
+            catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                error("Malformed move");
+                break;
+            }
+
+            /* A pawn on its last row is promoted before anything else moves */
+            if (this.board.promotionDue(slotColor(moveNum))) {
+                this.events.publish(EventLog.Type.ERROR, this.id, player.getId(), 0, "Promotion due");
+                error("Choose a promotion first");
+                break;
+            }
+
+            /* Nothing on the board changes unless the move is legal */
+            if (!validMove(slotColor(moveNum), startRow, startCol, row, col)) {
+                this.events.publish(EventLog.Type.ERROR, this.id, player.getId(), 0, "Illegal move");
+                error("Illegal move");
+                break;
+            }
 
             try {
-                Piece p = this.board.pieceAt(startRow, startCol);
-                this.board.movePiece(p, row, col);
+                this.board.applyMove(startRow, startCol, row, col);
             }
             catch (PawnInterrupt e) {
                 this.board.choosePiece(e.getPawn());
-                this.clients[(moveNum + 1) % 2].choose(e.getPawn().getRow(), e.getPawn().getCol());
+                ChessConnection other = this.clients[(moveNum + 1) % 2];
+                if (other != null)
+                    other.choose(e.getPawn().getRow(), e.getPawn().getCol());
             }
             catch (ChessException e) {
                 e.printStackTrace();
@@ -97,35 +262,343 @@ public class ChessGame extends Thread {
             }
 
             /* No error */
-            this.clients[0].move_made(startRow, startCol, row, col);
-            this.clients[1].move_made(startRow, startCol, row, col);
+            if (this.journal != null)
+                this.journal.move(this.id, ++journalSeq, startRow, startCol, row, col);
+
+            broadcast(ChessConnection.frame("%s %d %d %d %d %s", ChessConnection.MOVE_MADE,
+                    startRow, startCol, row, col, Long.toHexString(this.board.hash())));
+            this.moveReceived = received;
+            this.moves++;
+
+            /* Checkmate or stalemate */
+            ChessColor next = slotColor((moveNum + 1) % 2);
+            if (!this.board.hasLegalMove(next)) {
+                winner = this.board.check(next) ? slotColor(moveNum) : ChessColor.NONE;
+                break;
+            }
+        }
+
+        if (this.clock != null)
+            this.clock.cancel();
+
+        int lost = flaggedSlot();
+        if (!error && lost >= 0) {
+            this.events.publish(EventLog.Type.FLAG_FALL, this.id, 0, lost + 1, slotColor(lost).name());
+            winner = slotColor((lost + 1) % 2);
+            broadcast(ChessConnection.frame("%s %s", ChessConnection.FLAG_FALL, slotColor(lost).name()));
         }
 
         if (!error) {
+            if (winner == null)
+                winner = this.board.getWinner();
+
+            broadcast(ChessConnection.frame("%s %s", ChessConnection.GAME_OVER, winner.name()), false);
+
             /* Tell the client if they won or not */
-            if (this.board.getWinner() == ChessColor.BLACK) {
-                this.clients[0].game_won();
-                this.clients[1].game_lost();
-            } else if (this.board.getWinner() == ChessColor.WHITE) {
-                this.clients[1].game_won();
-                this.clients[0].game_lost();
-            } else {
-                this.clients[0].game_tied();
-                this.clients[1].game_tied();
+            for (int slot = 0; slot < 2; slot++) {
+                ChessConnection c = this.clients[slot];
+                if (c == null)
+                    continue;
+
+                if (winner == slotColor(slot))
+                    c.game_won();
+                else if (winner == ChessColor.NONE)
+                    c.game_tied();
+                else
+                    c.game_lost();
             }
         }
 
+        flush();
+        long duration = System.currentTimeMillis() - startMillis;
+        this.metrics.gameEnded(duration);
+        this.events.publish(EventLog.Type.GAME_END, this.id, 0, this.moves, error ? "ERROR" : winner.name());
+        synchronized (this) {
+            finished = true;
+            for (ChessConnection c : this.resumed)
+                if (c != null)
+                    c.close();
+        }
+        this.server.getRegistry().finished(this, new GameResult(this.id, error ? null : winner, this.moves, duration));
+
+        if (this.journal != null)
+            this.journal.end(this.id, ++journalSeq);
+
+        this.frames.close();
+        if (this.spectators != null) {
+            this.spectators.retire(this.id);
+            this.spectators.framesAdded(this.frames);
+        }
+
         /* parseCommand on each thread should exit because socket closed */
-        this.clients[0].close();
-        this.clients[1].close();
+        for (ChessConnection c : this.clients)
+            if (c != null)
+                c.close();
+    }
+
+    /**
+     * Start the clock of the player to move, its flag falls on the timer wheel
+     * @param slot player to move
+     */
+    private void startClock(int slot) {
+        int turn;
+        synchronized (this) {
+            turn = this.clockTurn;
+        }
+
+        this.clock.start(slot, () -> flagFall(slot, turn));
+    }
+
+    /**
+     * Stop the clock after a move
+     * @param slot player that moved
+     * @return false if the player ran out of time first
+     */
+    private synchronized boolean stopClock(int slot) {
+        this.clockTurn++;
+        boolean inTime = this.clock.stop();
+        if (!inTime && this.flagged < 0)
+            this.flagged = slot;
+
+        return this.flagged < 0;
+    }
+
+    /**
+     * Runs on the timer wheel thread when a player's time is up. Only marks
+     * the flag and wakes the game thread, which sends the result itself.
+     * @param slot player whose clock ran
+     * @param turn turn the clock was started for, stale flags are ignored
+     */
+    private void flagFall(int slot, int turn) {
+        ChessConnection player;
+        synchronized (this) {
+            if (this.finished || this.clockTurn != turn || this.flagged >= 0)
+                return;
+
+            this.flagged = slot;
+            player = this.clients[slot];
+            notifyAll();
+        }
+
+        if (player != null)
+            player.interrupt();
+    }
+
+    private synchronized boolean isFlagged() {
+        return this.flagged >= 0;
+    }
+
+    private synchronized int flaggedSlot() {
+        return this.flagged;
+    }
+
+    /**
+     * Queue both players' remaining time on both players
+     */
+    private void sendClock() {
+        for (ChessConnection c : this.clients)
+            if (c != null)
+                c.clock(this.clock.getRemaining(0), this.clock.getRemaining(1));
+    }
+
+    /**
+     * Player one is BLACK and player two is WHITE
+     * @param slot 0 or 1
+     * @return color of the player in that slot
+     */
+    private static ChessColor slotColor(int slot) {
+        return slot == 0 ? ChessColor.BLACK : ChessColor.WHITE;
+    }
+
+    /**
+     * Hand a new connection to the game for a player holding a session token.
+     * Called from the thread that accepted the connection, the game thread
+     * takes it over before its next turn.
+     *
+     * @param token token from RESUME
+     * @param conn new connection of the player
+     * @param seen number of game messages the player already received
+     * @return false if the token is not part of this game or the game ended
+     */
+    synchronized boolean resume(long token, ChessConnection conn, int seen) {
+        if (finished || token == 0)
+            return false;
+
+        for (int slot = 0; slot < 2; slot++) {
+            if (this.tokens[slot] != token)
+                continue;
+
+            if (this.resumed[slot] != null)
+                this.resumed[slot].close();
+            this.resumed[slot] = conn;
+            this.resumedSeen[slot] = seen;
+            notifyAll();
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Wait for a lost player without holding any socket
+     * @param slot player that was lost
+     * @return false if the player did not come back in time or its flag fell
+     */
+    private synchronized boolean awaitResume(int slot) {
+        long deadline = System.currentTimeMillis() + RECONNECT_MILLIS;
+        while (this.resumed[slot] == null && this.flagged < 0) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                return false;
+
+            try {
+                wait(left);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+
+        return this.resumed[slot] != null;
+    }
+
+    /**
+     * Swap in the connections of players that resumed and send them what they missed
+     */
+    private void adoptResumed() {
+        for (int slot = 0; slot < 2; slot++) {
+            ChessConnection conn;
+            int seen;
+            synchronized (this) {
+                conn = this.resumed[slot];
+                seen = this.resumedSeen[slot];
+                this.resumed[slot] = null;
+            }
+
+            if (conn == null)
+                continue;
+
+            ChessConnection lost = this.clients[slot];
+            if (lost != null)
+                lost.close();
+
+            conn.resumed(slotColor(slot), lost);
+            synchronized (this) {
+                /* Read by the timer wheel thread when a flag falls */
+                this.clients[slot] = conn;
+            }
+            catchUp(conn, seen);
+            this.events.publish(EventLog.Type.RESUME, this.id, conn.getId(), slot + 1, "Player resumed");
+        }
+    }
+
+    /**
+     * Send a resuming player the game messages it missed, or a snapshot
+     * of the position when that is shorter
+     * @param conn connection of the resumed player
+     * @param seen game messages it received before it was lost
+     */
+    private void catchUp(ChessConnection conn, int seen) {
+        int size = this.frames.size();
+        if (seen < 0 || seen > size || size - seen > MAX_REPLAY) {
+            conn.send(ChessConnection.frame("%s %d %s", ChessConnection.SNAPSHOT, size, this.board.snapshot()));
+            seen = size;
+        }
+
+        for (int i = seen; i < size; i++)
+            conn.send(this.frames.get(i));
+    }
+
+    /**
+     * Check a move from a client against the rules, recording how long it took
+     * @param color color of the player that sent the move
+     * @return true if the move is legal
+     */
+    private boolean validMove(ChessColor color, int startRow, int startCol, int row, int col) {
+        long start = System.nanoTime();
+        boolean legal = this.board.isLegalMove(color, startRow, startCol, row, col);
+        this.metrics.moveValidated(System.nanoTime() - start);
+        return legal;
+    }
+
+    /**
+     * Check a CHOSE command, the player must own a pawn on its last row
+     * @param color color of the player that sent the command
+     * @param chose tokens of the command
+     * @return true if the promotion can be made
+     */
+    private boolean validPromotion(ChessColor color, String[] chose) {
+        if (chose.length != 5 || !Arrays.asList(Piece.PROMOTIONS).contains(chose[1])
+                || !chose[2].equals(color.name()))
+            return false;
+
+        try {
+            return this.board.canPromote(color, parseInt(chose[3]), parseInt(chose[4]));
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Queue the same encoded frame on both players and the spectators
+     * @param frame frame from {@link ChessConnection#frame(String, Object...)}
+     */
+    private void broadcast(ByteBuffer frame) {
+        broadcast(frame, true);
+    }
+
+    /**
+     * Publish a frame to spectators and optionally to both players
+     * @param frame frame from {@link ChessConnection#frame(String, Object...)}
+     * @param players also queue the frame on both players
+     */
+    private void broadcast(ByteBuffer frame, boolean players) {
+        if (players) {
+            for (ChessConnection c : this.clients)
+                if (c != null)
+                    c.send(frame);
+        }
+
+        this.frames.append(frame);
+        if (this.spectators != null)
+            this.spectators.framesAdded(this.frames);
+    }
+
+    /**
+     * Send everything queued while handling the last event, the first
+     * flush after a move is when its MOVE_MADE reached the sockets
+     */
+    private void flush() {
+        for (ChessConnection c : this.clients)
+            if (c != null)
+                c.flush();
+
+        if (this.moveReceived != 0) {
+            this.metrics.moveMade(System.nanoTime() - this.moveReceived);
+            this.moveReceived = 0;
+        }
     }
 
     /**
      * Exit both clients with error status
      */
     private void error() {
+        error(null);
+    }
+
+    /**
+     * Exit both clients with error status and tell them why
+     * @param message reason sent after ERROR, may be null
+     */
+    private void error(String message) {
+        if (this.error)
+            return;
+
         this.error = true;
-        this.clients[0].error();
-        this.clients[1].error();
+        this.metrics.error();
+        if (message == null)
+            broadcast(ChessConnection.frame(ChessConnection.ERROR));
+        else
+            broadcast(ChessConnection.frame("%s %s", ChessConnection.ERROR, message));
+        flush();
     }
 }
\ No newline at end of file
@@ -16,6 +16,9 @@ public interface ChessProtocol {
      * of the board are sent in the request.<P>
      *
      *  For example for a 6x6 board: CONNECT BLACK\n
+     *
+     *  When sessions can be resumed the session token and the port that
+     *  accepts {@link #RESUME} follow: CONNECT BLACK 3f9a0c2d77e1b6a4 5001\n
      */
     String CONNECT = "CONNECT";
 
@@ -44,9 +47,11 @@ public interface ChessProtocol {
 
     /**
      * Request sent from the reversi.server to the client when either player has moved.
-     * The request will include the row and column in which the player moved.<P>
+     * The request will include the row and column in which the player moved,
+     * then the {@link chess.ChessBoard#hash()} of the position after the move
+     * in hex so the client can tell its board still matches.<P>
      *
-     * For example (if a move was made in (3,2)): MOVE_MADE 2 2 3 2\n
+     * For example (if a move was made in (3,2)): MOVE_MADE 2 2 3 2 9c3e0a51f27d6b84\n
      */
     String MOVE_MADE = "MOVE_MADE";
 
@@ -74,4 +79,119 @@ public interface ChessProtocol {
      * client and the connection is terminated (as is the game).
      */
     String ERROR = "ERROR";
-}
\ No newline at end of file
+
+    /**
+     * Request sent from a spectator to the spectator port naming the game
+     * it wants to watch. The spectator then receives STARTGAME and every
+     * {@link #MOVE_MADE} and {@link #CHOSE} of that game, followed by
+     * {@link #GAME_OVER} or {@link #ERROR}.<P>
+     *
+     * For example: WATCH 3\n
+     */
+    String WATCH = "WATCH";
+
+    /**
+     * Sent to spectators when the game has ended with the winning color,
+     * or NONE for a tie.<P>
+     *
+     * For example: GAME_OVER WHITE\n
+     */
+    String GAME_OVER = "GAME_OVER";
+
+    /**
+     * Request sent from a client that lost its connection to the port given
+     * in {@link #CONNECT}, with its session token and the number of
+     * STARTGAME, {@link #MOVE_MADE} and {@link #CHOSE} messages it has
+     * received. The server answers with the messages it missed, preceded by
+     * a {@link #SNAPSHOT} when that is shorter, and the game carries on.<P>
+     *
+     * For example: RESUME 3f9a0c2d77e1b6a4 12\n
+     */
+    String RESUME = "RESUME";
+
+    /**
+     * Sent to a resuming client instead of the messages before it. Holds the
+     * number of messages it replaces and the position from
+     * {@link chess.ChessBoard#snapshot()}.<P>
+     *
+     * For example: SNAPSHOT 32 rp....PRnp....PN...<I>(64 squares)</I> 8100000000000081\n
+     */
+    String SNAPSHOT = "SNAPSHOT";
+
+    /**
+     * Sent to both players at the start of every turn of a game with a time
+     * control, the milliseconds left on the BLACK and WHITE clocks.<P>
+     *
+     * For example: CLOCK 298500 300000\n
+     */
+    String CLOCK = "CLOCK";
+
+    /**
+     * Sent to the players and spectators when a player ran out of time,
+     * with the color of that player. The result follows.<P>
+     *
+     * For example: FLAG_FALL WHITE\n
+     */
+    String FLAG_FALL = "FLAG_FALL";
+
+    /**
+     * Sent by a {@link ChessRouter} as the first line of every connection it
+     * opens to a worker, with the game id the router picked and the slot of
+     * the player, 0 for BLACK. The worker answers with {@link #CONNECT} once
+     * both slots of the game are connected.<P>
+     *
+     * For example: ROUTE 17 0\n
+     */
+    String ROUTE = "ROUTE";
+
+    /**
+     * Sent by a worker to the control port of its {@link ChessRouter} every
+     * second, with the port players reach the worker on and the number of
+     * games it is running.<P>
+     *
+     * For example: LOAD 6001 42\n
+     */
+    String LOAD = "LOAD";
+
+    /**
+     * Sent once by a client that wants the server to work out its moves,
+     * so it needs no rules of its own. From then on every
+     * {@link #MAKE_MOVE} is preceded by the player's legal moves: a mask of
+     * the squares holding a piece that can move, then for each of those
+     * squares in order a mask of the squares it can move to. Bit
+     * row * 8 + col stands for a square, masks are in hex.<P>
+     *
+     * For example, the opening moves of BLACK:
+     * LEGAL_MOVES 203020202020302 c 40004 c00 ... c00000000000000\n
+     */
+    String LEGAL_MOVES = "LEGAL_MOVES";
+
+    /**
+     * Sent by a client whose board no longer hashes to what
+     * {@link #MOVE_MADE} said. When it is that player's turn the server
+     * answers with a {@link #SNAPSHOT} of the position, holding the number
+     * of game messages sent so far, and asks for the move again.<P>
+     *
+     * For example: RESYNC\n
+     */
+    String RESYNC = "RESYNC";
+
+    /**
+     * Sent on a {@link Multiplexer multiplexed} connection, where every line
+     * starts with the id of its game, to open a game under a new id. The
+     * server seats a player there like a new connection and answers with
+     * {@link #CONNECT} under that id.<P>
+     *
+     * For example: 42 JOIN\n
+     */
+    String JOIN = "JOIN";
+
+    /**
+     * Sent on a {@link Multiplexer multiplexed} connection by either side to
+     * end one of its games, the other side sees that game's connection
+     * close.<P>
+     *
+     * For example: 42 LEAVE\n
+     */
+    String LEAVE = "LEAVE";
+}
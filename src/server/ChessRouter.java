@@ -0,0 +1,177 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The ChessRouter spreads games over several {@link ChessServer} worker
+ * processes. It pairs players the way a server does, picks a worker for
+ * each game on a {@link HashRing} of the workers that report their load,
+ * and relays both players to that worker with a ROUTE line naming the
+ * game. The worker answers with CONNECT and plays the game as if the
+ * players had connected to it directly.
+ *
+ * Workers are started with <code>--router=<i>host:controlport</i></code>
+ * and may come and go while the router runs. Players that resume connect
+ * to the worker, so workers on other hosts need their spectator port
+ * reachable by the players.
+ *
+ * @author Andrei Tumbar
+ */
+public class ChessRouter {
+    /**
+     * Starts a router and accepts players until it is killed.
+     *
+     * @param args port players connect to, followed by
+     *             <code>--control=<i>port</i></code> for the workers and
+     *             optionally <code>--threads=<i>count</i></code> of relay threads
+     * @throws ChessException If there is an error starting the router.
+     */
+    public static void main(String[] args) throws ChessException {
+        if (args.length < 2) {
+            System.out.println("Usage: java ChessRouter port --control=port [--threads=count]");
+            System.exit(1);
+        }
+
+        int controlPort = 0;
+        int threads = 1;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--control="))
+                controlPort = Integer.parseInt(args[i].substring("--control=".length()));
+            else if (args[i].startsWith("--threads="))
+                threads = Integer.parseInt(args[i].substring("--threads=".length()));
+            else {
+                System.out.printf("Unknown option %s\n", args[i]);
+                System.exit(1);
+            }
+        }
+
+        if (controlPort == 0) {
+            System.out.println("The router needs a --control port for its workers");
+            System.exit(1);
+        }
+
+        ChessRouter router = new ChessRouter(Integer.parseInt(args[0]), controlPort, threads);
+        router.run();
+    }
+
+    private boolean keepAlive;
+    private int nextGameId;
+    private HashRing ring;
+    private RouterControl control;
+    private RouteRelay[] relays;
+    private ServerSocketChannel listen;
+
+    /**
+     * Open the player and control ports
+     * @param port port players connect to
+     * @param controlPort port workers report their load to
+     * @param threads number of relay threads
+     * @throws ChessException if a port cannot be opened
+     */
+    public ChessRouter(int port, int controlPort, int threads) throws ChessException {
+        this.keepAlive = true;
+        this.nextGameId = 1;
+        this.ring = new HashRing();
+
+        this.relays = new RouteRelay[Math.max(1, threads)];
+        for (int i = 0; i < this.relays.length; i++) {
+            this.relays[i] = new RouteRelay("RouteRelay-" + i);
+            this.relays[i].start();
+        }
+
+        this.control = new RouterControl(controlPort, this.ring);
+        this.control.start();
+
+        try {
+            this.listen = ServerSocketChannel.open();
+            this.listen.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new ChessException("Failed to listen on port " + port, e);
+        }
+    }
+
+    /**
+     * Pair players in the order they connect and send each pair to a worker.
+     * Player one is relayed as soon as it connects so it gets CONNECT
+     * straight away, like from a server, and player two follows it.
+     */
+    public void run() {
+        SocketChannel waiting = null;
+        WorkerNode worker = null;
+        int game = 0;
+        while (keepAlive) {
+            SocketChannel client;
+            try {
+                client = this.listen.accept();
+                client.configureBlocking(false);
+                client.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                /* This socket was closed */
+                break;
+            }
+
+            /* The relay closes player one if it hung up while waiting for player two */
+            if (waiting != null && waiting.isOpen()) {
+                relayFor(game).relay(client, worker.getAddress(), game, 1);
+                waiting = null;
+                continue;
+            }
+
+            game = nextGameId++;
+            worker = this.ring.pick(game);
+            if (worker == null) {
+                System.err.println("No workers to send a game to");
+                refuse(client);
+                waiting = null;
+                continue;
+            }
+
+            worker.assigned();
+            relayFor(game).relay(client, worker.getAddress(), game, 0);
+            waiting = client;
+        }
+
+        this.kill();
+    }
+
+    private RouteRelay relayFor(int game) {
+        return this.relays[game % this.relays.length];
+    }
+
+    /**
+     * Tell a player there is no game for it
+     */
+    private static void refuse(SocketChannel client) {
+        try {
+            client.write(ByteBuffer.wrap((ChessProtocol.ERROR + "\n").getBytes(StandardCharsets.US_ASCII)));
+        } catch (IOException ignored) {}
+        close(client);
+    }
+
+    private static void close(SocketChannel client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Stop accepting players and workers, relayed games are dropped
+     */
+    public void kill() {
+        this.keepAlive = false;
+        try {
+            this.listen.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close server socket");
+        }
+
+        this.control.close();
+        for (RouteRelay relay : this.relays)
+            relay.close();
+    }
+}
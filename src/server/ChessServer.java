@@ -2,7 +2,15 @@ package server;
 import chess.ChessBoard;
 import chess.ChessColor;
 
-import java.util.LinkedList;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * The ReversiServer waits for incoming client connections and
@@ -15,49 +23,313 @@ public class ChessServer {
      * Starts a new ReversiServer. Simply creates the server and runs.
      *
      * @param args Used to specify the port on which the server should listen
-     *             for incoming client connections.
+     *             for incoming client connections, followed by any of
+     *             <code>--spectate=<i>port</i> --journal=<i>directory</i>
+     *             --metrics=<i>port</i> --recent-results=<i>count</i>
+     *             --clock=<i>seconds</i> --increment=<i>seconds</i> --delay=<i>seconds</i>
+     *             --backpressure=<i>disconnect|block</i> --max-queued=<i>bytes</i>
+     *             --read-timeout=<i>seconds</i> --write-timeout=<i>seconds</i> --log=<i>directory</i>
+     *             --router=<i>host:port</i> --replicate-to=<i>host:port</i>
+     *             --standby=<i>port</i> --takeover-after=<i>seconds</i>
+     *             --max-line=<i>bytes</i> --rate=<i>lines/second</i> --burst=<i>lines</i>
+     *             --mux=<i>port</i> --resume=<i>port</i></code>
      * @throws ChessException If there is an error starting the server.
      */
     public static void main(String[] args) throws ChessException {
-        if (args.length != 1) {
-            System.out.println("Usage: java ChessServer port");
+        if (args.length < 1) {
+            System.out.println("Usage: java ChessServer port [--spectate=port] [--journal=directory] [--metrics=port] [--recent-results=count]"
+                    + " [--clock=seconds [--increment=seconds] [--delay=seconds]]"
+                    + " [--backpressure=disconnect|block] [--max-queued=bytes]"
+                    + " [--read-timeout=seconds] [--write-timeout=seconds] [--log=directory]"
+                    + " [--max-line=bytes] [--rate=lines/second] [--burst=lines] [--mux=port]"
+                    + " [--resume=port]"
+                    + " [--router=host:port] [--replicate-to=host:port]"
+                    + " [--standby=port [--takeover-after=seconds]]");
             System.exit(1);
         }
 
-        ChessServer server = new ChessServer(Integer.parseInt(args[0]));
+        int spectatePort = 0;
+        Path journalDir = null;
+        int metricsPort = 0;
+        int recentResults = 100;
+        long clockMillis = 0, incrementMillis = 0, delayMillis = 0;
+        Backpressure backpressure = Backpressure.DISCONNECT;
+        int maxQueued = ConnectionReactor.MAX_QUEUED_BYTES;
+        long readTimeout = ConnectionReactor.READ_TIMEOUT_MILLIS;
+        long writeTimeout = ConnectionReactor.WRITE_TIMEOUT_MILLIS;
+        int maxLine = ConnectionReactor.MAX_LINE_BYTES;
+        int rate = ConnectionReactor.LINES_PER_SECOND;
+        int burst = ConnectionReactor.BURST_LINES;
+        Path logDir = null;
+        InetSocketAddress router = null;
+        InetSocketAddress replicateTo = null;
+        int standbyPort = 0;
+        long takeoverMillis = 1000;
+        int muxPort = 0;
+        int resumePort = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--spectate="))
+                spectatePort = Integer.parseInt(args[i].substring("--spectate=".length()));
+            else if (args[i].startsWith("--journal="))
+                journalDir = Paths.get(args[i].substring("--journal=".length()));
+            else if (args[i].startsWith("--metrics="))
+                metricsPort = Integer.parseInt(args[i].substring("--metrics=".length()));
+            else if (args[i].startsWith("--recent-results="))
+                recentResults = Integer.parseInt(args[i].substring("--recent-results=".length()));
+            else if (args[i].startsWith("--clock="))
+                clockMillis = (long) (Double.parseDouble(args[i].substring("--clock=".length())) * 1000);
+            else if (args[i].startsWith("--increment="))
+                incrementMillis = (long) (Double.parseDouble(args[i].substring("--increment=".length())) * 1000);
+            else if (args[i].startsWith("--delay="))
+                delayMillis = (long) (Double.parseDouble(args[i].substring("--delay=".length())) * 1000);
+            else if (args[i].startsWith("--backpressure="))
+                backpressure = Backpressure.valueOf(args[i].substring("--backpressure=".length()).toUpperCase());
+            else if (args[i].startsWith("--max-queued="))
+                maxQueued = Integer.parseInt(args[i].substring("--max-queued=".length()));
+            else if (args[i].startsWith("--read-timeout="))
+                readTimeout = (long) (Double.parseDouble(args[i].substring("--read-timeout=".length())) * 1000);
+            else if (args[i].startsWith("--log="))
+                logDir = Paths.get(args[i].substring("--log=".length()));
+            else if (args[i].startsWith("--router="))
+                router = address(args[i].substring("--router=".length()));
+            else if (args[i].startsWith("--replicate-to="))
+                replicateTo = address(args[i].substring("--replicate-to=".length()));
+            else if (args[i].startsWith("--standby="))
+                standbyPort = Integer.parseInt(args[i].substring("--standby=".length()));
+            else if (args[i].startsWith("--takeover-after="))
+                takeoverMillis = (long) (Double.parseDouble(args[i].substring("--takeover-after=".length())) * 1000);
+            else if (args[i].startsWith("--write-timeout="))
+                writeTimeout = (long) (Double.parseDouble(args[i].substring("--write-timeout=".length())) * 1000);
+            else if (args[i].startsWith("--max-line="))
+                maxLine = Integer.parseInt(args[i].substring("--max-line=".length()));
+            else if (args[i].startsWith("--rate="))
+                rate = Integer.parseInt(args[i].substring("--rate=".length()));
+            else if (args[i].startsWith("--burst="))
+                burst = Integer.parseInt(args[i].substring("--burst=".length()));
+            else if (args[i].startsWith("--mux="))
+                muxPort = Integer.parseInt(args[i].substring("--mux=".length()));
+            else if (args[i].startsWith("--resume="))
+                resumePort = Integer.parseInt(args[i].substring("--resume=".length()));
+            else {
+                System.out.printf("Unknown option %s\n", args[i]);
+                System.exit(1);
+            }
+        }
+
+        /* The spectator port takes RESUME too, without it sessions need a port of their own */
+        if (spectatePort != 0 && resumePort != 0) {
+            System.out.println("The spectator port takes RESUME, give --spectate or --resume");
+            System.exit(1);
+        }
+        if ((journalDir != null || standbyPort != 0) && spectatePort == 0 && resumePort == 0) {
+            System.out.println("Recovered games wait for their players to resume, --journal and --standby"
+                    + " need --spectate or --resume");
+            System.exit(1);
+        }
+
+        ServerMetrics metrics = new ServerMetrics();
+        metrics.register();
+        if (metricsPort != 0)
+            new MetricsEndpoint(metricsPort, metrics);
+
+        /* A standby only opens its ports once the primary has let go of them */
+        List<RecoveredGame> takeover = null;
+        if (standbyPort != 0) {
+            System.out.printf("Standing by on port %d\n", standbyPort);
+            takeover = new Standby(standbyPort, metrics).awaitTakeover(takeoverMillis);
+            System.out.printf("Primary is gone, taking over %d games\n", takeover.size());
+        }
+
+        SpectatorHub spectators = null;
+        if (spectatePort != 0) {
+            spectators = new SpectatorHub(spectatePort);
+            spectators.start();
+        }
+        else if (resumePort != 0) {
+            spectators = new SpectatorHub(resumePort, false);
+            spectators.start();
+        }
+
+        Replicator replicator = null;
+        if (replicateTo != null) {
+            replicator = new Replicator(replicateTo, metrics);
+            replicator.start();
+        }
+
+        TimeControl timeControl = null;
+        if (clockMillis > 0)
+            timeControl = new TimeControl(clockMillis, incrementMillis, delayMillis);
+
+        /* One wheel holds the timeouts of every game and connection */
+        TimerWheel timers = new TimerWheel();
+        timers.start();
+        EventLog events = new EventLog(logDir);
+        events.start();
+        ConnectionReactor reactor = new ConnectionReactor(timers, events, backpressure, maxQueued,
+                readTimeout, writeTimeout, maxLine, rate, burst);
+        reactor.start();
+
+        int port = Integer.parseInt(args[0]);
+        GameRegistry registry = new GameRegistry(recentResults);
+
+        /* Behind a router the worker only takes players the router sends */
+        LoadReporter reporter = null;
+        if (router != null) {
+            reporter = new LoadReporter(router, port, registry);
+            reporter.start();
+        }
+
+        ServerListener listener = new ServerListener(port, reactor);
+
+        /* Clients running many games at once carry them all on one connection */
+        if (muxPort != 0)
+            new MultiplexListener(muxPort, listener, reactor).start();
+
+        ChessServer server = new ChessServer(listener, spectators, journalDir, metrics,
+                registry, timeControl, reactor, reporter, replicator, takeover);
+    }
+
+    /**
+     * @param address host and port separated by a colon
+     * @return the address, resolved
+     */
+    private static InetSocketAddress address(String address) {
+        int colon = address.lastIndexOf(':');
+        return new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
     }
 
+    /**
+     * How long a worker waits for the ROUTE line of a routed player
+     */
+    private static final long ROUTE_TIMEOUT_MILLIS = 5000;
+
     private boolean keepAlive;
-    private LinkedList<ChessGame> games;
+    private int nextGameId;
+    private SpectatorHub spectators;
+    private MoveJournal journal;
+    private Replicator replicator;
+    private MoveLog moveLog;
+    private ServerMetrics metrics;
+    private GameRegistry registry;
+    private TimerWheel timers;
+    private ConnectionReactor reactor;
+    private LoadReporter reporter;
+    private TimeControl timeControl;
+    private SecureRandom random;
     private ServerListener listen;
 
+    /* Routed players waiting for the other player of their game */
+    private Map<Integer, RoutedPair> routed;
+
     /**
      * Create a new server with dimensions and port
-     * @param port port to listen on
+     * @param listen listener players connect through, started here
+     * @param spectators running spectator hub, null to disable spectating
+     * @param journalDir directory of the move journal, null to disable journaling
+     * @param metrics where games record what they do
+     * @param registry where running games are kept until they finish
+     * @param timeControl clock of every game, null for untimed games
+     * @param reactor running reactor that does all player socket IO
+     * @param reporter running load reporter of a worker behind a {@link ChessRouter},
+     *                 null if players connect directly
+     * @param replicator running replicator to a standby, null if there is none
+     * @param takeover games taken over from a primary by a {@link Standby}, null if none
+     * @throws ChessException if the journal cannot be recovered or opened
      */
-    public ChessServer(int port) {
-        this.games = new LinkedList<>();
+    public ChessServer(ServerListener listen, SpectatorHub spectators, Path journalDir, ServerMetrics metrics,
+                       GameRegistry registry, TimeControl timeControl, ConnectionReactor reactor,
+                       LoadReporter reporter, Replicator replicator, List<RecoveredGame> takeover)
+            throws ChessException {
+        this.registry = registry;
+        this.reporter = reporter;
+        this.replicator = replicator;
+        this.timeControl = timeControl;
+        this.reactor = reactor;
+        this.timers = reactor.getTimers();
+        if (timeControl != null)
+            System.out.printf("Games are played with %s\n", timeControl);
         this.keepAlive = true;
+        this.nextGameId = 1;
+        this.spectators = spectators;
+        this.metrics = metrics;
+        this.random = new SecureRandom();
+        this.routed = new HashMap<>();
+
+        /* Players resume through the spectator port */
+        if (spectators != null)
+            spectators.setResumer(this::resume);
+
+        List<RecoveredGame> recovered = new ArrayList<>();
+        if (journalDir != null) {
+            /* Rebuild unfinished games before new records are written */
+            recovered = MoveJournal.recover(journalDir);
+            this.journal = new MoveJournal(journalDir);
+            /* Finished games keep their records, their ids are not reused */
+            this.nextGameId = this.journal.getLastGameId() + 1;
+        }
+
+        /* Games record to the journal through the replicator */
+        this.moveLog = this.journal;
+        if (replicator != null) {
+            replicator.setNext(this.journal);
+            this.moveLog = replicator;
+        }
+
+        for (RecoveredGame g : recovered) {
+            System.out.printf("Recovered game %d after %d moves\n", g.getId(), g.getMoves());
+            this.journal.adopt(g.getId());
+            adopt(g);
+        }
+
+        if (takeover != null) {
+            for (RecoveredGame g : takeover) {
+                System.out.printf("Took over game %d after %d moves\n", g.getId(), g.getMoves());
+                if (this.journal != null)
+                    this.journal.restore(g.getRecords());
+                adopt(g);
+            }
+        }
 
         /* Start a threaded listener */
-        this.listen = new ServerListener(port);
+        this.listen = listen;
         this.listen.start();
 
         while (keepAlive) {
+            if (reporter != null) {
+                acceptRouted();
+                continue;
+            }
+
             ChessConnection[] clients = new ChessConnection[2];
+            long[] tokens = new long[2];
             for (int clientNum = 0; clientNum < 2; clientNum++) {
-                System.out.printf("Waiting for player %s...\n", clientNum == 0 ? "one" : "two");
-
                 /* Waits for accept or returns if someone else connected previously */
                 clients[clientNum] = this.listen.getConnection();
-                System.out.printf("Player %s connected! %s\n", clientNum == 0 ? "one" : "two", clients[clientNum]);
+                if (clients[clientNum] == null) {
+                    /* The listener was closed */
+                    if (clientNum == 1)
+                        clients[0].close();
+                    return;
+                }
+
+                getEvents().publish(EventLog.Type.CONNECT, 0, clients[clientNum].getId(), clientNum + 1,
+                        clients[clientNum].toString());
+                this.metrics.connected();
+
+                /* Player one may have hung up while waiting for player two */
+                if (clientNum == 1 && !clients[0].isOpen()) {
+                    getEvents().publish(EventLog.Type.LOST, 0, clients[0].getId(), 1, "Left before the game started");
+                    clients[0] = clients[1];
+                    clientNum = 0;
+                }
 
-                clients[clientNum].connect(clientNum == 0 ? ChessColor.BLACK : ChessColor.WHITE);
+                tokens[clientNum] = newToken();
+                clients[clientNum].connect(clientNum == 0 ? ChessColor.BLACK : ChessColor.WHITE,
+                        tokens[clientNum], spectators == null ? 0 : spectators.getPort());
+                clients[clientNum].flush();
             }
 
-            ChessGame currentGame = new ChessGame(clients[0], clients[1]);
-            this.games.add(currentGame);
-            currentGame.start();
+            startGame(new ChessGame(nextGameId++, clients[0], clients[1], tokens, this));
         }
 
         /* Stop listening
@@ -65,17 +337,177 @@ public class ChessServer {
         this.kill();
     }
 
+    /**
+     * Take the next player a router sent. Its ROUTE line is read on the
+     * reactor, so a connection that never sends one holds up nobody.
+     */
+    private void acceptRouted() {
+        ChessConnection conn = this.listen.getConnection();
+        if (conn != null)
+            conn.onFirstLine(this::routed, ROUTE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Seat a routed player, the game starts once both of its players are
+     * here. The router already paired them, its game id only matches the
+     * two up: the game gets an id of this server, so ids the router hands
+     * out again after a restart never clash with a running game.
+     * @param conn connection of the player
+     * @param route its first line, null if none came
+     */
+    private synchronized void routed(ChessConnection conn, String[] route) {
+        int game = -1, slot = -1;
+        if (route != null && route.length == 3 && route[0].equals(ChessProtocol.ROUTE)) {
+            try {
+                game = Integer.parseInt(route[1]);
+                slot = Integer.parseInt(route[2]);
+            } catch (NumberFormatException ignored) {}
+        }
+
+        if (game < 0 || (slot != 0 && slot != 1)) {
+            getEvents().publish(EventLog.Type.ERROR, 0, conn.getId(), 0, "Expected ROUTE");
+            conn.close();
+            return;
+        }
+
+        /* The router gives player two to a new game if player one left */
+        this.routed.values().removeIf(RoutedPair::isAbandoned);
+
+        RoutedPair pair = this.routed.computeIfAbsent(game, g -> new RoutedPair());
+        if (pair.clients[slot] != null) {
+            getEvents().publish(EventLog.Type.ERROR, 0, conn.getId(), 0, "Slot already routed");
+            conn.error();
+            conn.flush();
+            conn.close();
+            return;
+        }
+
+        getEvents().publish(EventLog.Type.CONNECT, 0, conn.getId(), slot + 1, conn.toString());
+        this.metrics.connected();
+
+        pair.clients[slot] = conn;
+        pair.tokens[slot] = newToken();
+        conn.connect(slot == 0 ? ChessColor.BLACK : ChessColor.WHITE,
+                pair.tokens[slot], spectators == null ? 0 : spectators.getPort());
+        conn.flush();
+
+        if (pair.clients[1 - slot] == null)
+            return;
+
+        this.routed.remove(game);
+        startGame(new ChessGame(nextGameId++, pair.clients[0], pair.clients[1], pair.tokens, this));
+    }
+
+    /**
+     * Continue a game that was running before this server started, it
+     * waits for its players to resume
+     * @param g game recovered from the journal or taken over from a primary
+     */
+    private void adopt(RecoveredGame g) {
+        this.nextGameId = Math.max(this.nextGameId, g.getId() + 1);
+        if (this.replicator != null)
+            this.replicator.adopt(g);
+
+        startGame(new ChessGame(g, this));
+    }
+
+    private void startGame(ChessGame game) {
+        this.registry.register(game);
+        game.start();
+    }
+
+    /**
+     * Session tokens are only useful when there is a port to resume on
+     * @return a random non-zero token, or 0 if sessions can't be resumed
+     */
+    private long newToken() {
+        if (this.spectators == null)
+            return 0;
+
+        long token;
+        do {
+            token = this.random.nextLong();
+        } while (token == 0 || this.registry.hasSession(token));
+
+        return token;
+    }
+
+    /**
+     * Called by the spectator hub when a client sends RESUME
+     * @param token session token of the player
+     * @param seen game messages the player received before it was lost
+     * @param channel the player's new connection
+     * @return false if no running game holds the token
+     */
+    private boolean resume(long token, int seen, SocketChannel channel) {
+        ChessGame game = this.registry.bySession(token);
+        this.metrics.connected();
+        return game != null && game.resume(token, this.reactor.register(channel), seen);
+    }
+
+    SpectatorHub getSpectators() {
+        return spectators;
+    }
+
+    /**
+     * @return where games record their moves, null if nowhere
+     */
+    MoveLog getJournal() {
+        return moveLog;
+    }
+
+    ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    GameRegistry getRegistry() {
+        return registry;
+    }
+
+    EventLog getEvents() {
+        return reactor.getEvents();
+    }
+
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    TimeControl getTimeControl() {
+        return timeControl;
+    }
+
     /**
      * Stop listening on the server port
      */
     public void kill() {
         this.keepAlive = false;
         this.listen.close();
+        if (this.spectators != null)
+            this.spectators.close();
+
+        /* Wait for all the games to finish, each evicts itself */
+        this.registry.awaitAll();
+        if (this.reporter != null)
+            this.reporter.close();
+        if (this.replicator != null)
+            this.replicator.close();
+        this.reactor.close();
+        this.timers.close();
+        getEvents().close();
+
+        if (this.journal != null)
+            this.journal.close();
+    }
+
+    /**
+     * Players of a routed game that has not started yet
+     */
+    private static class RoutedPair {
+        private ChessConnection[] clients = new ChessConnection[2];
+        private long[] tokens = new long[2];
 
-        /* Wait for all the games to finish */
-        for (ChessGame g = this.games.poll(); g != null; g = this.games.poll()) {
-            try {g.join();}
-            catch (InterruptedException ignored) {}
+        private boolean isAbandoned() {
+            return (clients[0] != null && !clients[0].isOpen()) || (clients[1] != null && !clients[1].isOpen());
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,151 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector loop that owns every player socket of the server.
+ * It also holds the settings and ids of every {@link ChessConnection},
+ * whatever its {@link Transport}.
+ * It reads all the time, so a client that hangs up is noticed even when
+ * no game is waiting on it, and finishes writes the game threads could
+ * not complete without blocking. Game threads only ever touch queues.
+ *
+ * @author Andrei Tumbar
+ */
+public class ConnectionReactor extends SelectorLoop {
+    /**
+     * Bytes that may wait in a connection's outbound queue
+     */
+    public static final int MAX_QUEUED_BYTES = 64 * 1024;
+
+    /**
+     * How long queued bytes may sit without the client reading any of them
+     */
+    public static final long WRITE_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * How long a game waits for a command before the player counts as lost
+     */
+    public static final long READ_TIMEOUT_MILLIS = 600000;
+
+    /**
+     * Longest line a client may send
+     */
+    public static final int MAX_LINE_BYTES = 4096;
+
+    /**
+     * Lines a client may send every second once its burst is used up
+     */
+    public static final int LINES_PER_SECOND = 100;
+
+    /**
+     * Lines a client may send at once
+     */
+    public static final int BURST_LINES = 200;
+
+    private TimerWheel timers;
+    private EventLog events;
+    private AtomicInteger nextConnId;
+    private Backpressure backpressure;
+    private int maxQueuedBytes;
+    private long readTimeoutMillis;
+    private long writeTimeoutMillis;
+    private int maxLineBytes;
+    private int linesPerSecond;
+    private int burstLines;
+
+    /**
+     * @param timers wheel for the write timeouts
+     * @param events log connections report to
+     * @param backpressure what to do with a connection whose queue is full
+     * @param maxQueuedBytes outbound byte limit of each connection
+     * @param readTimeoutMillis how long a game waits for a command
+     * @param writeTimeoutMillis how long a write may make no progress
+     * @param maxLineBytes longest line a client may send
+     * @param linesPerSecond lines a client may send every second, 0 for no limit
+     * @param burstLines lines a client may send at once
+     * @throws ChessException if the selector cannot be opened
+     */
+    public ConnectionReactor(TimerWheel timers, EventLog events, Backpressure backpressure, int maxQueuedBytes,
+                             long readTimeoutMillis, long writeTimeoutMillis,
+                             int maxLineBytes, int linesPerSecond, int burstLines) throws ChessException {
+        super("ConnectionReactor", openSelector());
+
+        this.timers = timers;
+        this.events = events;
+        this.nextConnId = new AtomicInteger(1);
+        this.backpressure = backpressure;
+        this.maxQueuedBytes = maxQueuedBytes;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.writeTimeoutMillis = writeTimeoutMillis;
+        this.maxLineBytes = maxLineBytes;
+        this.linesPerSecond = linesPerSecond;
+        this.burstLines = burstLines;
+    }
+
+    private static Selector openSelector() throws ChessException {
+        try {
+            return Selector.open();
+        } catch (IOException e) {
+            throw new ChessException("Failed to open selector", e);
+        }
+    }
+
+    /**
+     * Wrap a connected socket, may be called from any thread
+     * @param channel socket of a client
+     * @return connection the reactor reads and writes for
+     */
+    ChessConnection register(SocketChannel channel) {
+        return register(new SocketTransport(channel, this));
+    }
+
+    /**
+     * Wrap any transport in a connection with the settings of this reactor
+     * @param transport transport to a client, started here
+     * @return connection that games talk to
+     */
+    ChessConnection register(Transport transport) {
+        ChessConnection conn = new ChessConnection(this.nextConnId.getAndIncrement(), transport, this);
+        transport.start(conn);
+        return conn;
+    }
+
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    EventLog getEvents() {
+        return events;
+    }
+
+    Backpressure getBackpressure() {
+        return backpressure;
+    }
+
+    int getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    long getReadTimeoutMillis() {
+        return readTimeoutMillis;
+    }
+
+    long getWriteTimeoutMillis() {
+        return writeTimeoutMillis;
+    }
+
+    int getMaxLineBytes() {
+        return maxLineBytes;
+    }
+
+    /**
+     * @return a fresh rate limit for one connection, null if lines are not limited
+     */
+    TokenBucket newRateLimit() {
+        return linesPerSecond > 0 ? new TokenBucket(linesPerSecond, burstLines) : null;
+    }
+}
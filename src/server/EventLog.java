@@ -0,0 +1,276 @@
+package server;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured event log that never makes a game wait. Events are fixed
+ * size and copied into preallocated slots of a ring buffer, any thread
+ * may publish with a single CAS and no allocation. A background thread
+ * drains the ring in batches to rotating files, or to standard output
+ * when there is no log directory. If the writer falls a whole ring
+ * behind, new events are dropped and counted instead of blocking.
+ *
+ * @author Andrei Tumbar
+ */
+public class EventLog extends Thread {
+    /**
+     * Kinds of events
+     */
+    public enum Type {
+        CONNECT,
+        COMMAND,
+        GAME_START,
+        GAME_END,
+        RESUME,
+        LOST,
+        FLAG_FALL,
+        ERROR
+    }
+
+    /**
+     * Slots in the ring, a power of two
+     */
+    private static final int CAPACITY = 1 << 16;
+
+    /**
+     * Bytes of text an event keeps, longer text is cut
+     */
+    private static final int TEXT_BYTES = 64;
+
+    /**
+     * Size at which the log file is rotated
+     */
+    public static final long MAX_FILE_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Rotated files kept next to the current one
+     */
+    public static final int MAX_FILES = 4;
+
+    private static final int BATCH = 256;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /* Slots, written by the producer that claimed them */
+    private long[] times;
+    private int[] types;
+    private int[] games;
+    private int[] conns;
+    private long[] values;
+    private byte[] text;
+    private int[] textLengths;
+
+    /* Sequence published in each slot, the consumer waits for it */
+    private AtomicLongArray published;
+    private AtomicLong claimed;
+    private volatile long consumed;
+    private AtomicLong dropped;
+
+    private Path dir;
+    private FileChannel file;
+    private long fileBytes;
+    private PrintStream console;
+    private ByteBuffer out;
+    private volatile boolean running;
+
+    /**
+     * @param dir directory for the rotating log files, null to write to standard output
+     * @throws ChessException if the log file cannot be opened
+     */
+    public EventLog(Path dir) throws ChessException {
+        super("EventLog");
+        setDaemon(true);
+
+        this.times = new long[CAPACITY];
+        this.types = new int[CAPACITY];
+        this.games = new int[CAPACITY];
+        this.conns = new int[CAPACITY];
+        this.values = new long[CAPACITY];
+        this.text = new byte[CAPACITY * TEXT_BYTES];
+        this.textLengths = new int[CAPACITY];
+        this.published = new AtomicLongArray(CAPACITY);
+        for (int i = 0; i < CAPACITY; i++)
+            this.published.set(i, -1);
+        this.claimed = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.out = ByteBuffer.allocate(BATCH * (TEXT_BYTES + 192));
+        this.running = true;
+
+        this.dir = dir;
+        if (dir == null)
+            this.console = System.out;
+        else
+            openFile();
+    }
+
+    /**
+     * Publish an event, never blocks
+     * @param type kind of event
+     * @param game game id, 0 if none
+     * @param conn connection id, 0 if none
+     * @param value number that goes with the event
+     * @param message text that goes with the event, may be null
+     */
+    public void publish(Type type, int game, int conn, long value, CharSequence message) {
+        long seq;
+        do {
+            seq = this.claimed.get();
+            if (seq - this.consumed >= CAPACITY) {
+                this.dropped.incrementAndGet();
+                return;
+            }
+        } while (!this.claimed.compareAndSet(seq, seq + 1));
+
+        int slot = (int) (seq & (CAPACITY - 1));
+        this.times[slot] = System.currentTimeMillis();
+        this.types[slot] = type.ordinal();
+        this.games[slot] = game;
+        this.conns[slot] = conn;
+        this.values[slot] = value;
+
+        int length = 0;
+        if (message != null) {
+            length = Math.min(message.length(), TEXT_BYTES);
+            int base = slot * TEXT_BYTES;
+            for (int i = 0; i < length; i++) {
+                char c = message.charAt(i);
+                this.text[base + i] = c < 0x20 || c > 0x7e ? (byte) '?' : (byte) c;
+            }
+        }
+        this.textLengths[slot] = length;
+
+        /* Makes the slot visible to the writer */
+        this.published.set(slot, seq);
+    }
+
+    /**
+     * @param type kind of event
+     * @param game game id, 0 if none
+     * @param message text that goes with the event, may be null
+     */
+    public void publish(Type type, int game, CharSequence message) {
+        publish(type, game, 0, 0, message);
+    }
+
+    /**
+     * @return events dropped because the writer fell behind
+     */
+    public long getDropped() {
+        return this.dropped.get();
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            if (drain() == 0)
+                LockSupport.parkNanos(IDLE_NANOS);
+        }
+
+        drain();
+        try {
+            if (this.file != null)
+                this.file.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Write everything published so far
+     * @return number of events written
+     */
+    private int drain() {
+        int total = 0;
+        while (true) {
+            int n = 0;
+            long seq = this.consumed;
+            while (n < BATCH && this.published.get((int) (seq & (CAPACITY - 1))) == seq) {
+                format((int) (seq & (CAPACITY - 1)));
+                seq++;
+                n++;
+            }
+
+            if (n == 0)
+                return total;
+
+            write();
+            /* Frees the slots for producers */
+            this.consumed = seq;
+            total += n;
+        }
+    }
+
+    private void format(int slot) {
+        String line = String.format("%s %s game=%d conn=%d value=%d ",
+                Instant.ofEpochMilli(this.times[slot]), Type.values()[this.types[slot]],
+                this.games[slot], this.conns[slot], this.values[slot]);
+        this.out.put(line.getBytes(StandardCharsets.US_ASCII));
+        this.out.put(this.text, slot * TEXT_BYTES, this.textLengths[slot]);
+        this.out.put((byte) '\n');
+    }
+
+    private void write() {
+        this.out.flip();
+        try {
+            if (this.console != null) {
+                this.console.write(this.out.array(), 0, this.out.limit());
+                this.console.flush();
+            } else {
+                while (this.out.hasRemaining())
+                    this.fileBytes += this.file.write(this.out);
+                if (this.fileBytes >= MAX_FILE_BYTES)
+                    rotate();
+            }
+        } catch (IOException | ChessException e) {
+            System.err.println("Failed to write event log: " + e.getMessage());
+        }
+        this.out.clear();
+    }
+
+    private void openFile() throws ChessException {
+        try {
+            Files.createDirectories(this.dir);
+            this.file = FileChannel.open(this.dir.resolve("events.log"),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.fileBytes = this.file.size();
+        } catch (IOException e) {
+            throw new ChessException("Failed to open event log in " + this.dir, e);
+        }
+    }
+
+    /**
+     * events.log becomes events.log.1, the oldest file is deleted
+     */
+    private void rotate() throws IOException, ChessException {
+        this.file.close();
+        Files.deleteIfExists(this.dir.resolve("events.log." + MAX_FILES));
+        for (int i = MAX_FILES - 1; i >= 1; i--) {
+            Path from = this.dir.resolve("events.log." + i);
+            if (Files.exists(from))
+                Files.move(from, this.dir.resolve("events.log." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(this.dir.resolve("events.log"), this.dir.resolve("events.log.1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    /**
+     * Write what is left and stop the writer
+     */
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this);
+        try {
+            join();
+        } catch (InterruptedException ignored) {}
+    }
+}
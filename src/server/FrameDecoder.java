@@ -0,0 +1,238 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits what a {@link Transport} reads into protocol frames, one per
+ * line, and each frame into its space separated fields. Fields are read
+ * in place from the buffer, numbers are parsed from the bytes and a
+ * String is only built for a field that asks for one. The fields of a
+ * frame are valid until the handler returns.
+ *
+ * Not thread safe, a session decodes on one thread at a time.
+ *
+ * @author Andrei Tumbar
+ */
+public class FrameDecoder {
+    /**
+     * Gets each complete frame
+     */
+    public interface Handler {
+        /**
+         * @param frame decoder positioned on the frame
+         * @return false to hold this frame and the ones after it for the next {@link #decode}
+         */
+        boolean frame(FrameDecoder frame);
+    }
+
+    /**
+     * Fields past this many are only reachable through {@link #getRest(int)}
+     */
+    private static final int MAX_FIELDS = 24;
+
+    private ByteBuffer buffer;
+    private byte[] bytes;
+
+    /* The current frame */
+    private int[] starts;
+    private int[] ends;
+    private int fields;
+    private int end;
+
+    /**
+     * @param maxFrameBytes longest frame, the size of the buffer
+     */
+    public FrameDecoder(int maxFrameBytes) {
+        this.buffer = ByteBuffer.allocate(maxFrameBytes);
+        this.bytes = this.buffer.array();
+        this.starts = new int[MAX_FIELDS];
+        this.ends = new int[MAX_FIELDS];
+    }
+
+    /**
+     * Read what the transport has without blocking
+     * @param transport transport to read
+     * @return bytes read, -1 at the end of the stream
+     * @throws IOException if the transport failed
+     */
+    public int read(Transport transport) throws IOException {
+        return transport.read(this.buffer);
+    }
+
+    /**
+     * Hand every complete frame read so far to a handler, empty lines are skipped
+     * @param handler gets the frames in order
+     * @return false if the buffer is full without a whole frame in it
+     */
+    public boolean decode(Handler handler) {
+        this.buffer.flip();
+        int start = 0;
+        boolean stopped = false;
+        for (int i = 0; i < this.buffer.limit() && !stopped; i++) {
+            if (this.bytes[i] != '\n')
+                continue;
+
+            split(start, i > start && this.bytes[i - 1] == '\r' ? i - 1 : i);
+            stopped = this.fields > 0 && !handler.frame(this);
+            if (!stopped)
+                start = i + 1;
+        }
+
+        this.buffer.position(start);
+        this.buffer.compact();
+        return stopped || this.buffer.hasRemaining();
+    }
+
+    /**
+     * Forget every byte read, a partial frame from a lost connection can't be finished
+     */
+    public void clear() {
+        this.buffer.clear();
+        this.fields = 0;
+    }
+
+    private void split(int start, int end) {
+        this.fields = 0;
+        this.end = end;
+        int i = start;
+        while (i < end && this.fields < MAX_FIELDS) {
+            while (i < end && this.bytes[i] == ' ')
+                i++;
+            if (i == end)
+                break;
+
+            this.starts[this.fields] = i;
+            while (i < end && this.bytes[i] != ' ')
+                i++;
+            this.ends[this.fields++] = i;
+        }
+    }
+
+    /**
+     * @return number of fields, the opcode included
+     */
+    public int size() {
+        return this.fields;
+    }
+
+    /**
+     * @param field index of the field, 0 is the opcode
+     * @return the field as a decimal int
+     * @throws IllegalArgumentException if the field is missing or not a number
+     */
+    public int getInt(int field) {
+        long value = getLong(field);
+        if (value != (int) value)
+            throw new NumberFormatException("Field " + field + " is out of range");
+        return (int) value;
+    }
+
+    /**
+     * @param field index of the field, 0 is the opcode
+     * @return the field as a decimal long
+     * @throws IllegalArgumentException if the field is missing or not a number
+     */
+    public long getLong(int field) {
+        check(field);
+        int i = this.starts[field];
+        boolean negative = this.bytes[i] == '-';
+        if (negative)
+            i++;
+        if (i == this.ends[field] || this.ends[field] - i > 18)
+            throw new NumberFormatException("Field " + field + " is not a number: " + getString(field));
+
+        long value = 0;
+        for (; i < this.ends[field]; i++) {
+            int digit = this.bytes[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Field " + field + " is not a number: " + getString(field));
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * @param field index of the field, 0 is the opcode
+     * @return the field as up to 16 hex digits, unsigned
+     * @throws IllegalArgumentException if the field is missing or not hex
+     */
+    public long getHex(int field) {
+        check(field);
+        if (this.ends[field] - this.starts[field] > 16)
+            throw new NumberFormatException("Field " + field + " is too long: " + getString(field));
+
+        long value = 0;
+        for (int i = this.starts[field]; i < this.ends[field]; i++) {
+            int digit = Character.digit(this.bytes[i], 16);
+            if (digit < 0)
+                throw new NumberFormatException("Field " + field + " is not hex: " + getString(field));
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+
+    /**
+     * @param field index of the field, 0 is the opcode
+     * @return the field decoded as ASCII
+     * @throws IllegalArgumentException if the field is missing
+     */
+    public String getString(int field) {
+        check(field);
+        return new String(this.bytes, this.starts[field], this.ends[field] - this.starts[field],
+                StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param field index of the first field
+     * @return the frame from that field to its end, empty if there is no such field
+     */
+    public String getRest(int field) {
+        if (field >= this.fields)
+            return "";
+        return new String(this.bytes, this.starts[field], this.end - this.starts[field], StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @param field index of the field, 0 is the opcode
+     * @param word ASCII bytes to compare with
+     * @return true if the field holds exactly those bytes
+     */
+    public boolean is(int field, byte[] word) {
+        if (field >= this.fields || this.ends[field] - this.starts[field] != word.length)
+            return false;
+        for (int i = 0; i < word.length; i++)
+            if (this.bytes[this.starts[field] + i] != word[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Hash of a field's bytes, the same as {@link #hash(byte[])} of them
+     * @param field index of the field, 0 is the opcode
+     */
+    int hashField(int field) {
+        int h = 0;
+        for (int i = this.starts[field]; i < this.ends[field]; i++)
+            h = 31 * h + this.bytes[i];
+        return h;
+    }
+
+    static int hash(byte[] word) {
+        int h = 0;
+        for (byte b : word)
+            h = 31 * h + b;
+        return h;
+    }
+
+    private void check(int field) {
+        if (field >= this.fields)
+            throw new IllegalArgumentException("Frame has no field " + field);
+    }
+
+    @Override
+    public String toString() {
+        return this.fields == 0 ? "" : getRest(0);
+    }
+}
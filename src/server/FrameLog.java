@@ -0,0 +1,81 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only list of every frame a game has broadcast.
+ * Only the game thread appends, the spectator hub reads.
+ * Frames are shared read-only buffers so each one is encoded
+ * once no matter how many spectators read it.
+ *
+ * @author Andrei Tumbar
+ */
+class FrameLog {
+    private volatile ByteBuffer[] frames;
+    private volatile int size;
+    private volatile boolean closed;
+    private final AtomicBoolean queued;
+
+    FrameLog() {
+        this.frames = new ByteBuffer[64];
+        this.size = 0;
+        this.closed = false;
+        this.queued = new AtomicBoolean(false);
+    }
+
+    /**
+     * Add a frame to the end of the log, game thread only
+     * @param frame read-only frame
+     */
+    void append(ByteBuffer frame) {
+        ByteBuffer[] current = this.frames;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, size * 2);
+            this.frames = current;
+        }
+
+        current[size] = frame;
+        size = size + 1;
+    }
+
+    /**
+     * @return number of frames published so far
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get a private view of a frame
+     * @param index index below {@link #size()}
+     * @return duplicate of the shared buffer
+     */
+    ByteBuffer get(int index) {
+        return frames[index].duplicate();
+    }
+
+    /**
+     * No more frames will be added, the game is over
+     */
+    void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Mark this log as waiting for the hub
+     * @return false if it was already waiting
+     */
+    boolean markQueued() {
+        return queued.compareAndSet(false, true);
+    }
+
+    void clearQueued() {
+        queued.set(false);
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chess clock of one game. Only the game thread starts and stops it, the
+ * flag-fall task scheduled on the {@link TimerWheel} runs on the wheel thread.
+ *
+ * @author Andrei Tumbar
+ */
+class GameClock {
+    private TimeControl control;
+    private TimerWheel timers;
+    private long[] remaining;
+    private int running;
+    private long turnStart;
+    private TimerWheel.Timeout flag;
+
+    GameClock(TimeControl control, TimerWheel timers) {
+        this.control = control;
+        this.timers = timers;
+        this.remaining = new long[]{control.getBaseMillis(), control.getBaseMillis()};
+        this.running = -1;
+    }
+
+    /**
+     * Start the clock of a player
+     * @param slot player whose turn it is
+     * @param onFlag runs on the wheel thread if the player runs out of time
+     */
+    void start(int slot, Runnable onFlag) {
+        this.running = slot;
+        this.turnStart = System.nanoTime();
+        this.flag = this.timers.schedule(onFlag,
+                this.control.getDelayMillis() + this.remaining[slot], TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the running clock after a move, charging the time past the delay
+     * and adding the increment
+     * @return false if the player had run out of time
+     */
+    boolean stop() {
+        int slot = this.running;
+        this.running = -1;
+        this.flag.cancel();
+
+        long used = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - this.turnStart);
+        this.remaining[slot] -= Math.max(0, used - this.control.getDelayMillis());
+        if (this.remaining[slot] <= 0) {
+            this.remaining[slot] = 0;
+            return false;
+        }
+
+        this.remaining[slot] += this.control.getIncrementMillis();
+        return true;
+    }
+
+    /**
+     * Stop the clock without charging anyone, the game is over
+     */
+    void cancel() {
+        if (this.running >= 0)
+            this.flag.cancel();
+        this.running = -1;
+    }
+
+    boolean isRunning() {
+        return this.running >= 0;
+    }
+
+    /**
+     * @return time left for a player, as of the start of its current turn
+     */
+    long getRemaining(int slot) {
+        return this.remaining[slot];
+    }
+}
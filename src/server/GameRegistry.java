@@ -0,0 +1,122 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Running games by id and by session token. A game is evicted as soon
+ * as its results are sent, so only live games stay reachable. An
+ * optional bounded cache keeps the results of the most recent games.
+ *
+ * @author Andrei Tumbar
+ */
+public class GameRegistry {
+    private Map<Integer, ChessGame> games;
+    private Map<Long, ChessGame> sessions;
+    private Map<Integer, GameResult> recent;
+
+    /**
+     * @param recentResults results of finished games to remember, 0 to keep none
+     */
+    public GameRegistry(int recentResults) {
+        this.games = new ConcurrentHashMap<>();
+        this.sessions = new ConcurrentHashMap<>();
+        this.recent = new LinkedHashMap<Integer, GameResult>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, GameResult> eldest) {
+                return size() > recentResults;
+            }
+        };
+    }
+
+    /**
+     * Make a game and its session tokens known, before it is started
+     * @param game game to add
+     */
+    void register(ChessGame game) {
+        this.games.put(game.getGameId(), game);
+        for (long token : game.getTokens())
+            if (token != 0)
+                this.sessions.put(token, game);
+    }
+
+    /**
+     * Evict a game whose results were sent
+     * @param game game that ended
+     * @param result what to remember of it
+     */
+    void finished(ChessGame game, GameResult result) {
+        for (long token : game.getTokens())
+            this.sessions.remove(token);
+        this.games.remove(game.getGameId(), game);
+
+        synchronized (this.recent) {
+            this.recent.put(result.getId(), result);
+        }
+    }
+
+    /**
+     * @return running game, null if there is none with that id
+     */
+    public ChessGame get(int id) {
+        return this.games.get(id);
+    }
+
+    /**
+     * @return running game holding a session token, null if none
+     */
+    ChessGame bySession(long token) {
+        return this.sessions.get(token);
+    }
+
+    boolean hasSession(long token) {
+        return this.sessions.containsKey(token);
+    }
+
+    /**
+     * @return result of a recently finished game, null if it was not kept
+     */
+    public GameResult getResult(int id) {
+        synchronized (this.recent) {
+            return this.recent.get(id);
+        }
+    }
+
+    /**
+     * @return results of recently finished games, least recently used first
+     */
+    public List<GameResult> getRecentResults() {
+        synchronized (this.recent) {
+            return new ArrayList<>(this.recent.values());
+        }
+    }
+
+    /**
+     * @return number of running games
+     */
+    public int size() {
+        return this.games.size();
+    }
+
+    public Collection<ChessGame> getGames() {
+        return this.games.values();
+    }
+
+    /**
+     * Wait until every registered game has finished
+     */
+    void awaitAll() {
+        while (!this.games.isEmpty()) {
+            for (ChessGame g : new ArrayList<>(this.games.values())) {
+                try {g.join();}
+                catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
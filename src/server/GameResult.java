@@ -0,0 +1,61 @@
+package server;
+
+import chess.ChessColor;
+
+/**
+ * What is kept of a game after the {@link GameRegistry} evicts it
+ *
+ * @author Andrei Tumbar
+ */
+public class GameResult {
+    private int id;
+    private ChessColor winner;
+    private int moves;
+    private long durationMillis;
+    private long endedAt;
+
+    /**
+     * @param id game id
+     * @param winner winning color, NONE for a tie, null if the game ended in an error
+     * @param moves moves made
+     * @param durationMillis how long the game ran
+     */
+    GameResult(int id, ChessColor winner, int moves, long durationMillis) {
+        this.id = id;
+        this.winner = winner;
+        this.moves = moves;
+        this.durationMillis = durationMillis;
+        this.endedAt = System.currentTimeMillis();
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return winning color, NONE for a tie, null if the game ended in an error
+     */
+    public ChessColor getWinner() {
+        return winner;
+    }
+
+    public int getMoves() {
+        return moves;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the game ended
+     */
+    public long getEndedAt() {
+        return endedAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Game %d: %s after %d moves", id, winner == null ? "ERROR" : winner.name(), moves);
+    }
+}
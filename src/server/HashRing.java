@@ -0,0 +1,95 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring of the workers behind a {@link ChessRouter}. Every
+ * worker owns many points on the ring, and a game goes to the first worker
+ * clockwise of its id that is not over the load bound, a little above the
+ * average load. Adding or removing a worker only moves the games whose
+ * points it owns, and no worker ends up far busier than the rest.
+ *
+ * @author Andrei Tumbar
+ */
+class HashRing {
+    /**
+     * Points each worker owns on the ring
+     */
+    static final int REPLICAS = 64;
+
+    /**
+     * How far above the average load a worker may go
+     */
+    static final double LOAD_FACTOR = 1.25;
+
+    private TreeMap<Integer, WorkerNode> ring;
+    private List<WorkerNode> nodes;
+
+    HashRing() {
+        this.ring = new TreeMap<>();
+        this.nodes = new ArrayList<>();
+    }
+
+    /**
+     * @param node worker that started reporting
+     */
+    synchronized void add(WorkerNode node) {
+        this.nodes.add(node);
+        for (int i = 0; i < REPLICAS; i++)
+            this.ring.put(hash((node + "#" + i).hashCode()), node);
+    }
+
+    /**
+     * @param node worker that stopped reporting
+     */
+    synchronized void remove(WorkerNode node) {
+        this.nodes.remove(node);
+        this.ring.values().removeIf(n -> n == node);
+    }
+
+    /**
+     * Pick the worker of a game
+     * @param game id of the game
+     * @return worker to send both players to, null if there are no workers
+     */
+    synchronized WorkerNode pick(int game) {
+        if (this.nodes.isEmpty())
+            return null;
+
+        /* Count the new game so the bound is never below one */
+        long total = 1;
+        for (WorkerNode n : this.nodes)
+            total += n.getLoad();
+        double bound = Math.ceil(LOAD_FACTOR * total / this.nodes.size());
+
+        int point = hash(game);
+        for (Map<Integer, WorkerNode> part : List.of(this.ring.tailMap(point), this.ring.headMap(point))) {
+            for (WorkerNode n : part.values()) {
+                if (n.getLoad() < bound)
+                    return n;
+            }
+        }
+
+        /* Not reached, the least loaded worker is always below the bound */
+        return this.nodes.get(0);
+    }
+
+    synchronized int size() {
+        return this.nodes.size();
+    }
+
+    /**
+     * Spread the bits of a key over the ring, the murmur3 finalizer
+     */
+    private static int hash(int key) {
+        key ^= key >>> 16;
+        key *= 0x85ebca6b;
+        key ^= key >>> 13;
+        key *= 0xc2b2ae35;
+        key ^= key >>> 16;
+        return key;
+    }
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free log-linear histogram in the style of HdrHistogram.
+ * Every power of two is split into {@link #SUB_BUCKETS} buckets, so a
+ * recorded value is off by at most about 6%. Recording is a couple of
+ * atomic increments and never allocates, so it can stay on in the
+ * move path.
+ *
+ * @author Andrei Tumbar
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (62 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private AtomicLongArray counts;
+    private AtomicLong count;
+    private AtomicLong max;
+
+    public Histogram() {
+        this.counts = new AtomicLongArray(BUCKETS);
+        this.count = new AtomicLong();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Add a value, negative values count as 0
+     * @param value value to add
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value))
+            current = max.get();
+    }
+
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BITS) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowestValue(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BITS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return largest value recorded
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Value at a percentile, read while values are still being recorded
+     * @param percentile between 0 and 100
+     * @return lowest value of the bucket holding the percentile, 0 if empty
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts.get(i);
+        if (total == 0)
+            return 0;
+
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return lowestValue(i);
+        }
+
+        return getMax();
+    }
+}
@@ -0,0 +1,90 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Keeps a control connection from a worker to its {@link ChessRouter} and
+ * sends the number of running games every second. The router only sends
+ * games to workers it hears from, so the connection is opened again
+ * whenever it drops.
+ *
+ * @author Andrei Tumbar
+ */
+public class LoadReporter extends Thread implements ChessProtocol {
+    /**
+     * Time between two reports
+     */
+    public static final long INTERVAL_MILLIS = 1000;
+
+    private InetSocketAddress router;
+    private int port;
+    private GameRegistry registry;
+    private Socket socket;
+    private volatile boolean running;
+
+    /**
+     * @param router control address of the router
+     * @param port port this worker accepts routed players on
+     * @param registry games of this worker
+     */
+    public LoadReporter(InetSocketAddress router, int port, GameRegistry registry) {
+        super("LoadReporter");
+        setDaemon(true);
+
+        this.router = router;
+        this.port = port;
+        this.registry = registry;
+        this.running = true;
+    }
+
+    @Override
+    public void run() {
+        boolean warned = false;
+        while (this.running) {
+            try {
+                if (this.socket == null) {
+                    this.socket = new Socket();
+                    this.socket.connect(this.router, (int) INTERVAL_MILLIS);
+                    this.socket.setTcpNoDelay(true);
+                    System.out.printf("Reporting load to router %s\n", this.router);
+                    warned = false;
+                }
+
+                String line = String.format("%s %d %d\n", LOAD, this.port, this.registry.size());
+                this.socket.getOutputStream().write(line.getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException e) {
+                if (!warned)
+                    System.err.printf("Lost router %s: %s\n", this.router, e.getMessage());
+                warned = true;
+                closeSocket();
+            }
+
+            try {
+                Thread.sleep(INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+
+        closeSocket();
+    }
+
+    private void closeSocket() {
+        try {
+            if (this.socket != null)
+                this.socket.close();
+        } catch (IOException ignored) {}
+        this.socket = null;
+    }
+
+    /**
+     * Stop reporting, the router drops this worker
+     */
+    public void close() {
+        this.running = false;
+        this.interrupt();
+    }
+}
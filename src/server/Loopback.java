@@ -0,0 +1,350 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * In-memory transports, so games can be played inside one process
+ * without sockets. {@link #pair()} makes the two ends of a duplex channel,
+ * each direction a lock-free ring of bytes with one writer and one reader.
+ *
+ * Ends driven by events get them through this loop, in the order they
+ * happened, on the loop's own thread once it is started or on whatever
+ * thread calls {@link #runPending()}. Ends used through their streams
+ * park until the other end makes progress.
+ *
+ * @author Andrei Tumbar
+ */
+public class Loopback extends Thread {
+    /**
+     * Bytes each direction holds before writes stop taking them, a power of two
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+
+    private ConcurrentLinkedQueue<Runnable> events;
+    private volatile boolean running;
+
+    public Loopback() {
+        super("Loopback");
+        setDaemon(true);
+
+        this.events = new ConcurrentLinkedQueue<>();
+        this.running = true;
+    }
+
+    /**
+     * Make a connected pair of ends
+     * @return two transports, what one writes the other reads
+     */
+    public Transport[] pair() {
+        Ring ab = new Ring();
+        Ring ba = new Ring();
+        int id = nextId.getAndIncrement();
+        End a = new End(id + "a", ba, ab);
+        End b = new End(id + "b", ab, ba);
+        a.peer = b;
+        b.peer = a;
+        return new Transport[]{a, b};
+    }
+
+    /**
+     * Run every event queued so far on the calling thread
+     * @return number of events run
+     */
+    public int runPending() {
+        int n = 0;
+        for (Runnable event = this.events.poll(); event != null; event = this.events.poll()) {
+            event.run();
+            n++;
+        }
+        return n;
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            if (runPending() == 0)
+                LockSupport.park(this);
+        }
+    }
+
+    private void post(Runnable event) {
+        this.events.add(event);
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Stop the loop thread, events still queued are dropped
+     */
+    public void close() {
+        this.running = false;
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Bytes going one way. Counters only grow, the writer owns tail and
+     * the reader owns head.
+     */
+    private static class Ring {
+        private byte[] data = new byte[BUFFER_SIZE];
+        private AtomicLong head = new AtomicLong();
+        private AtomicLong tail = new AtomicLong();
+        private volatile boolean writerClosed;
+        private volatile boolean readerClosed;
+
+        int write(ByteBuffer src) {
+            long t = this.tail.get();
+            int n = (int) Math.min(src.remaining(), BUFFER_SIZE - (t - this.head.get()));
+            int at = (int) (t & (BUFFER_SIZE - 1));
+            int first = Math.min(n, BUFFER_SIZE - at);
+            src.get(this.data, at, first);
+            src.get(this.data, 0, n - first);
+            this.tail.set(t + n);
+            return n;
+        }
+
+        int read(ByteBuffer dst) {
+            long h = this.head.get();
+            int n = (int) Math.min(dst.remaining(), this.tail.get() - h);
+            if (n == 0)
+                return this.writerClosed && this.tail.get() == h ? -1 : 0;
+
+            int at = (int) (h & (BUFFER_SIZE - 1));
+            int first = Math.min(n, BUFFER_SIZE - at);
+            dst.put(this.data, at, first);
+            dst.put(this.data, 0, n - first);
+            this.head.set(h + n);
+            return n;
+        }
+
+        boolean hasData() {
+            return this.tail.get() != this.head.get() || this.writerClosed;
+        }
+
+        boolean hasRoom() {
+            return this.tail.get() - this.head.get() < BUFFER_SIZE;
+        }
+    }
+
+    /**
+     * One end of a pair
+     */
+    private class End implements Transport {
+        private String name;
+        private Ring in;
+        private Ring out;
+        private End peer;
+        private volatile Handler handler;
+        private volatile boolean closed;
+        private volatile boolean writeWanted;
+        private AtomicBoolean readPosted;
+        private AtomicBoolean writePosted;
+
+        /* Threads parked in the streams */
+        private volatile Thread reader;
+        private volatile Thread writer;
+
+        End(String name, Ring in, Ring out) {
+            this.name = name;
+            this.in = in;
+            this.out = out;
+            this.readPosted = new AtomicBoolean();
+            this.writePosted = new AtomicBoolean();
+        }
+
+        @Override
+        public void start(Handler handler) {
+            this.handler = handler;
+            /* Bytes may have arrived before the handler */
+            if (this.in.hasData())
+                readable();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (this.closed)
+                throw new IOException("Transport is closed");
+
+            int n = this.in.read(dst);
+            if (n > 0)
+                this.peer.drained();
+            return n;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            if (this.closed)
+                throw new IOException("Transport is closed");
+            if (this.out.readerClosed)
+                throw new IOException("Closed by the other end");
+
+            long total = 0;
+            for (ByteBuffer src : srcs) {
+                total += this.out.write(src);
+                if (src.hasRemaining())
+                    break;
+            }
+
+            if (total > 0)
+                this.peer.readable();
+            return total;
+        }
+
+        @Override
+        public void wantWrite() {
+            this.writeWanted = true;
+            /* The reader may have drained the ring before the flag was up */
+            if (this.out.hasRoom() || this.out.readerClosed)
+                writable();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !this.closed;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed)
+                return;
+
+            this.closed = true;
+            this.out.writerClosed = true;
+            this.in.readerClosed = true;
+            this.peer.readable();
+            this.peer.drained();
+        }
+
+        /**
+         * Bytes or the end of the stream arrived
+         */
+        private void readable() {
+            Handler h = this.handler;
+            if (h != null) {
+                if (this.readPosted.compareAndSet(false, true))
+                    post(() -> {
+                        this.readPosted.set(false);
+                        if (this.closed)
+                            return;
+
+                        h.onReadable();
+                        /* Events are edge triggered, come back for what the handler left */
+                        if (!this.closed && this.in.hasData())
+                            readable();
+                    });
+            } else
+                LockSupport.unpark(this.reader);
+        }
+
+        /**
+         * The other end read, there is room to write
+         */
+        private void drained() {
+            Handler h = this.handler;
+            if (h != null) {
+                if (this.writeWanted)
+                    writable();
+            } else
+                LockSupport.unpark(this.writer);
+        }
+
+        private void writable() {
+            Handler h = this.handler;
+            if (h != null && this.writePosted.compareAndSet(false, true))
+                post(() -> {
+                    this.writePosted.set(false);
+                    if (this.closed)
+                        return;
+
+                    /* Down before the handler runs, so a wantWrite() from inside it or
+                     * from a game thread meanwhile is not overwritten */
+                    this.writeWanted = false;
+                    if (!h.onWritable()) {
+                        this.writeWanted = true;
+                        /* The reader may have drained the ring while the flag was down */
+                        if (this.out.hasRoom() || this.out.readerClosed)
+                            writable();
+                    }
+                });
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            if (this.handler != null)
+                throw new IOException("Transport is driven by events");
+
+            return new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (len == 0)
+                        return 0;
+
+                    ByteBuffer dst = ByteBuffer.wrap(b, off, len);
+                    while (true) {
+                        int n = End.this.read(dst);
+                        if (n != 0)
+                            return n;
+
+                        /* Check again after publishing the thread so a wakeup is not lost */
+                        reader = Thread.currentThread();
+                        if (!in.hasData())
+                            LockSupport.park(End.this);
+                        reader = null;
+                        if (Thread.interrupted())
+                            throw new InterruptedIOException();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (this.handler != null)
+                throw new IOException("Transport is driven by events");
+
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    ByteBuffer[] src = {ByteBuffer.wrap(b, off, len)};
+                    while (src[0].hasRemaining()) {
+                        if (End.this.write(src) > 0)
+                            continue;
+
+                        writer = Thread.currentThread();
+                        if (!out.hasRoom() && !out.readerClosed)
+                            LockSupport.park(End.this);
+                        writer = null;
+                        if (Thread.interrupted())
+                            throw new InterruptedIOException();
+                    }
+                }
+            };
+        }
+
+        @Override
+        public String toString() {
+            return "Loopback[" + this.name + "]";
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tiny HTTP server answering GET /metrics with {@link ServerMetrics} as text.
+ * Only listens on the loopback interface.
+ *
+ * @author Andrei Tumbar
+ */
+public class MetricsEndpoint {
+    private HttpServer http;
+    private ServerMetrics metrics;
+
+    /**
+     * Start serving metrics
+     * @param port local port to listen on
+     * @param metrics metrics to serve
+     * @throws ChessException if the port cannot be opened
+     */
+    public MetricsEndpoint(int port, ServerMetrics metrics) throws ChessException {
+        this.metrics = metrics;
+
+        try {
+            this.http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        } catch (IOException e) {
+            throw new ChessException("Failed to open metrics port " + port, e);
+        }
+
+        this.http.createContext("/metrics", this::handle);
+        this.http.start();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = metrics.toText().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Stop serving
+     */
+    public void close() {
+        this.http.stop(0);
+    }
+}
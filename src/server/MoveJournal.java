@@ -0,0 +1,490 @@
+package server;
+
+import chess.ChessColor;
+import chess.pieces.Piece;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead journal of every accepted move of every live game.
+ *
+ * Records are a fixed {@link #RECORD_SIZE} bytes and are appended to
+ * memory-mapped segment files, so an append is a handful of stores
+ * into the page cache and survives the server process dying. A
+ * background thread forces dirty segments to disk every
+ * {@link #SYNC_MILLIS} so all the moves made in that window share one
+ * fsync.
+ *
+ * When a segment fills up the journal rotates to a new one. The sync
+ * thread then forces the old segment and reclaims space: segments that
+ * only hold finished games are deleted, and once there are too many
+ * segments the records of games still running are copied forward so a
+ * long game does not pin old segments.
+ *
+ * @author Andrei Tumbar
+ */
+public class MoveJournal implements MoveLog {
+    static final int RECORD_SIZE = 32;
+    static final int SEGMENT_RECORDS = 32768;
+    static final int MAX_SEGMENTS = 8;
+    static final long SYNC_MILLIS = 5;
+    /* Records compaction copies forward per hold of the lock */
+    static final int COPY_BATCH = 512;
+
+    /* Record types, 0 marks the unused end of a segment.
+     * CHOSE stores the index into Piece.PROMOTIONS in aux,
+     * SESSION stores the player slot in aux and its token as payload */
+    static final byte START = 1;
+    static final byte MOVE = 2;
+    static final byte CHOSE = 3;
+    static final byte END = 4;
+    static final byte SESSION = 5;
+
+    private static final String SEGMENT_FORMAT = "journal-%08d.seg";
+
+    private Path directory;
+    private TreeMap<Long, Path> segments;
+    private long segmentNum;
+    private FileChannel segmentFile;
+    private MappedByteBuffer segment;
+    private boolean dirty;
+    private List<MappedByteBuffer> retired;
+    private boolean compactWanted;
+    private CRC32 crc;
+    private ByteBuffer record;
+
+    /* Game id to the oldest segment holding one of its records */
+    private Map<Integer, Long> liveGames;
+
+    /* Highest game id in any segment, old records must never match a new game */
+    private int lastGameId;
+
+    private Thread syncer;
+    private volatile boolean keepAlive;
+
+    /**
+     * Open a journal in a directory, new records go to a fresh segment
+     * after any segments already there
+     * @param directory directory holding the segments
+     * @throws ChessException if the directory cannot be used
+     */
+    public MoveJournal(Path directory) throws ChessException {
+        this.directory = directory;
+        this.segments = new TreeMap<>();
+        this.liveGames = new HashMap<>();
+        this.crc = new CRC32();
+        this.record = ByteBuffer.allocate(RECORD_SIZE);
+        this.dirty = false;
+        this.retired = new ArrayList<>();
+
+        try {
+            Files.createDirectories(directory);
+            for (Path p : listSegments(directory)) {
+                segments.put(segmentNumber(p), p);
+                for (Record r : readSegment(p))
+                    lastGameId = Math.max(lastGameId, r.gameId);
+            }
+
+            segmentNum = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+            openSegment();
+        } catch (IOException e) {
+            throw new ChessException("Failed to open journal in " + directory, e);
+        }
+
+        this.keepAlive = true;
+        this.syncer = new Thread(this::syncLoop, "JournalSync");
+        this.syncer.setDaemon(true);
+        this.syncer.start();
+    }
+
+    /**
+     * New games must take ids above this, a finished game's records stay
+     * in the segments and would be mistaken for the new game's
+     * @return highest game id the journal holds records of, 0 if none
+     */
+    public synchronized int getLastGameId() {
+        return lastGameId;
+    }
+
+    /**
+     * Record that a game started
+     * @param gameId id of the game
+     */
+    @Override
+    public synchronized void start(int gameId) {
+        liveGames.put(gameId, segmentNum);
+        append(gameId, 0, START, (byte) 0, 0, 0, 0, 0, System.currentTimeMillis());
+    }
+
+    /**
+     * Record the session token handed to a player so it can resume after a restart
+     * @param gameId id of the game
+     * @param seq record number within the game
+     * @param slot 0 for player one, 1 for player two
+     * @param token token sent with CONNECT
+     */
+    @Override
+    public synchronized void session(int gameId, int seq, int slot, long token) {
+        append(gameId, seq, SESSION, (byte) slot, 0, 0, 0, 0, token);
+    }
+
+    /**
+     * Keep the records of a recovered game until it ends
+     * @param gameId id of a game returned by {@link #recover(Path)}
+     */
+    public synchronized void adopt(int gameId) {
+        liveGames.put(gameId, segments.firstKey());
+    }
+
+    /**
+     * Record an accepted move
+     * @param gameId id of the game
+     * @param seq record number within the game
+     */
+    @Override
+    public synchronized void move(int gameId, int seq, int startRow, int startCol, int row, int col) {
+        append(gameId, seq, MOVE, (byte) 0, startRow, startCol, row, col, 0);
+    }
+
+    /**
+     * Record the piece a pawn was promoted to
+     * @param gameId id of the game
+     * @param seq record number within the game
+     * @param name one of {@link Piece#PROMOTIONS}
+     */
+    @Override
+    public synchronized void chose(int gameId, int seq, String name, ChessColor color, int row, int col) {
+        append(gameId, seq, CHOSE, promotion(name), color.ordinal(), row, col, 0, 0);
+    }
+
+    /**
+     * Record that a game is over, it will not be recovered
+     * @param gameId id of the game
+     * @param seq record number within the game
+     */
+    @Override
+    public synchronized void end(int gameId, int seq) {
+        append(gameId, seq, END, (byte) 0, 0, 0, 0, 0, 0);
+        liveGames.remove(gameId);
+    }
+
+    /**
+     * Keep the records of a game taken over from a primary, the journal
+     * then holds the whole game as if it had started here
+     * @param records records of the game sorted by sequence number
+     */
+    public synchronized void restore(List<Record> records) {
+        if (records.isEmpty())
+            return;
+
+        liveGames.put(records.get(0).gameId, segmentNum);
+        for (Record r : records)
+            append(r.gameId, r.seq, r.type, r.aux, r.a, r.b, r.c, r.d, r.payload);
+    }
+
+    private void append(int gameId, int seq, byte type, byte aux, int a, int b, int c, int d, long payload) {
+        record.clear();
+        encode(record, crc, gameId, seq, type, aux, a, b, c, d, payload);
+        record.flip();
+        lastGameId = Math.max(lastGameId, gameId);
+
+        if (!segment.hasRemaining())
+            rotate();
+
+        segment.put(record);
+        dirty = true;
+    }
+
+    /**
+     * Move to a new segment, the sync thread forces the old one and
+     * reclaims space
+     */
+    private void rotate() {
+        try {
+            /* The mapping outlives its channel */
+            retired.add(segment);
+            segmentFile.close();
+            segmentNum++;
+            openSegment();
+            compactWanted = true;
+        } catch (IOException e) {
+            /* Without a journal games keep running, they just won't be recoverable */
+            System.err.println("Failed to rotate journal: " + e.getMessage());
+        }
+    }
+
+    private void openSegment() throws IOException {
+        Path p = directory.resolve(String.format(SEGMENT_FORMAT, segmentNum));
+        segmentFile = FileChannel.open(p, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = segmentFile.map(FileChannel.MapMode.READ_WRITE, 0, (long) RECORD_SIZE * SEGMENT_RECORDS);
+        segments.put(segmentNum, p);
+    }
+
+    /**
+     * Delete old segments whose games are all finished. Once there are
+     * more than {@link #MAX_SEGMENTS}, the oldest segments still holding
+     * live games have those records copied forward and are deleted too.
+     * Runs on the sync thread, the lock is only held to look at and
+     * change the segment lists and to append the copies.
+     */
+    private void compact() throws IOException {
+        List<Long> old;
+        synchronized (this) {
+            old = new ArrayList<>(segments.headMap(segmentNum).keySet());
+        }
+
+        for (long num : old) {
+            Path p;
+            boolean copy;
+            synchronized (this) {
+                /* close() interrupts this thread, it must not rotate after that */
+                if (!keepAlive)
+                    return;
+                p = segments.get(num);
+                copy = liveGames.values().stream().anyMatch(s -> s <= num);
+                if (copy && segments.size() <= MAX_SEGMENTS)
+                    return;
+                if (!copy)
+                    segments.remove(num);
+            }
+
+            if (copy) {
+                /* Nothing appends to an old segment, read it without the lock */
+                List<Record> records = readSegment(p);
+                for (int i = 0; i < records.size(); i += COPY_BATCH) {
+                    /* Games append between batches */
+                    synchronized (this) {
+                        if (!keepAlive)
+                            return;
+                        for (Record r : records.subList(i, Math.min(i + COPY_BATCH, records.size()))) {
+                            if (liveGames.containsKey(r.gameId))
+                                append(r.gameId, r.seq, r.type, r.aux, r.a, r.b, r.c, r.d, r.payload);
+                        }
+                    }
+                }
+                synchronized (this) {
+                    liveGames.replaceAll((id, s) -> s <= num ? num + 1 : s);
+                    segments.remove(num);
+                }
+
+                /* The copies must be on disk before the originals go */
+                sync();
+            }
+
+            Files.deleteIfExists(p);
+        }
+    }
+
+    /**
+     * Force retired segments and the current one if it has new records
+     */
+    private void sync() {
+        List<MappedByteBuffer> toSync;
+        synchronized (this) {
+            toSync = new ArrayList<>(retired);
+            retired.clear();
+            if (dirty)
+                toSync.add(segment);
+            dirty = false;
+        }
+
+        /* force() outside the lock, appends carry on meanwhile */
+        for (MappedByteBuffer b : toSync)
+            b.force();
+    }
+
+    private void syncLoop() {
+        while (keepAlive) {
+            try {
+                Thread.sleep(SYNC_MILLIS);
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            sync();
+
+            /* A rotation while compacting asks again */
+            synchronized (this) {
+                if (!compactWanted)
+                    continue;
+                compactWanted = false;
+            }
+
+            try {
+                compact();
+            } catch (IOException e) {
+                System.err.println("Failed to compact journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Flush everything and stop the sync thread
+     */
+    public synchronized void close() {
+        keepAlive = false;
+        syncer.interrupt();
+        try {
+            for (MappedByteBuffer b : retired)
+                b.force();
+            retired.clear();
+            segment.force();
+            segmentFile.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close journal");
+        }
+    }
+
+    /**
+     * One decoded journal record
+     */
+    static class Record {
+        int gameId;
+        int seq;
+        byte type;
+        byte aux;
+        int a, b, c, d;
+        long payload;
+    }
+
+    /**
+     * Put one record of {@link #RECORD_SIZE} bytes at the position of a buffer
+     * @param out heap buffer with room for the record
+     * @param crc checksum to reuse
+     */
+    static void encode(ByteBuffer out, CRC32 crc, int gameId, int seq, byte type, byte aux,
+                       int a, int b, int c, int d, long payload) {
+        int base = out.position();
+        out.putInt(gameId).putInt(seq).put(type).put(aux)
+                .put((byte) a).put((byte) b).put((byte) c).put((byte) d)
+                .putShort((short) 0).putLong(payload);
+        crc.reset();
+        crc.update(out.array(), out.arrayOffset() + base, 24);
+        out.putInt((int) crc.getValue()).putInt(0);
+    }
+
+    /**
+     * Take one record from the position of a buffer
+     * @param data heap buffer with at least {@link #RECORD_SIZE} bytes left
+     * @param check checksum to reuse
+     * @return the record, null if it is unused or torn
+     */
+    static Record decode(ByteBuffer data, CRC32 check) {
+        int base = data.position();
+        Record r = new Record();
+        r.gameId = data.getInt();
+        r.seq = data.getInt();
+        r.type = data.get();
+        r.aux = data.get();
+        r.a = data.get();
+        r.b = data.get();
+        r.c = data.get();
+        r.d = data.get();
+        data.getShort();
+        r.payload = data.getLong();
+        int sum = data.getInt();
+        data.getInt();
+
+        check.reset();
+        check.update(data.array(), data.arrayOffset() + base, 24);
+        if (r.type == 0 || sum != (int) check.getValue())
+            return null;
+
+        return r;
+    }
+
+    /**
+     * @param name one of {@link Piece#PROMOTIONS}
+     * @return index of the piece, stored in aux of a CHOSE record
+     */
+    static byte promotion(String name) {
+        byte kind = 0;
+        for (byte i = 0; i < Piece.PROMOTIONS.length; i++)
+            if (Piece.PROMOTIONS[i].equals(name))
+                kind = i;
+
+        return kind;
+    }
+
+    /**
+     * Read all valid records of a segment, stopping at the first unused or torn record
+     * @param p segment file
+     * @return records in the order they were written
+     */
+    static List<Record> readSegment(Path p) throws IOException {
+        List<Record> records = new ArrayList<>();
+        CRC32 check = new CRC32();
+        ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(p));
+
+        while (data.remaining() >= RECORD_SIZE) {
+            Record r = decode(data, check);
+            if (r == null)
+                break;
+
+            records.add(r);
+        }
+
+        return records;
+    }
+
+    /**
+     * Rebuild every game that was not finished when the journal was last written.
+     * Games are replayed in parallel.
+     * @param directory journal directory
+     * @return the unfinished games
+     * @throws ChessException if the journal cannot be read
+     */
+    public static List<RecoveredGame> recover(Path directory) throws ChessException {
+        Map<Integer, Map<Integer, Record>> games = new HashMap<>();
+
+        try {
+            if (!Files.isDirectory(directory))
+                return new ArrayList<>();
+
+            for (Path p : listSegments(directory)) {
+                for (Record r : readSegment(p)) {
+                    /* Compaction may have copied a record, the first copy wins */
+                    games.computeIfAbsent(r.gameId, id -> new TreeMap<>()).putIfAbsent(r.seq, r);
+                }
+            }
+        } catch (IOException e) {
+            throw new ChessException("Failed to read journal in " + directory, e);
+        }
+
+        return games.entrySet().parallelStream()
+                .filter(g -> g.getValue().values().stream().noneMatch(r -> r.type == END))
+                .map(g -> RecoveredGame.replay(g.getKey(), new ArrayList<>(g.getValue().values())))
+                .collect(Collectors.toList());
+    }
+
+    private static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> list = new ArrayList<>();
+        try (DirectoryStream<Path> dir = Files.newDirectoryStream(directory, "journal-*.seg")) {
+            for (Path p : dir)
+                list.add(p);
+        }
+
+        list.sort((x, y) -> Long.compare(segmentNumber(x), segmentNumber(y)));
+        return list;
+    }
+
+    private static long segmentNumber(Path p) {
+        String name = p.getFileName().toString();
+        return Long.parseLong(name.substring("journal-".length(), name.length() - ".seg".length()));
+    }
+}
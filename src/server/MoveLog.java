@@ -0,0 +1,49 @@
+package server;
+
+import chess.ChessColor;
+
+/**
+ * Where a game records what it accepted, in the order it accepted it.
+ * The {@link MoveJournal} writes the records to disk and the
+ * {@link Replicator} streams them to a standby server.
+ *
+ * @author Andrei Tumbar
+ */
+public interface MoveLog {
+    /**
+     * Record that a game started
+     * @param gameId id of the game
+     */
+    void start(int gameId);
+
+    /**
+     * Record the session token handed to a player
+     * @param gameId id of the game
+     * @param seq record number within the game
+     * @param slot 0 for player one, 1 for player two
+     * @param token token sent with CONNECT
+     */
+    void session(int gameId, int seq, int slot, long token);
+
+    /**
+     * Record an accepted move
+     * @param gameId id of the game
+     * @param seq record number within the game
+     */
+    void move(int gameId, int seq, int startRow, int startCol, int row, int col);
+
+    /**
+     * Record the piece a pawn was promoted to
+     * @param gameId id of the game
+     * @param seq record number within the game
+     * @param name one of {@link chess.pieces.Piece#PROMOTIONS}
+     */
+    void chose(int gameId, int seq, String name, ChessColor color, int row, int col);
+
+    /**
+     * Record that a game is over
+     * @param gameId id of the game
+     * @param seq record number within the game
+     */
+    void end(int gameId, int seq);
+}
@@ -0,0 +1,73 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Accepts {@link Multiplexer multiplexed} connections on a port of their
+ * own. Every game a connection joins is handed to the
+ * {@link ServerListener} like a player that connected by itself, so it is
+ * paired and played the same way.
+ *
+ * @author Andrei Tumbar
+ */
+class MultiplexListener extends Thread {
+    private ServerSocketChannel listen;
+    private ServerListener players;
+    private ConnectionReactor reactor;
+    private volatile boolean keepAlive;
+
+    /**
+     * @param port port to listen on
+     * @param players listener that queues the games for pairing
+     * @param reactor reactor that drives the sockets
+     * @throws ChessException if the port cannot be bound
+     */
+    MultiplexListener(int port, ServerListener players, ConnectionReactor reactor) throws ChessException {
+        super("MultiplexListener");
+        setDaemon(true);
+
+        this.players = players;
+        this.reactor = reactor;
+        try {
+            this.listen = ServerSocketChannel.open();
+            this.listen.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            this.listen.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new ChessException("Failed to listen for multiplexed connections on port " + port, e);
+        }
+        this.keepAlive = true;
+    }
+
+    @Override
+    public void run() {
+        while (this.keepAlive) {
+            SocketChannel channel;
+            try {
+                channel = this.listen.accept();
+            } catch (IOException e) {
+                /* This socket was closed */
+                this.keepAlive = false;
+                return;
+            }
+
+            new Multiplexer(new SocketTransport(channel, this.reactor), this.reactor.getMaxLineBytes(),
+                    this.players::accept).start();
+        }
+    }
+
+    /**
+     * Stop accepting, open connections keep their games
+     */
+    public void close() {
+        this.keepAlive = false;
+        try {
+            this.listen.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close multiplexed server socket");
+        }
+    }
+}
@@ -0,0 +1,488 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Carries many games over one {@link Transport}. Every line on it starts
+ * with the id of the game it belongs to, and each id is a virtual
+ * transport of its own, so a {@link ChessConnection} or a client runs on
+ * one unchanged. One decoder reads the physical transport for all of
+ * them.
+ *
+ * A side opens a game with {@link ChessProtocol#JOIN} under an id of its
+ * choosing and either side ends it with {@link ChessProtocol#LEAVE}, the
+ * other side then reads the end of that game's stream. Lines of a game
+ * the other side has left are dropped.
+ *
+ * @author Andrei Tumbar
+ */
+public class Multiplexer implements Transport.Handler, FrameDecoder.Handler {
+    /**
+     * Games one connection may have open
+     */
+    public static final int MAX_CHANNELS = 4096;
+
+    /**
+     * Bytes queued for the physical transport before the games must wait
+     */
+    private static final int OUT_BYTES = 64 * 1024;
+
+    private static final byte[] JOIN = ChessProtocol.JOIN.getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LEAVE = ChessProtocol.LEAVE.getBytes(StandardCharsets.US_ASCII);
+
+    private Transport transport;
+    private int maxLineBytes;
+    private Consumer<Transport> joined;
+    private FrameDecoder decoder;
+
+    /* Guarded by this */
+    private Map<Long, Channel> channels;
+    private Set<Channel> waiting;
+    private ByteBuffer out;
+    private boolean writeWanted;
+    private volatile boolean closed;
+
+    /**
+     * @param transport physical transport, not started yet
+     * @param maxLineBytes longest line of a game, without its id
+     * @param joined gets each game the other side opens, started by whoever takes it; null to refuse them
+     */
+    public Multiplexer(Transport transport, int maxLineBytes, Consumer<Transport> joined) {
+        this.transport = transport;
+        this.maxLineBytes = maxLineBytes;
+        this.joined = joined;
+        this.decoder = new FrameDecoder(maxLineBytes + 21);
+        this.channels = new HashMap<>();
+        this.waiting = new LinkedHashSet<>();
+        this.out = ByteBuffer.allocate(OUT_BYTES);
+    }
+
+    /**
+     * Start reading the physical transport
+     */
+    public void start() {
+        this.transport.start(this);
+    }
+
+    /**
+     * Open a game on this side
+     * @param id id no open game of this connection has
+     * @return transport of the game, not started yet
+     * @throws IOException if the id is taken or the connection is closed
+     */
+    public Transport open(long id) throws IOException {
+        Channel c;
+        synchronized (this) {
+            if (this.closed)
+                throw new IOException("Connection is closed");
+            if (this.channels.containsKey(id))
+                throw new IOException("Game " + id + " is already open");
+            if (this.channels.size() >= MAX_CHANNELS)
+                throw new IOException("Too many games on one connection");
+
+            c = new Channel(id);
+            this.channels.put(id, c);
+        }
+
+        if (!send(id, JOIN)) {
+            c.close();
+            throw new IOException("Connection is backed up");
+        }
+        return c;
+    }
+
+    /**
+     * @return number of open games
+     */
+    public synchronized int size() {
+        return this.channels.size();
+    }
+
+    /**
+     * Close the physical transport, every game reads the end of its stream
+     */
+    public void close() {
+        this.transport.close();
+        closeAll();
+    }
+
+    @Override
+    public void onReadable() {
+        while (true) {
+            int n;
+            try {
+                n = this.decoder.read(this.transport);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            if (n == 0)
+                return;
+
+            if (!this.decoder.decode(this)) {
+                System.err.printf("Line too long on %s\n", this.transport);
+                close();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public boolean frame(FrameDecoder frame) {
+        long id;
+        try {
+            id = frame.getLong(0);
+        } catch (IllegalArgumentException e) {
+            System.err.printf("Line without a game id on %s: %s\n", this.transport, frame);
+            close();
+            return true;
+        }
+
+        if (frame.size() < 2)
+            return true;
+
+        Channel c;
+        synchronized (this) {
+            c = this.channels.get(id);
+        }
+
+        if (frame.is(1, JOIN))
+            join(id, c);
+        else if (frame.is(1, LEAVE)) {
+            if (c != null)
+                c.left();
+        }
+        else if (c != null)
+            c.deliver(frame.getRest(1));
+        return true;
+    }
+
+    private void join(long id, Channel c) {
+        if (c != null || this.joined == null) {
+            send(id, LEAVE);
+            return;
+        }
+
+        synchronized (this) {
+            if (this.channels.size() >= MAX_CHANNELS)
+                c = null;
+            else {
+                c = new Channel(id);
+                this.channels.put(id, c);
+            }
+        }
+
+        if (c == null)
+            send(id, LEAVE);
+        else
+            this.joined.accept(c);
+    }
+
+    @Override
+    public boolean onWritable() {
+        List<Channel> ready;
+        synchronized (this) {
+            this.writeWanted = false;
+            if (!flush())
+                return false;
+
+            ready = new ArrayList<>(this.waiting);
+            this.waiting.clear();
+        }
+        if (this.closed) {
+            closeAll();
+            return true;
+        }
+
+        /* Outside the lock, the games take their own locks and write back into this */
+        for (Channel c : ready) {
+            Transport.Handler h = c.handler;
+            if (h != null && !h.onWritable())
+                c.wantWrite();
+        }
+
+        synchronized (this) {
+            /* A game that still waits asked for another round */
+            return this.out.position() == 0 && !this.writeWanted;
+        }
+    }
+
+    /**
+     * Queue a line of one game and write what the physical transport takes
+     * @return false if it does not fit
+     */
+    private boolean send(long id, byte[] line) {
+        boolean sent = false, failed;
+        byte[] prefix = (id + " ").getBytes(StandardCharsets.US_ASCII);
+        synchronized (this) {
+            if (!this.closed && this.out.remaining() >= prefix.length + line.length + 1) {
+                this.out.put(prefix).put(line).put((byte) '\n');
+                flush();
+                sent = true;
+            }
+            failed = this.closed;
+        }
+
+        if (failed)
+            closeAll();
+        return sent;
+    }
+
+    /**
+     * Write queued bytes, called holding the lock. When the physical
+     * transport fails the connection is closed, the caller tells the
+     * games once it lets go of the lock.
+     * @return true if nothing is left
+     */
+    private boolean flush() {
+        if (this.out.position() > 0) {
+            this.out.flip();
+            try {
+                this.transport.write(new ByteBuffer[]{this.out});
+                this.out.compact();
+            } catch (IOException e) {
+                this.out.clear();
+                this.closed = true;
+                this.transport.close();
+                return true;
+            }
+        }
+
+        if (this.out.position() == 0)
+            return true;
+
+        if (!this.writeWanted) {
+            this.writeWanted = true;
+            this.transport.wantWrite();
+        }
+        return false;
+    }
+
+    /**
+     * Every game reads the end of its stream, called without the lock
+     */
+    private void closeAll() {
+        List<Channel> open;
+        synchronized (this) {
+            this.closed = true;
+            open = new ArrayList<>(this.channels.values());
+            this.channels.clear();
+            this.waiting.clear();
+        }
+
+        for (Channel c : open)
+            c.left();
+    }
+
+    @Override
+    public String toString() {
+        return "Multiplexer[" + this.transport + "]";
+    }
+
+    /**
+     * One game on the connection
+     */
+    private class Channel implements Transport {
+        private long id;
+        private byte[] prefix;
+        private volatile Handler handler;
+
+        /* Lines that came in, guarded by the channel */
+        private ByteBuffer in;
+        private volatile boolean ended;
+        private volatile boolean closed;
+
+        Channel(long id) {
+            this.id = id;
+            this.prefix = (id + " ").getBytes(StandardCharsets.US_ASCII);
+            this.in = ByteBuffer.allocate(maxLineBytes * 2);
+        }
+
+        @Override
+        public void start(Handler handler) {
+            this.handler = handler;
+            /* Lines may have arrived before the handler */
+            boolean pending;
+            synchronized (this) {
+                pending = this.in.position() > 0 || this.ended;
+            }
+            if (pending)
+                handler.onReadable();
+        }
+
+        /**
+         * A line of this game came in
+         * @param line the line without its id
+         */
+        void deliver(String line) {
+            byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+            boolean fits;
+            synchronized (this) {
+                fits = this.in.remaining() > bytes.length;
+                if (fits)
+                    this.in.put(bytes).put((byte) '\n');
+            }
+
+            /* The game is not reading what it is sent, drop it */
+            if (!fits) {
+                System.err.printf("Game %d on %s is not reading\n", this.id, transport);
+                close();
+                return;
+            }
+
+            Handler h = this.handler;
+            if (h != null)
+                h.onReadable();
+        }
+
+        /**
+         * The other side left the game or the connection ended
+         */
+        void left() {
+            this.ended = true;
+            synchronized (Multiplexer.this) {
+                channels.remove(this.id, this);
+                waiting.remove(this);
+            }
+
+            Handler h = this.handler;
+            if (h != null)
+                h.onReadable();
+        }
+
+        @Override
+        public synchronized int read(ByteBuffer dst) throws IOException {
+            if (this.closed)
+                throw new IOException("Transport is closed");
+
+            this.in.flip();
+            int n = Math.min(dst.remaining(), this.in.remaining());
+            int limit = this.in.limit();
+            this.in.limit(this.in.position() + n);
+            dst.put(this.in);
+            this.in.limit(limit);
+            this.in.compact();
+
+            if (n == 0 && this.ended)
+                return -1;
+            return n;
+        }
+
+        /**
+         * Only whole lines are taken, each written with the game's id in front.
+         * Bytes after the last newline of a buffer count as a line of their own.
+         */
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException {
+            if (this.closed)
+                throw new IOException("Transport is closed");
+            if (this.ended)
+                throw new IOException("Closed by the other end");
+
+            long total = 0;
+            synchronized (Multiplexer.this) {
+                if (Multiplexer.this.closed)
+                    throw new IOException("Connection is closed");
+
+                for (ByteBuffer src : srcs) {
+                    while (src.hasRemaining()) {
+                        int start = src.position(), end = start;
+                        while (end < src.limit() && src.get(end) != '\n')
+                            end++;
+                        int length = end - start;
+                        boolean newline = end < src.limit();
+
+                        if (out.remaining() < this.prefix.length + length + 1)
+                            break;
+
+                        out.put(this.prefix);
+                        ByteBuffer line = src.duplicate();
+                        line.limit(end);
+                        out.put(line);
+                        out.put((byte) '\n');
+                        src.position(newline ? end + 1 : end);
+                        total += src.position() - start;
+                    }
+                    if (src.hasRemaining())
+                        break;
+                }
+
+                flush();
+                if (Multiplexer.this.closed) {
+                    channels.remove(this.id, this);
+                    this.ended = true;
+                }
+            }
+
+            /* This game hears of it from the exception, the others from the end of their streams */
+            if (this.ended) {
+                closeAll();
+                throw new IOException("Connection is closed");
+            }
+            return total;
+        }
+
+        @Override
+        public void wantWrite() {
+            synchronized (Multiplexer.this) {
+                if (Multiplexer.this.closed || this.closed || this.ended)
+                    return;
+                waiting.add(this);
+                /* With nothing queued the physical transport has room now */
+                if (!writeWanted) {
+                    writeWanted = true;
+                    transport.wantWrite();
+                }
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return !this.closed && !this.ended;
+        }
+
+        @Override
+        public void close() {
+            if (this.closed)
+                return;
+            this.closed = true;
+
+            boolean open;
+            synchronized (Multiplexer.this) {
+                open = channels.remove(this.id, this);
+                waiting.remove(this);
+            }
+            if (open && !this.ended)
+                send(this.id, LEAVE);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("Multiplexed games are driven by events");
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Multiplexed games are driven by events");
+        }
+
+        @Override
+        public String toString() {
+            return transport + " game " + this.id;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * What to do with each kind of frame, keyed by its opcode, the first
+ * field. A lookup hashes the opcode bytes in place and probes an open
+ * addressed table, so no String is built for it and there is no chain of
+ * equals calls. Build one table per kind of session and share it; it is
+ * only read once built.
+ *
+ * @param <T> session the actions run on
+ * @author Andrei Tumbar
+ */
+public class OpcodeTable<T> {
+    /**
+     * Handles one kind of frame
+     * @param <T> session the action runs on
+     */
+    public interface Action<T> {
+        void run(T session, FrameDecoder frame);
+    }
+
+    /* A power of two, at least twice the number of opcodes in the protocol */
+    private static final int CAPACITY = 64;
+
+    private byte[][] opcodes;
+    private Object[] actions;
+    private int size;
+
+    public OpcodeTable() {
+        this.opcodes = new byte[CAPACITY][];
+        this.actions = new Object[CAPACITY];
+    }
+
+    /**
+     * Add an action
+     * @param opcode first field of the frames it handles
+     * @param action what to do with them
+     * @return this table
+     */
+    public OpcodeTable<T> on(String opcode, Action<T> action) {
+        if (this.size >= CAPACITY / 2)
+            throw new IllegalStateException("Too many opcodes");
+
+        byte[] word = opcode.getBytes(StandardCharsets.US_ASCII);
+        int i = slot(FrameDecoder.hash(word));
+        while (this.opcodes[i] != null && !Arrays.equals(this.opcodes[i], word))
+            i = (i + 1) & (CAPACITY - 1);
+
+        if (this.opcodes[i] == null)
+            this.size++;
+        this.opcodes[i] = word;
+        this.actions[i] = action;
+        return this;
+    }
+
+    /**
+     * @param frame decoded frame
+     * @return action for its opcode, null if there is none
+     */
+    @SuppressWarnings("unchecked")
+    public Action<T> get(FrameDecoder frame) {
+        if (frame.size() == 0)
+            return null;
+
+        for (int i = slot(frame.hashField(0)); this.opcodes[i] != null; i = (i + 1) & (CAPACITY - 1))
+            if (frame.is(0, this.opcodes[i]))
+                return (Action<T>) this.actions[i];
+        return null;
+    }
+
+    private static int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (CAPACITY - 1);
+    }
+}
@@ -0,0 +1,141 @@
+package server;
+
+import chess.ChessBoard;
+import chess.ChessColor;
+import chess.pieces.Piece;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An unfinished game rebuilt from the {@link MoveJournal}, or the shadow
+ * a standby keeps of a game of its primary
+ *
+ * @author Andrei Tumbar
+ */
+public class RecoveredGame {
+    private int id;
+    private ChessBoard board;
+    private int moves;
+    private int nextSeq;
+    private long[] tokens;
+    private FrameLog frames;
+    private List<MoveJournal.Record> records;
+    private boolean broken;
+
+    /**
+     * Start a game from the initial position, records are added with {@link #apply(MoveJournal.Record)}
+     * @param id game id
+     */
+    RecoveredGame(int id) {
+        this.id = id;
+        this.board = new ChessBoard();
+        this.board.initBoard();
+        this.moves = 0;
+        this.nextSeq = 1;
+        this.tokens = new long[2];
+        this.frames = new FrameLog();
+        this.frames.append(ChessConnection.frame(ChessProtocol.STARTGAME));
+        this.records = new ArrayList<>();
+    }
+
+    /**
+     * Apply the journal records of one game in order
+     * @param id game id
+     * @param records records of the game sorted by sequence number
+     * @return the rebuilt game
+     */
+    static RecoveredGame replay(int id, List<MoveJournal.Record> records) {
+        RecoveredGame game = new RecoveredGame(id);
+        for (MoveJournal.Record r : records)
+            if (!game.apply(r))
+                break;
+
+        return game;
+    }
+
+    /**
+     * Apply the next record of the game
+     * @param r record with the next sequence number
+     * @return false if the record does not fit the game, later records are ignored
+     */
+    boolean apply(MoveJournal.Record r) {
+        if (this.broken)
+            return false;
+
+        try {
+            if (r.type == MoveJournal.SESSION)
+                this.tokens[r.aux] = r.payload;
+            else if (r.type == MoveJournal.MOVE) {
+                try {
+                    this.board.applyMove(r.a, r.b, r.c, r.d);
+                } catch (PawnInterrupt ignored) {
+                    /* The server board never waits for promotions */
+                }
+
+                /* Frames are rebuilt in the order the players saw them */
+                this.frames.append(ChessConnection.frame("%s %d %d %d %d %s", ChessProtocol.MOVE_MADE,
+                        r.a, r.b, r.c, r.d, Long.toHexString(this.board.hash())));
+                this.moves++;
+            }
+            else if (r.type == MoveJournal.CHOSE) {
+                Piece p = Piece.createPiece(this.board, ChessColor.values()[r.a],
+                        Piece.PROMOTIONS[r.aux], r.b, r.c);
+                this.board.chosePiece(p);
+                this.frames.append(ChessConnection.frame("%s %s %s %d %d",
+                        ChessProtocol.CHOSE, p.getName(), p.getColor().name(), p.getRow(), p.getCol()));
+            }
+        } catch (ChessException | RuntimeException e) {
+            System.err.printf("Journal of game %d is inconsistent at %d\n", this.id, r.seq);
+            this.broken = true;
+            return false;
+        }
+
+        this.records.add(r);
+        this.nextSeq = r.seq + 1;
+        return true;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public ChessBoard getBoard() {
+        return board;
+    }
+
+    /**
+     * @return number of moves made, even means player one is to move
+     */
+    public int getMoves() {
+        return moves;
+    }
+
+    /**
+     * @return sequence number for the next journal record of this game
+     */
+    public int getNextSeq() {
+        return nextSeq;
+    }
+
+    /**
+     * @return session tokens of player one and two, 0 if never recorded
+     */
+    long[] getTokens() {
+        return tokens;
+    }
+
+    /**
+     * @return records applied to the game so far
+     */
+    List<MoveJournal.Record> getRecords() {
+        return records;
+    }
+
+    /**
+     * @return frames the players had received before the restart
+     */
+    FrameLog getFrames() {
+        return frames;
+    }
+}
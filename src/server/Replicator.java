@@ -0,0 +1,336 @@
+package server;
+
+import chess.ChessColor;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Streams every record of every live game to a {@link Standby} server so
+ * it can take over without replaying a journal. Records use the
+ * {@link MoveJournal} format. Game threads only copy a record into a
+ * buffer, a sender thread ships whatever has piled up as one batch and
+ * keeps up to {@link #WINDOW} batches in flight while the standby
+ * acknowledges them in order.
+ *
+ * The records of live games are kept, so a standby that connects late or
+ * reconnects is sent every live game before the stream carries on. A
+ * standby that falls {@link #MAX_PENDING} records behind is disconnected
+ * and synced again the same way. Games never wait for the standby.
+ *
+ * Batch: batch number (long), send time in epoch milliseconds (long),
+ * record count (int), records. The standby answers each batch with its
+ * batch number (long). An empty batch is sent as a heartbeat when
+ * nothing happened for {@link #HEARTBEAT_MILLIS}.
+ *
+ * @author Andrei Tumbar
+ */
+public class Replicator extends Thread implements MoveLog {
+    static final int HEADER_SIZE = 20;
+    static final int MAX_BATCH = 1024;
+    static final int WINDOW = 8;
+    static final int MAX_PENDING = 65536;
+    static final long HEARTBEAT_MILLIS = 100;
+    static final int ACK_TIMEOUT_MILLIS = 5000;
+
+    private InetSocketAddress standby;
+    private ServerMetrics metrics;
+    private MoveLog next;
+    private volatile boolean running;
+
+    /* Everything below is guarded by this */
+    private CRC32 crc;
+    private ByteBuffer record;
+    private Map<Integer, ByteBuffer> live;
+    private ByteBuffer pending;
+    private long pendingSince;
+    private Socket socket;
+    private long sentBatches;
+    private long ackedBatches;
+    private long[] batchSince;
+    private int[] batchRecords;
+
+    /**
+     * @param standby address of the standby's replication port
+     * @param metrics where lag and overhead are recorded
+     */
+    public Replicator(InetSocketAddress standby, ServerMetrics metrics) {
+        super("Replicator");
+        setDaemon(true);
+
+        this.standby = standby;
+        this.metrics = metrics;
+        this.running = true;
+        this.crc = new CRC32();
+        this.record = ByteBuffer.allocate(MoveJournal.RECORD_SIZE);
+        this.live = new HashMap<>();
+        this.pending = ByteBuffer.allocate(MoveJournal.RECORD_SIZE * MAX_PENDING);
+        this.batchSince = new long[WINDOW];
+        this.batchRecords = new int[WINDOW];
+    }
+
+    /**
+     * Pass every record on to another log too, set before any game starts
+     * @param next usually the journal, null for none
+     */
+    void setNext(MoveLog next) {
+        this.next = next;
+    }
+
+    /**
+     * Replicate a game that was running before this server started
+     * @param game game recovered from the journal or taken over from a primary
+     */
+    synchronized void adopt(RecoveredGame game) {
+        for (MoveJournal.Record r : game.getRecords())
+            append(r.gameId, r.seq, r.type, r.aux, r.a, r.b, r.c, r.d, r.payload);
+    }
+
+    @Override
+    public void start(int gameId) {
+        if (this.next != null)
+            this.next.start(gameId);
+        append(gameId, 0, MoveJournal.START, (byte) 0, 0, 0, 0, 0, System.currentTimeMillis());
+    }
+
+    @Override
+    public void session(int gameId, int seq, int slot, long token) {
+        if (this.next != null)
+            this.next.session(gameId, seq, slot, token);
+        append(gameId, seq, MoveJournal.SESSION, (byte) slot, 0, 0, 0, 0, token);
+    }
+
+    @Override
+    public void move(int gameId, int seq, int startRow, int startCol, int row, int col) {
+        if (this.next != null)
+            this.next.move(gameId, seq, startRow, startCol, row, col);
+        append(gameId, seq, MoveJournal.MOVE, (byte) 0, startRow, startCol, row, col, 0);
+    }
+
+    @Override
+    public void chose(int gameId, int seq, String name, ChessColor color, int row, int col) {
+        if (this.next != null)
+            this.next.chose(gameId, seq, name, color, row, col);
+        append(gameId, seq, MoveJournal.CHOSE, MoveJournal.promotion(name), color.ordinal(), row, col, 0, 0);
+    }
+
+    @Override
+    public void end(int gameId, int seq) {
+        if (this.next != null)
+            this.next.end(gameId, seq);
+        append(gameId, seq, MoveJournal.END, (byte) 0, 0, 0, 0, 0, 0);
+    }
+
+    private void append(int gameId, int seq, byte type, byte aux, int a, int b, int c, int d, long payload) {
+        long start = System.nanoTime();
+        synchronized (this) {
+            this.record.clear();
+            MoveJournal.encode(this.record, this.crc, gameId, seq, type, aux, a, b, c, d, payload);
+
+            if (type == MoveJournal.END)
+                this.live.remove(gameId);
+            else {
+                ByteBuffer game = this.live.get(gameId);
+                if (game == null) {
+                    game = ByteBuffer.allocate(MoveJournal.RECORD_SIZE * 16);
+                    this.live.put(gameId, game);
+                } else if (!game.hasRemaining()) {
+                    ByteBuffer bigger = ByteBuffer.allocate(game.capacity() * 2);
+                    game.flip();
+                    bigger.put(game);
+                    game = bigger;
+                    this.live.put(gameId, game);
+                }
+                game.put(this.record.array(), 0, MoveJournal.RECORD_SIZE);
+            }
+
+            if (this.socket != null) {
+                if (this.pending.remaining() < MoveJournal.RECORD_SIZE)
+                    drop(this.socket, "Standby fell behind");
+                else {
+                    if (this.pending.position() == 0)
+                        this.pendingSince = start;
+                    this.pending.put(this.record.array(), 0, MoveJournal.RECORD_SIZE);
+                    notifyAll();
+                }
+            }
+        }
+        this.metrics.replicationQueued(System.nanoTime() - start);
+    }
+
+    @Override
+    public void run() {
+        ByteBuffer batch = ByteBuffer.allocate(HEADER_SIZE + MoveJournal.RECORD_SIZE * MAX_BATCH);
+        boolean warned = false;
+
+        while (this.running) {
+            Socket s;
+            synchronized (this) {
+                s = this.socket;
+            }
+
+            if (s == null) {
+                if (connect())
+                    warned = false;
+                else {
+                    if (!warned)
+                        System.err.printf("No standby at %s, retrying\n", this.standby);
+                    warned = true;
+                    sleepQuietly(1000);
+                }
+                continue;
+            }
+
+            synchronized (this) {
+                long deadline = System.currentTimeMillis() + HEARTBEAT_MILLIS;
+                while (this.running && this.socket == s
+                        && (this.pending.position() == 0 || this.sentBatches - this.ackedBatches >= WINDOW)) {
+                    long left = deadline - System.currentTimeMillis();
+                    if (left <= 0 && this.sentBatches - this.ackedBatches < WINDOW)
+                        break;
+
+                    try {
+                        wait(left > 0 ? left : HEARTBEAT_MILLIS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+
+                if (this.socket != s)
+                    continue;
+
+                int count = Math.min(this.pending.position() / MoveJournal.RECORD_SIZE, MAX_BATCH);
+                long seq = this.sentBatches++;
+                batch.clear();
+                batch.putLong(seq).putLong(System.currentTimeMillis()).putInt(count);
+
+                this.pending.flip();
+                batch.put(this.pending.array(), 0, count * MoveJournal.RECORD_SIZE);
+                this.pending.position(count * MoveJournal.RECORD_SIZE);
+                this.pending.compact();
+
+                this.batchSince[(int) (seq % WINDOW)] = this.pendingSince;
+                this.batchRecords[(int) (seq % WINDOW)] = count;
+                if (this.pending.position() > 0)
+                    this.pendingSince = System.nanoTime();
+                this.metrics.replicationPending(this.pending.position() / MoveJournal.RECORD_SIZE);
+            }
+
+            /* One write per batch, outside the lock so games keep appending */
+            try {
+                OutputStream out = s.getOutputStream();
+                out.write(batch.array(), 0, batch.position());
+                out.flush();
+            } catch (IOException e) {
+                drop(s, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Connect to the standby and queue every live game for it
+     * @return false if the standby is not there
+     */
+    private boolean connect() {
+        Socket s = new Socket();
+        try {
+            s.connect(this.standby, 1000);
+            s.setTcpNoDelay(true);
+            s.setSoTimeout(ACK_TIMEOUT_MILLIS);
+        } catch (IOException e) {
+            try {
+                s.close();
+            } catch (IOException ignored) {}
+            return false;
+        }
+
+        synchronized (this) {
+            int records = 0;
+            for (ByteBuffer game : this.live.values())
+                records += game.position() / MoveJournal.RECORD_SIZE;
+
+            this.pending = ByteBuffer.allocate(MoveJournal.RECORD_SIZE * Math.max(MAX_PENDING, records * 2));
+            for (ByteBuffer game : this.live.values())
+                this.pending.put(game.array(), 0, game.position());
+            this.pendingSince = System.nanoTime();
+            this.sentBatches = 0;
+            this.ackedBatches = 0;
+            this.socket = s;
+            System.out.printf("Replicating %d live games to standby %s\n", this.live.size(), this.standby);
+        }
+
+        Thread acker = new Thread(() -> readAcks(s), "ReplicatorAcks");
+        acker.setDaemon(true);
+        acker.start();
+        return true;
+    }
+
+    /**
+     * Match the standby's acknowledgements to the batches in flight
+     * @param s connection to the standby
+     */
+    private void readAcks(Socket s) {
+        try {
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            while (true) {
+                long seq = in.readLong();
+                synchronized (this) {
+                    if (this.socket != s)
+                        return;
+                    if (seq != this.ackedBatches)
+                        throw new IOException("Acknowledgement out of order");
+
+                    int slot = (int) (seq % WINDOW);
+                    if (this.batchRecords[slot] > 0)
+                        this.metrics.replicated(this.batchRecords[slot], System.nanoTime() - this.batchSince[slot]);
+                    this.ackedBatches++;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            drop(s, e.getMessage());
+        }
+    }
+
+    /**
+     * Give up on a connection, the sender connects again and syncs from scratch
+     */
+    private synchronized void drop(Socket s, String reason) {
+        if (this.socket != s)
+            return;
+
+        System.err.printf("Lost standby %s: %s\n", this.standby, reason);
+        this.socket = null;
+        this.pending.clear();
+        this.metrics.replicationPending(0);
+        try {
+            s.close();
+        } catch (IOException ignored) {}
+        notifyAll();
+    }
+
+    private static void sleepQuietly(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException ignored) {}
+    }
+
+    /**
+     * Stop replicating, the standby will take over
+     */
+    public void close() {
+        this.running = false;
+        synchronized (this) {
+            if (this.socket != null)
+                drop(this.socket, "Closed");
+        }
+        this.interrupt();
+    }
+}
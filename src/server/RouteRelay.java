@@ -0,0 +1,210 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread of a {@link ChessRouter} that copies bytes between
+ * players and the workers running their games. Each player gets its own
+ * connection to the worker, opened with a {@link ChessProtocol#ROUTE} line
+ * naming the game and slot, after which the relay does not look at the
+ * bytes at all. When either side hangs up, what is left for the other
+ * side is delivered before both are closed.
+ *
+ * @author Andrei Tumbar
+ */
+public class RouteRelay extends Thread implements ChessProtocol {
+    private static final int BUFFER_SIZE = 8192;
+
+    private Selector selector;
+    private volatile boolean keepAlive;
+    private ConcurrentLinkedQueue<Link> adding;
+
+    /**
+     * @param name name of the thread
+     * @throws ChessException if the selector cannot be opened
+     */
+    public RouteRelay(String name) throws ChessException {
+        super(name);
+        setDaemon(true);
+
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new ChessException("Failed to open selector", e);
+        }
+
+        this.keepAlive = true;
+        this.adding = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * Connect a player to a worker, may be called from any thread
+     * @param client non-blocking socket of the player
+     * @param worker address the worker accepts routed players on
+     * @param game id of the game the player is in
+     * @param slot slot of the player in the game, 0 for BLACK
+     */
+    void relay(SocketChannel client, InetSocketAddress worker, int game, int slot) {
+        Link link = new Link(client);
+        link.up.put(String.format("%s %d %d\n", ROUTE, game, slot).getBytes(StandardCharsets.US_ASCII));
+
+        try {
+            link.worker = SocketChannel.open();
+            link.worker.configureBlocking(false);
+            link.worker.socket().setTcpNoDelay(true);
+            link.connected = link.worker.connect(worker);
+        } catch (IOException e) {
+            System.err.printf("Failed to connect to worker %s: %s\n", worker, e.getMessage());
+            link.close();
+            return;
+        }
+
+        this.adding.add(link);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (keepAlive) {
+                selector.select();
+
+                for (Link link = adding.poll(); link != null; link = adding.poll()) {
+                    try {
+                        link.clientKey = link.client.register(selector, 0, link);
+                        link.workerKey = link.worker.register(selector, 0, link);
+                        link.update();
+                    } catch (IOException e) {
+                        link.close();
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    Link link = (Link) key.attachment();
+                    try {
+                        if (key.isValid())
+                            link.handle(key);
+                    } catch (IOException e) {
+                        link.close();
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (keepAlive)
+                System.err.println("Route relay failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop relaying, open links are dropped
+     */
+    public void close() {
+        keepAlive = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * One player and its connection to the worker. Both buffers are kept
+     * ready for reading into, bytes wait between the start and the position.
+     */
+    private static class Link {
+        private SocketChannel client;
+        private SocketChannel worker;
+        private SelectionKey clientKey;
+        private SelectionKey workerKey;
+        private boolean connected;
+        private boolean clientDone;
+        private boolean workerDone;
+
+        /* Player to worker, and worker to player */
+        private ByteBuffer up;
+        private ByteBuffer down;
+
+        Link(SocketChannel client) {
+            this.client = client;
+            this.up = ByteBuffer.allocate(BUFFER_SIZE);
+            this.down = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        void handle(SelectionKey key) throws IOException {
+            if (key == this.workerKey && key.isConnectable())
+                this.connected = this.worker.finishConnect();
+
+            if (key.isValid() && key.isReadable()) {
+                if (key == this.clientKey)
+                    this.clientDone = this.client.read(this.up) < 0;
+                else
+                    this.workerDone = this.worker.read(this.down) < 0;
+            }
+
+            /* Pass bytes on straight away, a write usually completes without waiting */
+            if (this.connected)
+                drain(this.up, this.worker);
+            drain(this.down, this.client);
+            update();
+        }
+
+        private static void drain(ByteBuffer buffer, SocketChannel to) throws IOException {
+            if (buffer.position() == 0)
+                return;
+
+            buffer.flip();
+            to.write(buffer);
+            buffer.compact();
+        }
+
+        /**
+         * Set what to wait for from the buffers, close once a side hung up and
+         * everything it sent was delivered
+         */
+        void update() {
+            if ((this.clientDone && this.up.position() == 0) || (this.workerDone && this.down.position() == 0)) {
+                close();
+                return;
+            }
+
+            int clientOps = 0, workerOps = 0;
+            if (!this.clientDone && this.up.hasRemaining())
+                clientOps |= SelectionKey.OP_READ;
+            if (this.down.position() > 0)
+                clientOps |= SelectionKey.OP_WRITE;
+
+            if (!this.connected)
+                workerOps = SelectionKey.OP_CONNECT;
+            else {
+                if (!this.workerDone && this.down.hasRemaining())
+                    workerOps |= SelectionKey.OP_READ;
+                if (this.up.position() > 0)
+                    workerOps |= SelectionKey.OP_WRITE;
+            }
+
+            this.clientKey.interestOps(clientOps);
+            this.workerKey.interestOps(workerOps);
+        }
+
+        void close() {
+            try {
+                this.client.close();
+            } catch (IOException ignored) {}
+            try {
+                if (this.worker != null)
+                    this.worker.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
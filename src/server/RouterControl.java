@@ -0,0 +1,112 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Control port of a {@link ChessRouter}. Workers connect here and send
+ * {@link ChessProtocol#LOAD} every second. A worker joins the hash ring
+ * with its first report and leaves it when its control connection drops,
+ * so workers can be started and stopped while the router runs.
+ *
+ * @author Andrei Tumbar
+ */
+public class RouterControl extends Thread implements ChessProtocol {
+    /**
+     * A worker that misses this many reports is dropped
+     */
+    private static final int MISSED_REPORTS = 3;
+
+    private ServerSocket listen;
+    private HashRing ring;
+    private volatile boolean keepAlive;
+
+    /**
+     * @param port port workers report to
+     * @param ring ring the workers are added to
+     * @throws ChessException if the port cannot be opened
+     */
+    public RouterControl(int port, HashRing ring) throws ChessException {
+        super("RouterControl");
+        setDaemon(true);
+
+        try {
+            this.listen = new ServerSocket(port);
+        } catch (IOException e) {
+            throw new ChessException("Failed to open control port " + port, e);
+        }
+
+        this.ring = ring;
+        this.keepAlive = true;
+    }
+
+    @Override
+    public void run() {
+        while (this.keepAlive) {
+            try {
+                Socket socket = this.listen.accept();
+                Thread t = new Thread(() -> serve(socket), "RouterControl-" + socket.getRemoteSocketAddress());
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                /* This socket was closed */
+                this.keepAlive = false;
+            }
+        }
+    }
+
+    /**
+     * Read the reports of one worker until it goes away
+     * @param socket control connection of the worker
+     */
+    private void serve(Socket socket) {
+        WorkerNode node = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII))) {
+            socket.setSoTimeout((int) (MISSED_REPORTS * LoadReporter.INTERVAL_MILLIS));
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] report = line.split(" ");
+                if (report.length != 3 || !report[0].equals(LOAD)) {
+                    System.err.printf("Unexpected report from worker: %s\n", line);
+                    break;
+                }
+
+                if (node == null) {
+                    node = new WorkerNode(new InetSocketAddress(socket.getInetAddress(), Integer.parseInt(report[1])));
+                    this.ring.add(node);
+                    System.out.printf("Worker %s joined, %d workers\n", node, this.ring.size());
+                }
+                node.reported(Integer.parseInt(report[2]));
+            }
+        } catch (IOException | NumberFormatException e) {
+            System.err.printf("Lost worker %s: %s\n", node == null ? socket.getRemoteSocketAddress() : node, e.getMessage());
+        }
+
+        if (node != null) {
+            this.ring.remove(node);
+            System.out.printf("Worker %s left, %d workers\n", node, this.ring.size());
+        }
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Stop taking workers
+     */
+    public void close() {
+        try {
+            this.keepAlive = false;
+            this.listen.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close control socket");
+        }
+    }
+}
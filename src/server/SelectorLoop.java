@@ -0,0 +1,126 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector thread that drives {@link SocketTransport}s in non-blocking
+ * mode, turning readiness into transport events. Other threads only ever
+ * touch its queues. The server's {@link ConnectionReactor} is one, and
+ * every client socket in a process shares another, so thousands of
+ * client sessions cost one thread.
+ *
+ * @author Andrei Tumbar
+ */
+class SelectorLoop extends Thread {
+    private static SelectorLoop clients;
+
+    private Selector selector;
+    private volatile boolean keepAlive;
+    private ConcurrentLinkedQueue<SocketTransport> registering;
+    private ConcurrentLinkedQueue<SocketTransport> writing;
+
+    /**
+     * @param name name of the thread
+     * @param selector selector the loop owns
+     */
+    SelectorLoop(String name, Selector selector) {
+        super(name);
+        setDaemon(true);
+
+        this.selector = selector;
+        this.keepAlive = true;
+        this.registering = new ConcurrentLinkedQueue<>();
+        this.writing = new ConcurrentLinkedQueue<>();
+    }
+
+    /**
+     * @return the loop every client socket of this process shares, started the first time it is asked for
+     * @throws IOException if the selector cannot be opened
+     */
+    static synchronized SelectorLoop clients() throws IOException {
+        if (clients == null) {
+            clients = new SelectorLoop("ClientSelector", Selector.open());
+            clients.start();
+        }
+        return clients;
+    }
+
+    /**
+     * Start selecting for a socket, may be called from any thread
+     * @param transport started socket transport
+     */
+    void add(SocketTransport transport) {
+        this.registering.add(transport);
+        this.selector.wakeup();
+    }
+
+    /**
+     * A thread left bytes it could not write, finish them when the socket allows
+     * @param transport socket with queued bytes
+     */
+    void wantWrite(SocketTransport transport) {
+        this.writing.add(transport);
+        this.selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (keepAlive) {
+                selector.select();
+
+                for (SocketTransport t = registering.poll(); t != null; t = registering.poll()) {
+                    /* Bytes may already be queued before the socket got its key */
+                    int ops = t.isWriteWanted() ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+                    try {
+                        t.setKey(t.getChannel().register(selector, ops, t));
+                    } catch (ClosedChannelException e) {
+                        t.close();
+                    }
+                }
+
+                for (SocketTransport t = writing.poll(); t != null; t = writing.poll()) {
+                    SelectionKey key = t.getKey();
+                    if (key != null && key.isValid())
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    SocketTransport t = (SocketTransport) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable() && t.onWritable())
+                            key.interestOps(SelectionKey.OP_READ);
+                        if (key.isValid() && key.isReadable())
+                            t.onReadable();
+                    } catch (CancelledKeyException e) {
+                        /* Another thread closed the socket in between */
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (keepAlive)
+                System.err.println(getName() + " failed: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stop the loop, open sockets stay open
+     */
+    public void close() {
+        keepAlive = false;
+        try {
+            selector.close();
+        } catch (IOException ignored) {}
+    }
+}
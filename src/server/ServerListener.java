@@ -1,8 +1,10 @@
 package server;
 
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
@@ -12,10 +14,14 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  *
  * Written so that a multi-threaded server is closeable
  *
+ * Players inside the process connect through {@link #accept(Transport)},
+ * a listener made without a port takes only those.
+ *
  * @author Andrei Tumbar
  */
 public class ServerListener extends Thread {
-    private ServerSocket listen;
+    private ServerSocketChannel listen;
+    private ConnectionReactor reactor;
     private boolean keepAlive;
     private ConcurrentLinkedQueue<ChessConnection> connQueue;
 
@@ -23,10 +29,15 @@ public class ServerListener extends Thread {
      * Create a server socket on port
      *
      * @param port port to listen on
+     * @param reactor reactor that takes over accepted sockets
      */
-    public ServerListener(int port) {
+    public ServerListener(int port, ConnectionReactor reactor) {
+        this.reactor = reactor;
         try {
-            this.listen = new ServerSocket(port);
+            this.listen = ServerSocketChannel.open();
+            /* A standby taking over binds while the primary's connections linger */
+            this.listen.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            this.listen.bind(new InetSocketAddress(port));
         } catch (IOException e) {
             System.out.println("Exception caught when trying to listen on port "
                     + port + " or listening for a connection");
@@ -38,14 +49,34 @@ public class ServerListener extends Thread {
         keepAlive = true;
     }
 
+    /**
+     * Create a listener without a server socket
+     *
+     * @param reactor reactor whose settings connections use
+     */
+    public ServerListener(ConnectionReactor reactor) {
+        this.reactor = reactor;
+        connQueue = new ConcurrentLinkedQueue<>();
+        keepAlive = true;
+    }
+
     /**
      * Keep accepting connections until we kill this
      */
     public void run() {
-        while (this.keepAlive)
+        while (this.keepAlive && this.listen != null)
             addConnection(accept());
     }
 
+    /**
+     * Take a player that connected without a socket, may be called from any thread
+     *
+     * @param transport transport to the player, the listener starts it
+     */
+    public void accept(Transport transport) {
+        addConnection(this.reactor.register(transport));
+    }
+
     /**
      * Add a connection to the queue
      *
@@ -61,18 +92,23 @@ public class ServerListener extends Thread {
     /**
      * Called by the server thread
      * Wait for a notify by acceptConnection
+     * Clients that hung up while waiting in the queue are skipped
      *
      * @return a connection one someone connection
      */
     public synchronized ChessConnection getConnection() {
-        while (keepAlive && connQueue.peek() == null) {
-            try {
-                wait();
-            } catch (InterruptedException ignored) {
+        while (true) {
+            while (keepAlive && connQueue.peek() == null) {
+                try {
+                    wait();
+                } catch (InterruptedException ignored) {
+                }
             }
-        }
 
-        return connQueue.poll();
+            ChessConnection conn = connQueue.poll();
+            if (conn == null || conn.isOpen())
+                return conn;
+        }
     }
 
     /**
@@ -81,7 +117,7 @@ public class ServerListener extends Thread {
      * @return Connection instance that implements the protocol
      */
     private ChessConnection accept() {
-        Socket out;
+        SocketChannel out;
         try {
             out = this.listen.accept();
         } catch (IOException e) {
@@ -90,7 +126,7 @@ public class ServerListener extends Thread {
             return null;
         }
 
-        return new ChessConnection(out);
+        return this.reactor.register(out);
     }
 
     /**
@@ -99,9 +135,11 @@ public class ServerListener extends Thread {
     public void close() {
         try {
             this.keepAlive = false;
-            this.listen.close();
+            if (this.listen != null)
+                this.listen.close();
         } catch (IOException e) {
             System.err.println("Failed to close server socket");
         }
+        addConnection(null);
     }
 }
\ No newline at end of file
@@ -0,0 +1,259 @@
+package server;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms of a running server.
+ * Game threads record into it without locks or allocation, JMX and
+ * the {@link MetricsEndpoint} read it.
+ *
+ * @author Andrei Tumbar
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    static final String OBJECT_NAME = "server:type=ServerMetrics";
+
+    private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+    private LongAdder connections;
+    private LongAdder gamesStarted;
+    private AtomicLong activeGames;
+    private LongAdder moves;
+    private LongAdder errors;
+
+    /* MOVE read from the client until MOVE_MADE is written, nanoseconds */
+    private Histogram moveLatency;
+    /* Time spent checking a move against the rules, nanoseconds */
+    private Histogram validation;
+    /* Start to end of a game, milliseconds */
+    private Histogram gameDuration;
+
+    /* Records streamed to a standby, or applied by one */
+    private LongAdder replicated;
+    private AtomicLong replicationPending;
+    /* Game thread time spent handing one record to the replicator, nanoseconds */
+    private Histogram replicationOverhead;
+    /* Record handed to the replicator until the standby acknowledged it,
+     * or on a standby batch sent until applied, nanoseconds */
+    private Histogram replicationLag;
+
+    /* Last moves per second sample */
+    private long sampleMoves;
+    private long sampleNanos;
+    private double movesPerSecond;
+
+    public ServerMetrics() {
+        this.connections = new LongAdder();
+        this.gamesStarted = new LongAdder();
+        this.activeGames = new AtomicLong();
+        this.moves = new LongAdder();
+        this.errors = new LongAdder();
+        this.moveLatency = new Histogram();
+        this.validation = new Histogram();
+        this.gameDuration = new Histogram();
+        this.replicated = new LongAdder();
+        this.replicationPending = new AtomicLong();
+        this.replicationOverhead = new Histogram();
+        this.replicationLag = new Histogram();
+        this.sampleNanos = System.nanoTime();
+    }
+
+    /**
+     * Publish these metrics on the platform MBean server
+     */
+    void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            System.err.println("Failed to register metrics with JMX: " + e.getMessage());
+        }
+    }
+
+    void connected() {
+        connections.increment();
+    }
+
+    void gameStarted() {
+        gamesStarted.increment();
+        activeGames.incrementAndGet();
+    }
+
+    /**
+     * @param durationMillis how long the game ran
+     */
+    void gameEnded(long durationMillis) {
+        activeGames.decrementAndGet();
+        gameDuration.record(durationMillis);
+    }
+
+    /**
+     * @param latencyNanos MOVE read until MOVE_MADE written
+     */
+    void moveMade(long latencyNanos) {
+        moves.increment();
+        moveLatency.record(latencyNanos);
+    }
+
+    /**
+     * @param nanos time spent validating one move
+     */
+    void moveValidated(long nanos) {
+        validation.record(nanos);
+    }
+
+    void error() {
+        errors.increment();
+    }
+
+    /**
+     * @param nanos game thread time spent handing one record to the replicator
+     */
+    void replicationQueued(long nanos) {
+        replicationOverhead.record(nanos);
+    }
+
+    /**
+     * @param records records streamed to or applied by a standby
+     * @param lagNanos time the oldest of them took
+     */
+    void replicated(int records, long lagNanos) {
+        replicated.add(records);
+        replicationLag.record(lagNanos);
+    }
+
+    /**
+     * @param records records waiting to be sent to the standby
+     */
+    void replicationPending(long records) {
+        replicationPending.set(records);
+    }
+
+    @Override
+    public long getConnections() {
+        return connections.sum();
+    }
+
+    @Override
+    public long getActiveGames() {
+        return activeGames.get();
+    }
+
+    @Override
+    public long getGamesStarted() {
+        return gamesStarted.sum();
+    }
+
+    @Override
+    public long getMoves() {
+        return moves.sum();
+    }
+
+    /**
+     * Moves per second over the time since the rate was last sampled,
+     * a new sample is taken at most once a second
+     */
+    @Override
+    public synchronized double getMovesPerSecond() {
+        long now = System.nanoTime();
+        if (now - sampleNanos >= 1_000_000_000L) {
+            long total = moves.sum();
+            movesPerSecond = (total - sampleMoves) * 1e9 / (now - sampleNanos);
+            sampleMoves = total;
+            sampleNanos = now;
+        }
+
+        return movesPerSecond;
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public long getMoveLatencyP50() {
+        return moveLatency.getPercentile(50);
+    }
+
+    @Override
+    public long getMoveLatencyP99() {
+        return moveLatency.getPercentile(99);
+    }
+
+    @Override
+    public long getMoveLatencyMax() {
+        return moveLatency.getMax();
+    }
+
+    @Override
+    public long getValidationP99() {
+        return validation.getPercentile(99);
+    }
+
+    @Override
+    public long getGameDurationP50() {
+        return gameDuration.getPercentile(50);
+    }
+
+    @Override
+    public long getGameDurationMax() {
+        return gameDuration.getMax();
+    }
+
+    @Override
+    public long getReplicatedRecords() {
+        return replicated.sum();
+    }
+
+    @Override
+    public long getReplicationPending() {
+        return replicationPending.get();
+    }
+
+    @Override
+    public long getReplicationLagP99() {
+        return replicationLag.getPercentile(99);
+    }
+
+    @Override
+    public long getReplicationOverheadP99() {
+        return replicationOverhead.getPercentile(99);
+    }
+
+    /**
+     * Plain text form served by the {@link MetricsEndpoint}, one metric per line
+     * @return metrics text
+     */
+    String toText() {
+        StringBuilder out = new StringBuilder();
+        line(out, "chess_connections_total", getConnections());
+        line(out, "chess_games_started_total", getGamesStarted());
+        line(out, "chess_games_active", getActiveGames());
+        line(out, "chess_moves_total", getMoves());
+        out.append("chess_moves_per_second ").append(getMovesPerSecond()).append('\n');
+        line(out, "chess_errors_total", getErrors());
+        histogram(out, "chess_move_latency_nanoseconds", moveLatency);
+        histogram(out, "chess_move_validation_nanoseconds", validation);
+        histogram(out, "chess_game_duration_milliseconds", gameDuration);
+        line(out, "chess_replicated_records_total", getReplicatedRecords());
+        line(out, "chess_replication_pending_records", getReplicationPending());
+        histogram(out, "chess_replication_lag_nanoseconds", replicationLag);
+        histogram(out, "chess_replication_overhead_nanoseconds", replicationOverhead);
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, long value) {
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, Histogram h) {
+        for (String q : QUANTILES)
+            out.append(name).append("{quantile=\"").append(q).append("\"} ")
+                    .append(h.getPercentile(Double.parseDouble(q) * 100)).append('\n');
+        line(out, name + "_max", h.getMax());
+        line(out, name + "_count", h.getCount());
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+/**
+ * Management interface of {@link ServerMetrics}, registered with JMX as
+ * {@value ServerMetrics#OBJECT_NAME}. Latencies are in nanoseconds and
+ * game durations in milliseconds.
+ *
+ * @author Andrei Tumbar
+ */
+public interface ServerMetricsMBean {
+    long getConnections();
+
+    long getActiveGames();
+
+    long getGamesStarted();
+
+    long getMoves();
+
+    double getMovesPerSecond();
+
+    long getErrors();
+
+    long getMoveLatencyP50();
+
+    long getMoveLatencyP99();
+
+    long getMoveLatencyMax();
+
+    long getValidationP99();
+
+    long getGameDurationP50();
+
+    long getGameDurationMax();
+
+    long getReplicatedRecords();
+
+    long getReplicationPending();
+
+    long getReplicationLagP99();
+
+    long getReplicationOverheadP99();
+}
@@ -0,0 +1,149 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * {@link Transport} over TCP. The socket is non-blocking and a
+ * {@link SelectorLoop} turns its readiness into events: the server's
+ * {@link ConnectionReactor} for accepted sockets, the loop every client
+ * of the process shares for sockets made by {@link #connect(String, int)}.
+ *
+ * @author Andrei Tumbar
+ */
+public class SocketTransport implements Transport {
+    private SocketChannel channel;
+    private SelectorLoop reactor;
+    private volatile SelectionKey key;
+    private volatile Handler handler;
+    private volatile boolean writeWanted;
+
+    /**
+     * Wrap a connected socket, {@link #start(Handler)} hands it to the reactor
+     * @param channel socket to the other side
+     * @param reactor loop that will read and write the socket
+     */
+    SocketTransport(SocketChannel channel, SelectorLoop reactor) {
+        this.channel = channel;
+        this.reactor = reactor;
+
+        try {
+            /* Both sides batch writes themselves, Nagle would only delay the flush */
+            channel.socket().setTcpNoDelay(true);
+            /* Lets the OS find peers that vanished without closing */
+            channel.socket().setKeepAlive(true);
+        } catch (IOException e) {
+            System.err.println("Failed to configure socket: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Connect to a server, blocking until the connection is made. Once
+     * started the transport is driven by the loop all clients share.
+     * @param host host of the server
+     * @param port port of the server
+     * @return connected transport
+     * @throws IOException if the server can't be reached
+     */
+    public static SocketTransport connect(String host, int port) throws IOException {
+        SelectorLoop clients = SelectorLoop.clients();
+        return new SocketTransport(SocketChannel.open(new InetSocketAddress(host, port)), clients);
+    }
+
+    @Override
+    public void start(Handler handler) {
+        this.handler = handler;
+        try {
+            this.channel.configureBlocking(false);
+        } catch (IOException e) {
+            close();
+            return;
+        }
+
+        this.reactor.add(this);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        return this.channel.read(dst);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException {
+        return this.channel.write(srcs);
+    }
+
+    @Override
+    public void wantWrite() {
+        this.writeWanted = true;
+        this.reactor.wantWrite(this);
+    }
+
+    @Override
+    public boolean isOpen() {
+        return this.channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("Socket is driven by a reactor");
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("Socket is driven by a reactor");
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    SelectionKey getKey() {
+        return key;
+    }
+
+    void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * @return true if a write is waiting for the socket to take bytes
+     */
+    boolean isWriteWanted() {
+        return writeWanted;
+    }
+
+    void onReadable() {
+        this.handler.onReadable();
+    }
+
+    /**
+     * @return true once the handler has nothing left to write
+     */
+    boolean onWritable() {
+        if (!this.handler.onWritable())
+            return false;
+
+        this.writeWanted = false;
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return this.channel.socket().toString();
+    }
+}
@@ -0,0 +1,433 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves spectators from a single selector thread.
+ * A spectator connects to the spectator port and sends
+ * WATCH id, after that it receives every frame the game has
+ * broadcast so far and every frame that follows.
+ *
+ * Players that lost their connection also come back through this port
+ * with RESUME, their connection is handed to the {@link Resumer}.
+ *
+ * Games never write to spectators themselves, they append to their
+ * {@link FrameLog} and wake the hub. A spectator that falls more than
+ * {@link #MAX_LAG} frames behind is dropped so it can never slow
+ * down the players. The frames a game had before the spectator joined
+ * are replayed without counting towards that.
+ *
+ * @author Andrei Tumbar
+ */
+public class SpectatorHub extends Thread {
+    /**
+     * Frames a spectator may fall behind before it is dropped
+     */
+    private static final int MAX_LAG = 512;
+
+    /**
+     * Frames handed to one gathering write
+     */
+    private static final int BATCH = 16;
+
+    private static final int MAX_REQUEST = 64;
+
+    private Selector selector;
+    private ServerSocketChannel listen;
+    private boolean keepAlive;
+    private ConcurrentHashMap<Integer, FrameLog> live;
+    private ConcurrentLinkedQueue<FrameLog> dirty;
+    private Resumer resumer;
+    private boolean watchable;
+
+    /* Only touched by the hub thread */
+    private Map<FrameLog, List<Spectator>> watchers;
+    private List<Spectator> handoff;
+
+    /**
+     * Takes over connections that sent RESUME
+     */
+    interface Resumer {
+        /**
+         * @param token session token from RESUME
+         * @param seen game messages the client received before it was lost
+         * @param channel non-blocking channel of the client, no longer registered with the hub
+         * @return false if the session does not exist
+         */
+        boolean resume(long token, int seen, SocketChannel channel);
+    }
+
+    /**
+     * One watching connection and its position in the game's log
+     */
+    private static class Spectator {
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ByteBuffer request;
+        private FrameLog log;
+        private int cursor;
+        /* Size of the log at WATCH, frames before it are backlog, not lag */
+        private int joinedAt;
+        private ByteBuffer[] batch;
+        private int batchLen;
+        private long token;
+        private int seen;
+
+        Spectator(SocketChannel channel) {
+            this.channel = channel;
+            this.request = ByteBuffer.allocate(MAX_REQUEST);
+            this.batch = new ByteBuffer[BATCH];
+        }
+
+        boolean writing() {
+            return batchLen > 0 && batch[batchLen - 1].hasRemaining();
+        }
+
+        /**
+         * @param size frames in the log now
+         * @return true if more than {@link #MAX_LAG} frames that came after WATCH are still unsent
+         */
+        boolean tooFarBehind(int size) {
+            return size - Math.max(cursor, joinedAt) > MAX_LAG;
+        }
+    }
+
+    /**
+     * Open the spectator port
+     * @param port port to listen on
+     * @throws ChessException if the port cannot be opened
+     */
+    public SpectatorHub(int port) throws ChessException {
+        this(port, true);
+    }
+
+    /**
+     * Open the port
+     * @param port port to listen on
+     * @param watchable false to only take RESUME, WATCH is refused and games are never published
+     * @throws ChessException if the port cannot be opened
+     */
+    public SpectatorHub(int port, boolean watchable) throws ChessException {
+        super("SpectatorHub");
+        this.watchable = watchable;
+
+        try {
+            this.selector = Selector.open();
+            this.listen = ServerSocketChannel.open();
+            /* A standby taking over binds while the primary's connections linger */
+            this.listen.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            this.listen.bind(new InetSocketAddress(port));
+            this.listen.configureBlocking(false);
+            this.listen.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            throw new ChessException("Failed to open spectator port " + port, e);
+        }
+
+        this.keepAlive = true;
+        this.live = new ConcurrentHashMap<>();
+        this.dirty = new ConcurrentLinkedQueue<>();
+        this.watchers = new HashMap<>();
+        this.handoff = new ArrayList<>();
+        setDaemon(true);
+    }
+
+    /**
+     * @param resumer receives RESUME connections, null to refuse them
+     */
+    void setResumer(Resumer resumer) {
+        this.resumer = resumer;
+    }
+
+    /**
+     * @return port spectators and resuming players connect to
+     */
+    int getPort() {
+        return this.listen.socket().getLocalPort();
+    }
+
+    /**
+     * Make a game watchable, called from the game thread
+     * @param gameId id spectators use in WATCH
+     * @param log frames of the game
+     */
+    void publish(int gameId, FrameLog log) {
+        if (watchable)
+            live.put(gameId, log);
+    }
+
+    /**
+     * Game can no longer be joined, current spectators still get the end of it
+     * @param gameId id of the finished game
+     */
+    void retire(int gameId) {
+        live.remove(gameId);
+    }
+
+    /**
+     * Tell the hub new frames are available, called from the game thread
+     * @param log log that was appended to
+     */
+    void framesAdded(FrameLog log) {
+        if (watchable && log.markQueued()) {
+            dirty.add(log);
+            selector.wakeup();
+        }
+    }
+
+    public void run() {
+        while (keepAlive) {
+            try {
+                selector.select();
+            } catch (IOException | ClosedSelectorException e) {
+                break;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                if (!key.isValid())
+                    continue;
+
+                if (key.isAcceptable())
+                    accept();
+                else {
+                    Spectator s = (Spectator) key.attachment();
+                    if (key.isReadable())
+                        read(s);
+                    if (key.isValid() && key.isWritable())
+                        drain(s);
+                }
+            }
+
+            if (!handoff.isEmpty())
+                handOff();
+
+            for (FrameLog log = dirty.poll(); log != null; log = dirty.poll()) {
+                log.clearQueued();
+                List<Spectator> list = watchers.get(log);
+                if (list == null)
+                    continue;
+
+                /* Copy, drain may drop spectators from the list */
+                for (Spectator s : new ArrayList<>(list)) {
+                    if (!s.writing())
+                        drain(s);
+                    else if (s.tooFarBehind(log.size()))
+                        drop(s);
+                }
+            }
+        }
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = this.listen.accept();
+            if (channel == null)
+                return;
+
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Spectator s = new Spectator(channel);
+            s.key = channel.register(selector, SelectionKey.OP_READ, s);
+        } catch (IOException e) {
+            System.err.println("Failed to accept spectator");
+        }
+    }
+
+    /**
+     * Read the WATCH request, anything sent after it is ignored
+     * @param s spectator with readable data
+     */
+    private void read(Spectator s) {
+        try {
+            if (s.log != null) {
+                s.request.clear();
+                if (s.channel.read(s.request) < 0)
+                    drop(s);
+                return;
+            }
+
+            if (s.channel.read(s.request) < 0) {
+                drop(s);
+                return;
+            }
+        } catch (IOException e) {
+            drop(s);
+            return;
+        }
+
+        String line = requestLine(s.request);
+        if (line == null) {
+            if (!s.request.hasRemaining())
+                drop(s);
+            return;
+        }
+
+        String[] command = line.split(" ");
+        if (command.length == 3 && command[0].equals(ChessProtocol.RESUME) && resumer != null) {
+            try {
+                s.token = Long.parseUnsignedLong(command[1], 16);
+                s.seen = Integer.parseInt(command[2]);
+            } catch (NumberFormatException e) {
+                reject(s);
+                return;
+            }
+
+            /* The channel can only go back to blocking once the key is gone */
+            s.key.cancel();
+            handoff.add(s);
+            return;
+        }
+
+        FrameLog log = null;
+        if (command.length == 2 && command[0].equals(ChessProtocol.WATCH)) {
+            try {
+                log = live.get(Integer.parseInt(command[1]));
+            } catch (NumberFormatException ignored) {}
+        }
+
+        if (log == null) {
+            reject(s);
+            return;
+        }
+
+        s.log = log;
+        s.cursor = 0;
+        s.joinedAt = log.size();
+        watchers.computeIfAbsent(log, l -> new ArrayList<>()).add(s);
+        drain(s);
+    }
+
+    /**
+     * Give resuming players' channels to the resumer
+     */
+    private void handOff() {
+        try {
+            /* Deregisters the cancelled keys */
+            selector.selectNow();
+        } catch (IOException e) {
+            return;
+        }
+
+        for (Spectator s : handoff) {
+            try {
+                if (resumer.resume(s.token, s.seen, s.channel))
+                    continue;
+
+                s.channel.write(ChessConnection.frame(ChessProtocol.ERROR));
+            } catch (IOException ignored) {}
+
+            try {
+                s.channel.close();
+            } catch (IOException ignored) {}
+        }
+
+        handoff.clear();
+    }
+
+    /**
+     * @param request bytes read so far
+     * @return the request without its newline, or null if incomplete
+     */
+    private static String requestLine(ByteBuffer request) {
+        for (int i = 0; i < request.position(); i++) {
+            if (request.get(i) == '\n')
+                return new String(request.array(), 0, i, StandardCharsets.US_ASCII).trim();
+        }
+
+        return null;
+    }
+
+    /**
+     * Write as many pending frames as the socket accepts without blocking
+     * @param s spectator to write to
+     */
+    private void drain(Spectator s) {
+        FrameLog log = s.log;
+        try {
+            while (true) {
+                if (s.writing()) {
+                    s.channel.write(s.batch, 0, s.batchLen);
+                    if (s.writing()) {
+                        s.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                }
+
+                int size = log.size();
+                if (s.cursor == size)
+                    break;
+                if (s.tooFarBehind(size)) {
+                    drop(s);
+                    return;
+                }
+
+                s.batchLen = Math.min(BATCH, size - s.cursor);
+                for (int i = 0; i < s.batchLen; i++)
+                    s.batch[i] = log.get(s.cursor++);
+            }
+        } catch (IOException e) {
+            drop(s);
+            return;
+        }
+
+        s.key.interestOps(SelectionKey.OP_READ);
+        if (log.isClosed() && s.cursor == log.size())
+            drop(s);
+    }
+
+    private void reject(Spectator s) {
+        try {
+            s.channel.write(ChessConnection.frame(ChessProtocol.ERROR));
+        } catch (IOException ignored) {}
+
+        drop(s);
+    }
+
+    private void drop(Spectator s) {
+        if (s.log != null) {
+            List<Spectator> list = watchers.get(s.log);
+            if (list != null) {
+                list.remove(s);
+                if (list.isEmpty())
+                    watchers.remove(s.log);
+            }
+        }
+
+        s.key.cancel();
+        try {
+            s.channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Stop accepting spectators and disconnect the ones watching
+     */
+    public void close() {
+        keepAlive = false;
+        try {
+            this.listen.close();
+            this.selector.close();
+        } catch (IOException e) {
+            System.err.println("Failed to close spectator port");
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Hot standby of a primary server. It applies the records a
+ * {@link Replicator} streams to shadow games as they arrive, so every
+ * shadow board is as current as the last acknowledged batch. When the
+ * primary goes away and does not come back within the takeover time, the
+ * shadows are handed to a new {@link ChessServer} and their players resume
+ * them there.
+ *
+ * @author Andrei Tumbar
+ */
+public class Standby {
+    private ServerSocket listen;
+    private ServerMetrics metrics;
+    private Map<Integer, RecoveredGame> shadows;
+    private CRC32 check;
+
+    /**
+     * @param port port the primary replicates to
+     * @param metrics where applied records and lag are recorded
+     * @throws ChessException if the port cannot be opened
+     */
+    public Standby(int port, ServerMetrics metrics) throws ChessException {
+        try {
+            this.listen = new ServerSocket();
+            this.listen.setReuseAddress(true);
+            this.listen.bind(new InetSocketAddress(port));
+        } catch (IOException e) {
+            throw new ChessException("Failed to open replication port " + port, e);
+        }
+
+        this.metrics = metrics;
+        this.shadows = new HashMap<>();
+        this.check = new CRC32();
+    }
+
+    /**
+     * Mirror the primary until it is gone
+     * @param takeoverMillis how long the primary has to come back after its stream stops
+     * @return the games the primary was running
+     * @throws ChessException if the replication port fails
+     */
+    public List<RecoveredGame> awaitTakeover(long takeoverMillis) throws ChessException {
+        try {
+            Socket primary = this.listen.accept();
+            while (true) {
+                mirror(primary, Math.max(takeoverMillis, 3 * Replicator.HEARTBEAT_MILLIS));
+
+                this.listen.setSoTimeout((int) Math.max(1, takeoverMillis));
+                try {
+                    primary = this.listen.accept();
+                } catch (SocketTimeoutException e) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            throw new ChessException("Replication port failed", e);
+        } finally {
+            try {
+                this.listen.close();
+            } catch (IOException ignored) {}
+        }
+
+        return new ArrayList<>(this.shadows.values());
+    }
+
+    /**
+     * Apply and acknowledge batches until the stream stops
+     * @param primary connection from the primary
+     * @param timeoutMillis silence after which the primary counts as gone
+     */
+    private void mirror(Socket primary, long timeoutMillis) {
+        /* A primary sends every live game again when it connects */
+        this.shadows.clear();
+        System.out.printf("Mirroring primary %s\n", primary.getRemoteSocketAddress());
+
+        ByteBuffer records = ByteBuffer.allocate(MoveJournal.RECORD_SIZE * Replicator.MAX_BATCH);
+        try (Socket s = primary) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout((int) timeoutMillis);
+            DataInputStream in = new DataInputStream(s.getInputStream());
+            DataOutputStream out = new DataOutputStream(s.getOutputStream());
+
+            while (true) {
+                long seq = in.readLong();
+                long sentMillis = in.readLong();
+                int count = in.readInt();
+                if (count < 0 || count > Replicator.MAX_BATCH)
+                    throw new IOException("Bad batch of " + count + " records");
+
+                records.clear();
+                in.readFully(records.array(), 0, count * MoveJournal.RECORD_SIZE);
+                for (int i = 0; i < count; i++) {
+                    MoveJournal.Record r = MoveJournal.decode(records, this.check);
+                    if (r == null)
+                        throw new IOException("Corrupt record in batch " + seq);
+                    apply(r);
+                }
+
+                out.writeLong(seq);
+                out.flush();
+                if (count > 0)
+                    this.metrics.replicated(count, Math.max(0, System.currentTimeMillis() - sentMillis) * 1000000);
+            }
+        } catch (EOFException e) {
+            System.err.println("Primary closed the replication stream");
+        } catch (IOException e) {
+            System.err.printf("Lost primary: %s\n", e.getMessage());
+        }
+    }
+
+    private void apply(MoveJournal.Record r) {
+        if (r.type == MoveJournal.START)
+            this.shadows.put(r.gameId, new RecoveredGame(r.gameId));
+        else if (r.type == MoveJournal.END) {
+            this.shadows.remove(r.gameId);
+            return;
+        }
+
+        RecoveredGame game = this.shadows.get(r.gameId);
+        if (game != null)
+            game.apply(r);
+    }
+}
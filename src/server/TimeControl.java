@@ -0,0 +1,42 @@
+package server;
+
+/**
+ * Time each player gets for a game. After every move the player gets the
+ * increment added, and the clock only starts running once the delay of
+ * the turn has passed.
+ *
+ * @author Andrei Tumbar
+ */
+public class TimeControl {
+    private long baseMillis;
+    private long incrementMillis;
+    private long delayMillis;
+
+    /**
+     * @param baseMillis time each player starts with
+     * @param incrementMillis time added after each move
+     * @param delayMillis free time at the start of each turn
+     */
+    public TimeControl(long baseMillis, long incrementMillis, long delayMillis) {
+        this.baseMillis = baseMillis;
+        this.incrementMillis = incrementMillis;
+        this.delayMillis = delayMillis;
+    }
+
+    public long getBaseMillis() {
+        return baseMillis;
+    }
+
+    public long getIncrementMillis() {
+        return incrementMillis;
+    }
+
+    public long getDelayMillis() {
+        return delayMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%.1fs+%.1fs delay %.1fs", baseMillis / 1e3, incrementMillis / 1e3, delayMillis / 1e3);
+    }
+}
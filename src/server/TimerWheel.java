@@ -0,0 +1,193 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timer wheel shared by every game. A timeout is dropped into the
+ * bucket of its deadline tick, one thread advances a tick at a time and
+ * only looks at the bucket under the hand. Scheduling and cancelling are
+ * O(1) and lock-free, so a hundred thousand pending timeouts cost a few
+ * objects each and no threads.
+ *
+ * Timeouts fire up to one tick late. Tasks run on the wheel thread and
+ * must not block.
+ *
+ * @author Andrei Tumbar
+ */
+public class TimerWheel extends Thread {
+    /**
+     * Default resolution of the wheel
+     */
+    public static final long TICK_MILLIS = 10;
+
+    /**
+     * Default number of buckets, one turn of the wheel is TICK_MILLIS * WHEEL_SIZE
+     */
+    public static final int WHEEL_SIZE = 512;
+
+    private long tickNanos;
+    private Timeout[] buckets;
+    private int mask;
+    private long startNanos;
+    private long tick;
+    private ConcurrentLinkedQueue<Timeout> added;
+    private volatile boolean running;
+
+    public TimerWheel() {
+        this(TICK_MILLIS, WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimerWheel(long tickMillis, int wheelSize) {
+        super("TimerWheel");
+        setDaemon(true);
+
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.buckets = new Timeout[size];
+        this.mask = size - 1;
+        this.startNanos = System.nanoTime();
+        this.tick = 0;
+        this.added = new ConcurrentLinkedQueue<>();
+        this.running = true;
+    }
+
+    /**
+     * Run a task once after a delay, may be called from any thread
+     * @param task runs on the wheel thread
+     * @param delay delay before the task runs
+     * @param unit unit of the delay
+     * @return handle to cancel the timeout
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout t = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+        this.added.add(t);
+        return t;
+    }
+
+    @Override
+    public void run() {
+        while (this.running) {
+            long deadline = this.startNanos + (this.tick + 1) * this.tickNanos;
+            long sleep = deadline - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+
+            transferAdded();
+            expire((int) (this.tick & this.mask));
+            this.tick++;
+        }
+    }
+
+    /**
+     * Put newly scheduled timeouts in the bucket of their deadline tick
+     */
+    private void transferAdded() {
+        for (Timeout t = this.added.poll(); t != null; t = this.added.poll()) {
+            if (t.state.get() != Timeout.PENDING)
+                continue;
+
+            long due = (t.deadline - this.startNanos + this.tickNanos - 1) / this.tickNanos;
+            /* Anything already late goes under the hand */
+            due = Math.max(due, this.tick);
+            t.rounds = (due - this.tick) / this.buckets.length;
+
+            int index = (int) (due & this.mask);
+            t.next = this.buckets[index];
+            if (t.next != null)
+                t.next.prev = t;
+            this.buckets[index] = t;
+        }
+    }
+
+    private void expire(int index) {
+        Timeout t = this.buckets[index];
+        while (t != null) {
+            Timeout next = t.next;
+            if (t.state.get() == Timeout.CANCELLED)
+                unlink(index, t);
+            else if (t.rounds > 0)
+                t.rounds--;
+            else {
+                unlink(index, t);
+                if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed");
+                        e.printStackTrace();
+                    }
+                }
+            }
+            t = next;
+        }
+    }
+
+    private void unlink(int index, Timeout t) {
+        if (t.prev != null)
+            t.prev.next = t.next;
+        else
+            this.buckets[index] = t.next;
+        if (t.next != null)
+            t.next.prev = t.prev;
+        t.next = null;
+        t.prev = null;
+    }
+
+    /**
+     * Stop the wheel, pending timeouts never fire
+     */
+    public void close() {
+        this.running = false;
+        this.interrupt();
+    }
+
+    /**
+     * A scheduled task. Links are only touched by the wheel thread.
+     */
+    public static class Timeout {
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private volatile Runnable task;
+        private long deadline;
+        private long rounds;
+        private AtomicInteger state;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+            this.state = new AtomicInteger(PENDING);
+        }
+
+        /**
+         * Stop the task from running, the wheel drops it when the hand passes
+         * @return false if the task already ran or was cancelled
+         */
+        public boolean cancel() {
+            if (!this.state.compareAndSet(PENDING, CANCELLED))
+                return false;
+
+            /* Don't keep the task reachable until the hand comes round */
+            this.task = null;
+            return true;
+        }
+
+        public boolean isExpired() {
+            return this.state.get() == EXPIRED;
+        }
+    }
+}
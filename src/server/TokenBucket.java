@@ -0,0 +1,43 @@
+package server;
+
+/**
+ * Token bucket that limits how often something may happen. It starts
+ * full with a burst of tokens and refills at a steady rate. Credit is
+ * kept in nanoseconds of refill time, so taking a token is a subtraction
+ * and nothing has to run in the background. Not thread safe, each
+ * connection only takes from its bucket on its transport's events.
+ *
+ * @author Andrei Tumbar
+ */
+class TokenBucket {
+    private long costNanos;
+    private long capacityNanos;
+    private long creditNanos;
+    private long lastNanos;
+
+    /**
+     * @param perSecond tokens added every second
+     * @param burst tokens the bucket holds when full
+     */
+    TokenBucket(int perSecond, int burst) {
+        this.costNanos = 1_000_000_000L / perSecond;
+        this.capacityNanos = this.costNanos * Math.max(burst, 1);
+        this.creditNanos = this.capacityNanos;
+        this.lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Take a token if there is one
+     * @param nowNanos current {@link System#nanoTime()}
+     * @return false if the bucket is empty
+     */
+    boolean take(long nowNanos) {
+        this.creditNanos = Math.min(this.capacityNanos, this.creditNanos + (nowNanos - this.lastNanos));
+        this.lastNanos = nowNanos;
+        if (this.creditNanos < this.costNanos)
+            return false;
+
+        this.creditNanos -= this.costNanos;
+        return true;
+    }
+}
@@ -0,0 +1,81 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Duplex byte stream between a player and a server, driven by readiness
+ * events with non-blocking reads and writes. {@link SocketTransport}
+ * carries the stream over TCP and a {@link Loopback} pair carries it in
+ * memory, where an end may also be used through blocking streams.
+ *
+ * @author Andrei Tumbar
+ */
+public interface Transport {
+    /**
+     * Told when a started transport can make progress
+     */
+    interface Handler {
+        /**
+         * Bytes or the end of the stream can be read
+         */
+        void onReadable();
+
+        /**
+         * Bytes can be written after {@link #wantWrite()}
+         * @return true once nothing is left to write
+         */
+        boolean onWritable();
+    }
+
+    /**
+     * Start delivering events, the transport is non-blocking from now on
+     * @param handler receives the events
+     */
+    void start(Handler handler);
+
+    /**
+     * Read what is there without blocking
+     * @param dst buffer to read into
+     * @return bytes read, -1 at the end of the stream
+     * @throws IOException if the transport failed
+     */
+    int read(ByteBuffer dst) throws IOException;
+
+    /**
+     * Write what fits without blocking
+     * @param srcs buffers to write in order
+     * @return bytes written
+     * @throws IOException if the transport failed
+     */
+    long write(ByteBuffer[] srcs) throws IOException;
+
+    /**
+     * Ask for {@link Handler#onWritable()} once a write can make progress
+     */
+    void wantWrite();
+
+    /**
+     * @return false once the transport failed or was closed
+     */
+    boolean isOpen();
+
+    /**
+     * Close both directions, the other side reads the end of the stream
+     */
+    void close();
+
+    /**
+     * @return blocking stream of what the other side writes
+     * @throws IOException if the transport is driven by events
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * @return blocking stream to the other side
+     * @throws IOException if the transport is driven by events
+     */
+    OutputStream getOutputStream() throws IOException;
+}
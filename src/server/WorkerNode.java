@@ -0,0 +1,58 @@
+package server;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A worker process as the {@link ChessRouter} sees it: where players are
+ * sent and how busy it is. The load is what the worker last reported plus
+ * the games the router sent it since, so a burst of pairs is spread out
+ * before the next report comes in.
+ *
+ * @author Andrei Tumbar
+ */
+class WorkerNode {
+    private InetSocketAddress address;
+    private volatile int games;
+    private AtomicInteger assigned;
+
+    /**
+     * @param address address the worker accepts routed players on
+     */
+    WorkerNode(InetSocketAddress address) {
+        this.address = address;
+        this.assigned = new AtomicInteger();
+    }
+
+    InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return games running or on their way to the worker
+     */
+    int getLoad() {
+        return this.games + this.assigned.get();
+    }
+
+    /**
+     * The worker sent a LOAD report
+     * @param games games it is running, including every game sent before
+     */
+    void reported(int games) {
+        this.assigned.set(0);
+        this.games = games;
+    }
+
+    /**
+     * The router sent a game to the worker
+     */
+    void assigned() {
+        this.assigned.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return this.address.getHostString() + ":" + this.address.getPort();
+    }
+}